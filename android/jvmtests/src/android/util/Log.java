@@ -0,0 +1,47 @@
+package android.util;
+
+/**
+ * Stands in for Android's Log on the JVM; messages are printed only if the "jvmtests.log" system
+ * property is set.
+ */
+public final class Log {
+	private static final boolean ENABLED = System.getProperty("jvmtests.log") != null;
+
+	private Log() {
+	}
+
+	public static int v(String tag, String msg) {
+		return println("V", tag, msg);
+	}
+
+	public static int d(String tag, String msg) {
+		return println("D", tag, msg);
+	}
+
+	public static int i(String tag, String msg) {
+		return println("I", tag, msg);
+	}
+
+	public static int w(String tag, String msg) {
+		return println("W", tag, msg);
+	}
+
+	public static int w(String tag, String msg, Throwable tr) {
+		return println("W", tag, msg + ": " + tr);
+	}
+
+	public static int e(String tag, String msg) {
+		return println("E", tag, msg);
+	}
+
+	public static int e(String tag, String msg, Throwable tr) {
+		return println("E", tag, msg + ": " + tr);
+	}
+
+	private static int println(String level, String tag, String msg) {
+		if (ENABLED) {
+			System.err.println(level + "/" + tag + ": " + msg);
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,118 @@
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.webrtc.PeerConnection;
+import org.webrtc.SessionDescription;
+
+/** Signaling across a dropped connection, against a {@link SocketIoStandIn}. */
+public class AppRTCClientTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final SignalingCodec codec = new SignalingCodec();
+
+	private SocketIoStandIn server;
+
+	private ExecutorService callbackExecutor;
+
+	private final List<AppRTCClient> clients = new ArrayList<AppRTCClient>();
+
+	@Before
+	public void setUp() throws Exception {
+		server = new SocketIoStandIn();
+		callbackExecutor = Executors.newSingleThreadExecutor();
+	}
+
+	@After
+	public void tearDown() throws InterruptedException {
+		for (AppRTCClient client : clients) {
+			client.disconnect();
+		}
+		// disconnect() returns before the connection is closed; wait, so that closing the server
+		// doesn't look like a dropped connection.
+		long deadline = System.currentTimeMillis() + RecordingMessageHandler.TIMEOUT_MS;
+		while (!server.getSessions().isEmpty() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		server.close();
+		callbackExecutor.shutdownNow();
+	}
+
+	@Test
+	public void replaysLostMessagesAndDropsDuplicatesAfterRejoining() throws Exception {
+		RecordingMessageHandler first = new RecordingMessageHandler();
+		AppRTCClient firstClient = connect(first);
+		assertEquals("created", first.next());
+		RecordingMessageHandler second = new RecordingMessageHandler();
+		AppRTCClient secondClient = connect(second);
+		assertEquals("joined", second.next());
+		assertEquals("join", first.next());
+
+		firstClient.sendMessage(offer("one"));
+		assertEquals("offer:one", next(second));
+		secondClient.sendMessage(offer("reply"));
+		assertEquals("offer:reply", next(first));
+
+		server.getSessions().get(0).drop(false);
+		assertEquals("close", first.next());
+		// Lost, or queued for the new connection; either way it arrives once.
+		firstClient.sendMessage(offer("two"));
+		assertEquals("rejoined", first.next());
+		assertEquals("rejoined", second.next());
+		assertEquals("offer:two", next(second));
+
+		// What both sides replayed on rejoining was delivered already.
+		first.assertQuiet(200);
+		second.assertQuiet(0);
+	}
+
+	private AppRTCClient connect(RecordingMessageHandler handler) throws Exception {
+		IceConfigLoader loader = new IceConfigLoader(server.getUrl() + "/iceconfig.json",
+				folder.newFile(), IceConfigLoader.DEFAULT_TTL_MS);
+		AppRTCClient client = new AppRTCClient(server.getUrl(), callbackExecutor, handler,
+				new IceServersObserver() {
+					public void onIceServers(List<PeerConnection.IceServer> iceServers) {
+					}
+
+					public void onIceServersUpdated(List<PeerConnection.IceServer> iceServers) {
+					}
+				}, loader);
+		client.connect();
+		clients.add(client);
+		return client;
+	}
+
+	private String offer(String sdp) {
+		return codec.encode(SignalingMessage.description(new SessionDescription(
+				SessionDescription.Type.OFFER, sdp)));
+	}
+
+	// The next callback, with a message's frame decoded to "<type>:<sdp>" for each message in it.
+	private String next(RecordingMessageHandler handler) throws InterruptedException {
+		String event = handler.next();
+		if (!event.startsWith("message:")) {
+			return event;
+		}
+		List<SignalingMessage> messages = new ArrayList<SignalingMessage>();
+		codec.decode(event.substring("message:".length()), messages);
+		StringBuilder decoded = new StringBuilder();
+		for (SignalingMessage message : messages) {
+			if (decoded.length() > 0) {
+				decoded.append(',');
+			}
+			decoded.append(message.type.wireName).append(':').append(message.sdp);
+		}
+		return decoded.toString();
+	}
+}
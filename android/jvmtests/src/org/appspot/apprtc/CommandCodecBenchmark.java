@@ -0,0 +1,128 @@
+package org.appspot.apprtc;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * What deflating command payloads costs against what it saves: for text of various sizes, and
+ * random bytes that don't compress, the encode and decode time per message with deflating (from
+ * the default threshold) and without, and the bytes that go on the wire either way.
+ * <p>
+ * Run with: java org.appspot.apprtc.CommandCodecBenchmark [iterations]
+ */
+public class CommandCodecBenchmark {
+	private static final int RUNS = 3;
+
+	private static final int[] SIZES = { 64, 255, 256, 1024, 4096, 16384 };
+
+	// Command-like text: a limited vocabulary, repeated with variations, as typed commands and
+	// their JSON arguments are.
+	private static final String[] WORDS = { "ls", "-la", "/sdcard/DCIM/Camera", "cat", "|",
+			"grep", "\"name\":", "\"size\":", "true", "false", "{", "}", "[", "]", ",", "echo",
+			"recording", "camera", "front", "back", "resolution", "1280x720", "fps", "30" };
+
+	private static final CommandCodec.Envelope envelope = new CommandCodec.Envelope();
+
+	public static void main(String[] args) {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		CommandCodec deflating = new CommandCodec();
+		CommandCodec raw = new CommandCodec(Integer.MAX_VALUE);
+		// Everything twice, the first time to warm up.
+		for (int pass = 0; pass < 2; ++pass) {
+			boolean print = pass == 1;
+			if (print) {
+				System.out.println("payload        wire bytes (raw/deflated)  saved  "
+						+ "encode ns (raw/deflated)  decode ns (raw/deflated)  extra ns/byte saved");
+			}
+			for (int size : SIZES) {
+				run("text " + size, text(size), deflating, raw, iterations, print);
+			}
+			for (int size : SIZES) {
+				run("random " + size, random(size), deflating, raw, iterations, print);
+			}
+		}
+	}
+
+	private static void run(String name, ByteBuffer payload, CommandCodec deflating,
+			CommandCodec raw, int iterations, boolean print) {
+		int rawBytes = wireBytes(raw, payload);
+		int deflatedBytes = wireBytes(deflating, payload);
+		// Lest the last row's garbage be collected during this one.
+		System.gc();
+		// The best of a few runs, as the JIT recompiles when a row takes branches the last didn't.
+		double rawEncode = Double.MAX_VALUE, deflatedEncode = Double.MAX_VALUE;
+		double rawDecode = Double.MAX_VALUE, deflatedDecode = Double.MAX_VALUE;
+		for (int run = 0; run < RUNS; ++run) {
+			rawEncode = Math.min(rawEncode, encodeNanos(raw, payload, iterations));
+			deflatedEncode = Math.min(deflatedEncode, encodeNanos(deflating, payload, iterations));
+			rawDecode = Math.min(rawDecode, decodeNanos(raw, payload, iterations));
+			deflatedDecode = Math.min(deflatedDecode, decodeNanos(deflating, payload, iterations));
+		}
+		int saved = rawBytes - deflatedBytes;
+		double extra = deflatedEncode - rawEncode + deflatedDecode - rawDecode;
+		// Formatted on the warm-up pass too, so its first use isn't timed.
+		String line = String.format("%-13s  %12s  %6d  %24s  %24s  %s", name, rawBytes + "/"
+				+ deflatedBytes, saved, String.format("%.0f/%.0f", rawEncode, deflatedEncode),
+				String.format("%.0f/%.0f", rawDecode, deflatedDecode), saved > 0 ? String.format(
+						"%.1f", extra / saved) : "-");
+		if (print) {
+			System.out.println(line);
+		}
+	}
+
+	private static int wireBytes(CommandCodec codec, ByteBuffer payload) {
+		ByteBuffer frame = codec.encode(CommandCodec.TYPE_COMMAND, payload);
+		int bytes = frame.remaining();
+		codec.recycle(frame);
+		return bytes;
+	}
+
+	// Per encode, with the frame recycled as the app does once it is sent.
+	private static double encodeNanos(CommandCodec codec, ByteBuffer payload, int iterations) {
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; ++i) {
+			codec.recycle(codec.encode(CommandCodec.TYPE_COMMAND, payload));
+		}
+		return (System.nanoTime() - start) / (double) iterations;
+	}
+
+	private static double decodeNanos(CommandCodec codec, ByteBuffer payload, int iterations) {
+		ByteBuffer frame = codec.encode(CommandCodec.TYPE_COMMAND, payload);
+		long checksum = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; ++i) {
+			codec.decode(frame.duplicate(), envelope);
+			checksum += envelope.payload.remaining();
+		}
+		long elapsed = System.nanoTime() - start;
+		if (checksum != (long) iterations * payload.remaining()) {
+			throw new IllegalStateException("Decoded the wrong length");
+		}
+		return elapsed / (double) iterations;
+	}
+
+	private static ByteBuffer text(int size) {
+		Random random = new Random(size);
+		StringBuilder text = new StringBuilder(size + 32);
+		while (text.length() < size) {
+			text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+			if (random.nextInt(8) == 0) {
+				text.append(random.nextInt(100000)).append(' ');
+			}
+		}
+		text.setLength(size);
+		try {
+			return ByteBuffer.wrap(text.toString().getBytes("UTF-8"));
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static ByteBuffer random(int size) {
+		byte[] bytes = new byte[size];
+		new Random(size).nextBytes(bytes);
+		return ByteBuffer.wrap(bytes);
+	}
+}
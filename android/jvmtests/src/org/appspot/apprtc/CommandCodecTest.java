@@ -0,0 +1,246 @@
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import org.junit.Test;
+
+public class CommandCodecTest {
+	private final CommandCodec codec = new CommandCodec();
+
+	private final CommandCodec.Envelope envelope = new CommandCodec.Envelope();
+
+	@Test
+	public void roundTripsText() throws Exception {
+		String[] texts = { "", "ls -l", "caf\u00e9", "\u20ac100", "\ud83d\ude00 emoji",
+				repeat("compressible ", 100) };
+		for (String text : texts) {
+			assertEquals(text, decodeText(codec.encode(CommandCodec.TYPE_COMMAND, text)));
+		}
+	}
+
+	@Test
+	public void unpairedSurrogatesBecomeQuestionMarks() throws Exception {
+		assertEquals("a?b?", decodeText(codec.encode(CommandCodec.TYPE_COMMAND,
+				"a\ud800b\udc00")));
+	}
+
+	@Test
+	public void deflatesFromTheThresholdUp() throws Exception {
+		String below = repeat("a", CommandCodec.DEFAULT_COMPRESSION_THRESHOLD - 1);
+		ByteBuffer frame = codec.encode(CommandCodec.TYPE_COMMAND, below);
+		assertEquals(0, frame.get(2));
+		assertEquals(3 + 2 + below.length(), frame.remaining());
+		assertEquals(below, decodeText(frame));
+
+		String atThreshold = repeat("a", CommandCodec.DEFAULT_COMPRESSION_THRESHOLD);
+		frame = codec.encode(CommandCodec.TYPE_COMMAND, atThreshold);
+		assertEquals(CommandCodec.FLAG_DEFLATED, frame.get(2));
+		assertTrue(frame.remaining() < 3 + 2 + atThreshold.length());
+		assertEquals(atThreshold, decodeText(frame));
+	}
+
+	@Test
+	public void thresholdIsConfigurable() throws Exception {
+		CommandCodec eager = new CommandCodec(16);
+		assertEquals(CommandCodec.FLAG_DEFLATED, eager.encode(CommandCodec.TYPE_COMMAND,
+				repeat("a", 64)).get(2));
+		CommandCodec never = new CommandCodec(Integer.MAX_VALUE);
+		assertEquals(0, never.encode(CommandCodec.TYPE_COMMAND, repeat("a", 4096)).get(2));
+	}
+
+	@Test
+	public void incompressiblePayloadsStayRaw() {
+		byte[] random = randomBytes(4096);
+		ByteBuffer frame = codec.encode(CommandCodec.TYPE_COMMAND, ByteBuffer.wrap(random));
+		assertEquals(0, frame.get(2));
+		assertArrayEquals(random, decodeBytes(frame));
+	}
+
+	@Test
+	public void roundTripsEveryVarintLength() {
+		// One-, two- and three-byte lengths, raw and deflated.
+		int[] lengths = { 0, 1, 127, 128, 16383, 16384, 100000 };
+		for (int length : lengths) {
+			byte[] random = randomBytes(length);
+			assertArrayEquals(random, decodeBytes(codec.encode(CommandCodec.TYPE_COMMAND,
+					ByteBuffer.wrap(random))));
+			byte[] zeros = new byte[length];
+			assertArrayEquals(zeros, decodeBytes(codec.encode(CommandCodec.TYPE_COMMAND,
+					ByteBuffer.wrap(zeros))));
+		}
+	}
+
+	@Test
+	public void encodeLeavesThePayloadUnconsumed() {
+		ByteBuffer payload = ByteBuffer.wrap(new byte[1000]);
+		payload.position(10);
+		codec.encode(CommandCodec.TYPE_COMMAND, payload);
+		assertEquals(10, payload.position());
+		assertEquals(1000, payload.limit());
+	}
+
+	@Test
+	public void handlesDirectBuffers() {
+		byte[] zeros = new byte[1000];
+		ByteBuffer payload = ByteBuffer.allocateDirect(zeros.length);
+		payload.put(zeros).flip();
+		ByteBuffer frame = codec.encode(CommandCodec.TYPE_COMMAND, payload);
+		assertEquals(CommandCodec.FLAG_DEFLATED, frame.get(2));
+		// As received from a data channel.
+		ByteBuffer direct = ByteBuffer.allocateDirect(frame.remaining());
+		direct.put(frame).flip();
+		assertArrayEquals(zeros, decodeBytes(direct));
+	}
+
+	@Test
+	public void recycledFramesAreReused() {
+		ByteBuffer frame = codec.encode(CommandCodec.TYPE_COMMAND, "first");
+		codec.recycle(frame);
+		assertSame(frame, codec.encode(CommandCodec.TYPE_COMMAND, "second"));
+		assertEquals("second", decodeText(frame));
+	}
+
+	@Test
+	public void rejectsOversizedPayloads() {
+		try {
+			codec.encode(CommandCodec.TYPE_COMMAND, ByteBuffer.allocate(
+					CommandCodec.MAX_PAYLOAD_SIZE + 1));
+			fail("Encoded");
+		}
+		catch (IllegalArgumentException e) {
+			// Expected.
+		}
+		// A header claiming MAX_PAYLOAD_SIZE + 1 bytes.
+		assertRejected("too large", 1, 1, 0, 0x81, 0x80, 0x40);
+	}
+
+	@Test
+	public void rejectsUnknownHeaders() {
+		assertRejected("version", 2, 1, 0, 0);
+		assertRejected("type", 1, 2, 0, 0);
+		assertRejected("flags", 1, 1, 2, 0);
+	}
+
+	@Test
+	public void rejectsTruncatedFrames() {
+		assertRejected("Truncated", 1);
+		assertRejected("Truncated", 1, 1, 0);
+		// The varint's continuation bit promises another byte.
+		assertRejected("Truncated", 1, 1, 0, 0x80);
+		assertRejected("Truncated", 1, 1, 0, 0xff, 0xff);
+	}
+
+	@Test
+	public void rejectsBadVarints() {
+		assertRejected("too long", 1, 1, 0, 0x80, 0x80, 0x80, 0x80, 0x80, 0);
+		assertRejected("out of range", 1, 1, 0, 0xff, 0xff, 0xff, 0xff, 0x0f);
+	}
+
+	@Test
+	public void rejectsRawPayloadsOfTheWrongLength() {
+		assertRejected("expected 3", 1, 1, 0, 3, 'a', 'b');
+		assertRejected("expected 1", 1, 1, 0, 1, 'a', 'b');
+	}
+
+	@Test
+	public void rejectsPayloadsInflatingPastTheirLength() {
+		byte[] compressed = deflate(new byte[1000]);
+		// Claims 100 bytes; what is there inflates to 1000.
+		assertRejected("inflates past 100", frame(100, compressed));
+	}
+
+	@Test
+	public void rejectsPayloadsInflatingShortOfTheirLength() {
+		assertRejected("doesn't match", frame(2000, deflate(new byte[1000])));
+	}
+
+	@Test
+	public void rejectsBadDeflateStreams() {
+		assertRejected("Bad deflated", frame(100, new byte[] { (byte) 0xff, (byte) 0xff, 1, 2 }));
+		byte[] compressed = deflate(new byte[1000]);
+		byte[] trailing = Arrays.copyOf(compressed, compressed.length + 3);
+		assertRejected("doesn't match", frame(1000, trailing));
+	}
+
+	private String decodeText(ByteBuffer frame) {
+		try {
+			return new String(decodeBytes(frame), "UTF-8");
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private byte[] decodeBytes(ByteBuffer frame) {
+		codec.decode(frame.duplicate(), envelope);
+		assertEquals(CommandCodec.TYPE_COMMAND, envelope.type);
+		byte[] payload = new byte[envelope.payload.remaining()];
+		envelope.payload.duplicate().get(payload);
+		return payload;
+	}
+
+	private void assertRejected(String message, int... bytes) {
+		byte[] frame = new byte[bytes.length];
+		for (int i = 0; i < bytes.length; ++i) {
+			frame[i] = (byte) bytes[i];
+		}
+		assertRejected(message, frame);
+	}
+
+	private void assertRejected(String message, byte[] frame) {
+		try {
+			codec.decode(ByteBuffer.wrap(frame), envelope);
+			fail("Decoded " + Arrays.toString(frame));
+		}
+		catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains(message));
+		}
+	}
+
+	// A deflated command frame with |length| in its header.
+	private static byte[] frame(int length, byte[] compressed) {
+		ByteBuffer frame = ByteBuffer.allocate(8 + compressed.length);
+		frame.put((byte) CommandCodec.VERSION).put((byte) CommandCodec.TYPE_COMMAND)
+				.put((byte) CommandCodec.FLAG_DEFLATED);
+		while ((length & ~0x7f) != 0) {
+			frame.put((byte) ((length & 0x7f) | 0x80));
+			length >>>= 7;
+		}
+		frame.put((byte) length).put(compressed);
+		return Arrays.copyOf(frame.array(), frame.position());
+	}
+
+	private static byte[] deflate(byte[] data) {
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		deflater.setInput(data);
+		deflater.finish();
+		byte[] buffer = new byte[data.length + 64];
+		int length = deflater.deflate(buffer);
+		deflater.end();
+		return Arrays.copyOf(buffer, length);
+	}
+
+	private static byte[] randomBytes(int length) {
+		byte[] bytes = new byte[length];
+		new Random(length).nextBytes(bytes);
+		return bytes;
+	}
+
+	private static String repeat(String s, int count) {
+		StringBuilder result = new StringBuilder(s.length() * count);
+		for (int i = 0; i < count; ++i) {
+			result.append(s);
+		}
+		return result.toString();
+	}
+}
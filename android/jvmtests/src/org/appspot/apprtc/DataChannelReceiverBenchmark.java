@@ -0,0 +1,127 @@
+package org.appspot.apprtc;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.webrtc.DataChannel;
+
+/**
+ * Messages per second through a DataChannelReceiver, from onMessage() on the calling thread (the
+ * channel's, in the app) to a consumer on the worker thread, at 100 B, 1 KB and 16 KB, as plain
+ * text and as CommandCodec envelopes, in short and long bursts; and the bytes allocated per
+ * message on the calling thread, where the JVM can tell. MB/s counts the bytes received, i.e.
+ * compressed ones for envelopes.
+ * <p>
+ * Run with: java org.appspot.apprtc.DataChannelReceiverBenchmark [megabytes per run]
+ */
+public class DataChannelReceiverBenchmark {
+	private static final int[] SIZES = { 100, 1024, 16 * 1024 };
+
+	// Messages sent back to back before the sending thread yields: fewer than the receiver pools
+	// buffers for, and more. A channel thread waits on the network between bursts; one that never
+	// yielded would, on a single core, starve the worker and measure only the drops.
+	private static final int[] BURSTS = { 8, 128 };
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	public static void main(String[] args) throws Exception {
+		int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+		// Everything twice, the first time to warm up.
+		for (int pass = 0; pass < 2; ++pass) {
+			boolean print = pass == 1;
+			if (print) {
+				System.out.println("message          burst  messages/s    MB/s  dropped  "
+						+ "bytes allocated/message");
+			}
+			for (int size : SIZES) {
+				int count = Math.max(20000, (megabytes << 20) / size);
+				for (int burst : BURSTS) {
+					run("text " + size, text(size), count, burst, print);
+					run("envelope " + size, envelope(size), count, burst, print);
+				}
+			}
+		}
+	}
+
+	private static void run(String name, DataChannel.Buffer buffer, int count, int burst,
+			boolean print) throws InterruptedException {
+		DataChannelReceiver receiver = new DataChannelReceiver();
+		final long[] consumed = new long[1];
+		final Object lock = new Object();
+		receiver.addConsumer(new DataChannelReceiver.Consumer() {
+			long chars = 0;
+
+			public void onMessage(CharSequence message) {
+				// Touch the message, as any consumer does.
+				chars += message.length() + message.charAt(message.length() - 1);
+				synchronized (lock) {
+					++consumed[0];
+					lock.notifyAll();
+				}
+			}
+		});
+		ByteBuffer data = buffer.data;
+		long allocatedBefore = allocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < count; ++i) {
+			data.rewind();
+			receiver.onMessage(buffer);
+			if (i % burst == burst - 1) {
+				Thread.yield();
+			}
+		}
+		long allocated = allocatedBytes() - allocatedBefore;
+		long dropped;
+		synchronized (lock) {
+			while (consumed[0] + (dropped = receiver.getStats().messagesDropped) < count) {
+				lock.wait(10);
+			}
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		receiver.close();
+		if (print) {
+			System.out.printf("%-15s  %5d  %10.0f  %6.1f  %7d  %s%n", name, burst, count / seconds,
+					(double) count * data.limit() / seconds / (1 << 20), dropped,
+					allocated < 0 ? "n/a" : String.format("%.1f", allocated / (double) count));
+		}
+	}
+
+	// This thread's allocations so far, or -1 if the JVM doesn't say.
+	private static long allocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread
+					.currentThread().getId());
+		}
+		return -1;
+	}
+
+	// A command of |size| ASCII bytes.
+	private static String command(int size) {
+		StringBuilder command = new StringBuilder(size);
+		while (command.length() < size) {
+			command.append("set camera front ").append(command.length()).append("; ");
+		}
+		command.setLength(size);
+		return command.toString();
+	}
+
+	// As the channel delivers them, in direct buffers.
+	private static DataChannel.Buffer text(int size) {
+		return new DataChannel.Buffer(direct(ByteBuffer.wrap(command(size).getBytes(UTF_8))),
+				false);
+	}
+
+	private static DataChannel.Buffer envelope(int size) {
+		return new DataChannel.Buffer(direct(new CommandCodec().encode(CommandCodec.TYPE_COMMAND,
+				command(size))), true);
+	}
+
+	private static ByteBuffer direct(ByteBuffer data) {
+		ByteBuffer direct = ByteBuffer.allocateDirect(data.remaining());
+		direct.put(data).flip();
+		return direct;
+	}
+}
@@ -0,0 +1,201 @@
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.webrtc.DataChannel;
+
+public class DataChannelReceiverTest {
+	private static final long TIMEOUT_MS = 5000;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	// As in DataChannelReceiver.
+	private static final int MAX_POOLED_BUFFERS = 16;
+
+	private static final int MAX_QUEUED_MESSAGES = 256;
+
+	private final DataChannelReceiver receiver = new DataChannelReceiver();
+
+	// What the consumer got, copied, and the buffers it got it in.
+	private final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+
+	private final Map<CharSequence, Boolean> buffers = Collections
+			.synchronizedMap(new IdentityHashMap<CharSequence, Boolean>());
+
+	private final DataChannelReceiver.Consumer recorder = new DataChannelReceiver.Consumer() {
+		public void onMessage(CharSequence message) {
+			messages.add(message.toString());
+			buffers.put(message, true);
+		}
+	};
+
+	@After
+	public void tearDown() {
+		receiver.close();
+	}
+
+	@Test
+	public void decodesTextAndEnvelopes() throws Exception {
+		receiver.addConsumer(recorder);
+		CommandCodec codec = new CommandCodec();
+		String large = repeat("deflated ", 500);
+		receiver.onMessage(text("plain \u00e9"));
+		receiver.onMessage(binary(codec.encode(CommandCodec.TYPE_COMMAND, "enveloped \u20ac")));
+		receiver.onMessage(binary(codec.encode(CommandCodec.TYPE_COMMAND, large)));
+		awaitMessages(3);
+		assertEquals("plain \u00e9", messages.get(0));
+		assertEquals("enveloped \u20ac", messages.get(1));
+		assertEquals(large, messages.get(2));
+	}
+
+	@Test
+	public void dropsUndecodableEnvelopes() throws Exception {
+		receiver.addConsumer(recorder);
+		receiver.onMessage(binary(ByteBuffer.wrap(new byte[] { 9, 9, 9 })));
+		receiver.onMessage(text("after"));
+		awaitMessages(1);
+		assertEquals("after", messages.get(0));
+	}
+
+	@Test
+	public void everyConsumerSeesTheWholeMessage() throws Exception {
+		final List<String> other = Collections.synchronizedList(new ArrayList<String>());
+		receiver.addConsumer(new DataChannelReceiver.Consumer() {
+			public void onMessage(CharSequence message) {
+				// Reads it to the end; the next consumer must still see all of it.
+				other.add(message.toString());
+				((CharBuffer) message).position(message.length());
+			}
+		});
+		receiver.addConsumer(recorder);
+		receiver.onMessage(text("shared"));
+		awaitMessages(1);
+		assertEquals("shared", messages.get(0));
+		assertEquals("shared", other.get(0));
+	}
+
+	@Test
+	public void reusesBuffersUnderASustainedStream() throws Exception {
+		receiver.addConsumer(recorder);
+		int[] sizes = { 100, 1024, 16 * 1024 };
+		for (int size : sizes) {
+			messages.clear();
+			buffers.clear();
+			int count = 2000;
+			for (int i = 0; i < count; ++i) {
+				receiver.onMessage(text(message(i, size)));
+				// The consumer keeps up, as it does unless it stalls.
+				if (i % 8 == 7) {
+					awaitMessages(i + 1);
+				}
+			}
+			awaitMessages(count);
+			for (int i = 0; i < count; ++i) {
+				assertEquals(message(i, size), messages.get(i));
+			}
+			assertTrue(buffers.size() + " buffers for " + count + " messages of " + size + " bytes",
+					buffers.size() <= MAX_POOLED_BUFFERS);
+		}
+		assertEquals(0, receiver.getStats().messagesDropped);
+	}
+
+	@Test
+	public void dropsAndCountsWhatAStalledConsumerCantTake() throws Exception {
+		final CountDownLatch stalled = new CountDownLatch(1);
+		final CountDownLatch unstall = new CountDownLatch(1);
+		receiver.addConsumer(new DataChannelReceiver.Consumer() {
+			public void onMessage(CharSequence message) {
+				stalled.countDown();
+				try {
+					unstall.await();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		receiver.addConsumer(recorder);
+		receiver.onMessage(text(message(0, 10)));
+		assertTrue(stalled.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+		int count = MAX_QUEUED_MESSAGES + 100;
+		for (int i = 1; i < count; ++i) {
+			receiver.onMessage(text(message(i, 10)));
+		}
+		DataChannelReceiver.Stats stats = receiver.getStats();
+		assertEquals(count, stats.messagesReceived);
+		assertEquals(MAX_QUEUED_MESSAGES, stats.queued);
+		// All but the one being consumed and those queued.
+		assertEquals(count - 1 - MAX_QUEUED_MESSAGES, stats.messagesDropped);
+
+		unstall.countDown();
+		awaitMessages(MAX_QUEUED_MESSAGES + 1);
+		// The earliest, in order: those that came later were dropped.
+		for (int i = 0; i <= MAX_QUEUED_MESSAGES; ++i) {
+			assertEquals(message(i, 10), messages.get(i));
+		}
+	}
+
+	@Test
+	public void ignoresMessagesOnceClosed() throws Exception {
+		receiver.addConsumer(recorder);
+		receiver.close();
+		receiver.onMessage(text("late"));
+		Thread.sleep(100);
+		assertTrue(messages.isEmpty());
+		assertEquals(0, receiver.getStats().messagesReceived);
+	}
+
+	private void awaitMessages(int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+		while (messages.size() < count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(1);
+		}
+		assertTrue(messages.size() + " of " + count + " messages", messages.size() >= count);
+	}
+
+	// Message |i|, |size| ASCII chars long.
+	private static String message(int i, int size) {
+		StringBuilder message = new StringBuilder(size).append(i).append(':');
+		while (message.length() < size) {
+			message.append((char) ('a' + message.length() % 26));
+		}
+		return message.toString();
+	}
+
+	// As the channel delivers them, in direct buffers.
+	private static DataChannel.Buffer text(String text) {
+		return new DataChannel.Buffer(direct(ByteBuffer.wrap(text.getBytes(UTF_8))), false);
+	}
+
+	private static DataChannel.Buffer binary(ByteBuffer frame) {
+		return new DataChannel.Buffer(direct(frame), true);
+	}
+
+	private static ByteBuffer direct(ByteBuffer data) {
+		ByteBuffer direct = ByteBuffer.allocateDirect(data.remaining());
+		direct.put(data.duplicate()).flip();
+		return direct;
+	}
+
+	private static String repeat(String s, int count) {
+		StringBuilder result = new StringBuilder(s.length() * count);
+		for (int i = 0; i < count; ++i) {
+			result.append(s);
+		}
+		return result.toString();
+	}
+}
@@ -0,0 +1,45 @@
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ExponentialBackoffTest {
+	@Test
+	public void delaysDoubleUpToTheMaximum() {
+		ExponentialBackoff backoff = new ExponentialBackoff(100, 1000);
+		long[] ceilings = { 100, 200, 400, 800, 1000, 1000 };
+		for (long ceiling : ceilings) {
+			long delay = backoff.nextDelayMs();
+			assertTrue(delay + " not in [" + ceiling / 2 + ", " + ceiling + "]",
+					delay >= ceiling / 2 && delay <= ceiling);
+		}
+		assertEquals(ceilings.length, backoff.getAttempts());
+	}
+
+	@Test
+	public void resetStartsOver() {
+		ExponentialBackoff backoff = new ExponentialBackoff(100, 1000);
+		for (int i = 0; i < 5; ++i) {
+			backoff.nextDelayMs();
+		}
+		backoff.reset();
+		assertEquals(0, backoff.getAttempts());
+		assertTrue(backoff.nextDelayMs() <= 100);
+	}
+
+	@Test
+	public void manyFailuresDontOverflow() {
+		ExponentialBackoff backoff = new ExponentialBackoff(1, 30000);
+		for (int i = 0; i < 100; ++i) {
+			long delay = backoff.nextDelayMs();
+			assertTrue(delay >= 0 && delay <= 30000);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsAnEmptyRange() {
+		new ExponentialBackoff(1000, 100);
+	}
+}
@@ -0,0 +1,141 @@
+package org.appspot.apprtc;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.webrtc.DataChannel;
+
+/**
+ * File transfer throughput between two FileTransferManagers over {@link LoopbackDataChannel}s,
+ * i.e. what the managers themselves cost (reading, framing, writing), without a network, for a few
+ * chunk sizes, and with some of the chunks lost on the way.
+ * <p>
+ * Run with: java org.appspot.apprtc.FileTransferBenchmark [file size in MB]
+ */
+public class FileTransferBenchmark {
+	private static final int[] CHUNK_SIZES = { 4 * 1024, FileTransferManager.DEFAULT_CHUNK_SIZE,
+			64 * 1024 };
+
+	private static final double[] LOSS_RATES = { 0, 0.001, 0.01 };
+
+	public static void main(String[] args) throws Exception {
+		int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+		File directory = Files.createTempDirectory("FileTransferBenchmark").toFile();
+		try {
+			File file = newFile(directory, megabytes << 20);
+			// Everything twice, the first time to warm up.
+			for (int pass = 0; pass < 2; ++pass) {
+				boolean print = pass == 1;
+				if (print) {
+					System.out.println("chunk size  loss   MB/s  chunks sent/needed");
+				}
+				for (int chunkSize : CHUNK_SIZES) {
+					for (double lossRate : LOSS_RATES) {
+						transfer(file, directory, chunkSize, lossRate, print);
+					}
+				}
+			}
+		}
+		finally {
+			delete(directory);
+		}
+	}
+
+	private static void transfer(File file, File directory, int chunkSize, final double lossRate,
+			boolean print) throws Exception {
+		File receiveDirectory = new File(directory, "received");
+		final CountDownLatch done = new CountDownLatch(2);
+		FileTransferManager.Listener listener = new FileTransferManager.Listener() {
+			public void onProgress(long transferId, String name, boolean outgoing, long bytesDone,
+					long size) {
+			}
+
+			public void onComplete(long transferId, String name, boolean outgoing, File file) {
+				done.countDown();
+			}
+
+			public void onFailed(long transferId, String name, boolean outgoing, String reason) {
+				throw new IllegalStateException(reason);
+			}
+		};
+		LoopbackDataChannel forward = new LoopbackDataChannel();
+		LoopbackDataChannel backward = new LoopbackDataChannel();
+		final FileTransferManager sender = new FileTransferManager(new DataChannelSender(forward),
+				directory, chunkSize, listener);
+		final FileTransferManager receiver = new FileTransferManager(new DataChannelSender(
+				backward), receiveDirectory, chunkSize, listener);
+		forward.setReceiver(new LoopbackDataChannel.Receiver() {
+			public void onMessage(DataChannel.Buffer buffer) {
+				receiver.onMessage(buffer);
+			}
+		});
+		backward.setReceiver(new LoopbackDataChannel.Receiver() {
+			public void onMessage(DataChannel.Buffer buffer) {
+				sender.onMessage(buffer);
+			}
+		});
+		final Random random = new Random(chunkSize);
+		final AtomicLong dataSent = new AtomicLong();
+		forward.setDropPolicy(new LoopbackDataChannel.DropPolicy() {
+			public boolean drop(ByteBuffer message) {
+				if (message.get(0) != ChunkCodec.DATA) {
+					return false;
+				}
+				dataSent.incrementAndGet();
+				return random.nextDouble() < lossRate;
+			}
+		});
+
+		long start = System.nanoTime();
+		sender.sendFile(file);
+		if (!done.await(10, TimeUnit.MINUTES)) {
+			throw new IllegalStateException("Transfer didn't finish");
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		sender.close();
+		receiver.close();
+		delete(receiveDirectory);
+
+		if (!print) {
+			return;
+		}
+		System.out.printf("%10d  %4.1f%%  %5.0f  %d/%d%n", chunkSize, lossRate * 100,
+				file.length() / seconds / (1 << 20), dataSent.get(), ChunkCodec.chunkCount(file
+						.length(), chunkSize));
+	}
+
+	private static File newFile(File directory, int size) throws IOException {
+		File file = new File(directory, "file.bin");
+		byte[] block = new byte[1 << 20];
+		Random random = new Random(size);
+		OutputStream out = new FileOutputStream(file);
+		try {
+			for (int written = 0; written < size; written += block.length) {
+				random.nextBytes(block);
+				out.write(block, 0, Math.min(block.length, size - written));
+			}
+		}
+		finally {
+			out.close();
+		}
+		return file;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
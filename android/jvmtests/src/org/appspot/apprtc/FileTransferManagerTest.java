@@ -0,0 +1,277 @@
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.webrtc.DataChannel;
+
+/** Two FileTransferManagers over a loopback channel that loses chunks and goes down midway. */
+public class FileTransferManagerTest {
+	private static final long TIMEOUT_MS = 10000;
+
+	private static final int CHUNK_SIZE = 4096;
+
+	// Long enough for the sender's window to fill several times over.
+	private static final int CHUNK_COUNT = 100;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	// Sender to receiver, and back.
+	private final LoopbackDataChannel forward = new LoopbackDataChannel();
+
+	private final LoopbackDataChannel backward = new LoopbackDataChannel();
+
+	private final RecordingListener senderEvents = new RecordingListener();
+
+	private final RecordingListener receiverEvents = new RecordingListener();
+
+	// The DATA chunks the receiver got, in order, and the frames of each kind it sent back.
+	private final List<Integer> delivered = Collections.synchronizedList(new ArrayList<Integer>());
+
+	private FileTransferManager sender;
+
+	private FileTransferManager receiver;
+
+	private File receiveDirectory;
+
+	@Before
+	public void setUp() throws Exception {
+		receiveDirectory = folder.newFolder("received");
+		sender = new FileTransferManager(new DataChannelSender(forward), folder.newFolder("sent"),
+				CHUNK_SIZE, senderEvents);
+		receiver = new FileTransferManager(new DataChannelSender(backward), receiveDirectory,
+				CHUNK_SIZE, receiverEvents);
+		forward.setReceiver(new LoopbackDataChannel.Receiver() {
+			public void onMessage(DataChannel.Buffer buffer) {
+				ChunkCodec.Frame frame = decode(buffer.data);
+				if (frame.kind == ChunkCodec.DATA) {
+					delivered.add(frame.seq);
+				}
+				receiver.onMessage(buffer);
+			}
+		});
+		backward.setReceiver(new LoopbackDataChannel.Receiver() {
+			public void onMessage(DataChannel.Buffer buffer) {
+				sender.onMessage(buffer);
+			}
+		});
+	}
+
+	@After
+	public void tearDown() {
+		sender.close();
+		receiver.close();
+	}
+
+	@Test
+	public void transfersAFile() throws Exception {
+		File file = newFile("file.bin", CHUNK_COUNT * CHUNK_SIZE - 100);
+		long id = sender.sendFile(file);
+		assertReceived(id, file);
+		assertEquals(CHUNK_COUNT, delivered.size());
+	}
+
+	@Test
+	public void transfersAnEmptyFile() throws Exception {
+		File file = newFile("empty", 0);
+		long id = sender.sendFile(file);
+		assertReceived(id, file);
+		assertTrue(delivered.isEmpty());
+	}
+
+	@Test
+	public void asksAgainForChunksLostBeforeTheLast() throws Exception {
+		dropChunksOnce(3, 40, 41);
+		File file = newFile("file.bin", CHUNK_COUNT * CHUNK_SIZE);
+		long id = sender.sendFile(file);
+		assertReceived(id, file);
+		// Once the last chunk was in, the receiver asked for chunk 3 on, which were sent again, in
+		// order, until the receiver had them all (the duplicates ignored) and said so.
+		int first = delivered.indexOf(CHUNK_COUNT - 1) + 1;
+		List<Integer> resent = delivered.subList(first, delivered.size());
+		assertTrue(resent.toString(), resent.size() >= 41 - 3 + 1);
+		for (int i = 0; i < resent.size(); ++i) {
+			assertEquals(3 + i, (int) resent.get(i));
+		}
+	}
+
+	@Test
+	public void probesForTheLostLastChunk() throws Exception {
+		// Nothing tells the receiver it is missing: the sender's probe, unanswered, finds out.
+		dropChunksOnce(CHUNK_COUNT - 1);
+		File file = newFile("file.bin", CHUNK_COUNT * CHUNK_SIZE);
+		long id = sender.sendFile(file);
+		assertReceived(id, file);
+		assertEquals(CHUNK_COUNT - 1, (int) delivered.get(delivered.size() - 1));
+	}
+
+	@Test
+	public void resumesWhereItLeftOffAfterReconnecting() throws Exception {
+		final int chunksBeforeDrop = 30;
+		// The link goes down after that many chunks, both ways.
+		forward.setDropPolicy(new LoopbackDataChannel.DropPolicy() {
+			int data = 0;
+
+			public boolean drop(ByteBuffer message) {
+				if (decode(message).kind == ChunkCodec.DATA && ++data > chunksBeforeDrop) {
+					forward.setConnected(false);
+					backward.setConnected(false);
+					return true;
+				}
+				return false;
+			}
+		});
+		File file = newFile("file.bin", CHUNK_COUNT * CHUNK_SIZE);
+		long id = sender.sendFile(file);
+		awaitDelivered(chunksBeforeDrop);
+		// Whatever was in flight is lost; nothing more gets through.
+		senderEvents.assertNoOutcome(200);
+		assertEquals(chunksBeforeDrop, delivered.size());
+
+		forward.setDropPolicy(null);
+		forward.setConnected(true);
+		backward.setConnected(true);
+		sender.onReconnected();
+		assertReceived(id, file);
+		// Chunks before the drop weren't sent again.
+		assertEquals(CHUNK_COUNT, delivered.size());
+	}
+
+	@Test
+	public void answersARepeatedStartOnceComplete() throws Exception {
+		// The receiver's COMPLETE is lost, so the sender carries on probing.
+		backward.setDropPolicy(new LoopbackDataChannel.DropPolicy() {
+			boolean dropped = false;
+
+			public boolean drop(ByteBuffer message) {
+				if (!dropped && decode(message).kind == ChunkCodec.COMPLETE) {
+					dropped = true;
+					return true;
+				}
+				return false;
+			}
+		});
+		File file = newFile("file.bin", 10 * CHUNK_SIZE);
+		long id = sender.sendFile(file);
+		assertEquals("complete in " + id, receiverEvents.nextOutcome());
+		senderEvents.assertNoOutcome(200);
+
+		sender.onReconnected();
+		assertEquals("complete out " + id, senderEvents.nextOutcome());
+		// Answered from what was received, not received again.
+		receiverEvents.assertNoOutcome(200);
+		assertEquals(10, delivered.size());
+		assertEquals(1, receiveDirectory.list().length);
+	}
+
+	// Drop each DATA chunk in |seqs| the first time it is sent.
+	private void dropChunksOnce(int... seqs) {
+		final Set<Integer> toDrop = new HashSet<Integer>();
+		for (int seq : seqs) {
+			toDrop.add(seq);
+		}
+		forward.setDropPolicy(new LoopbackDataChannel.DropPolicy() {
+			public synchronized boolean drop(ByteBuffer message) {
+				ChunkCodec.Frame frame = decode(message);
+				return frame.kind == ChunkCodec.DATA && toDrop.remove(frame.seq);
+			}
+		});
+	}
+
+	private void assertReceived(long id, File sent) throws Exception {
+		assertEquals("complete in " + id, receiverEvents.nextOutcome());
+		assertEquals("complete out " + id, senderEvents.nextOutcome());
+		File received = receiverEvents.lastFile;
+		assertEquals(new File(receiveDirectory, sent.getName()), received);
+		assertArrayEquals(Files.readAllBytes(sent.toPath()), Files.readAllBytes(received.toPath()));
+		assertEquals(1, receiveDirectory.list().length);
+		// Nothing to report for an empty file.
+		assertEquals(sent.length() > 0, receiverEvents.progressed);
+	}
+
+	private void awaitDelivered(int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+		while (delivered.size() < count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertTrue(delivered.size() + " of " + count + " chunks", delivered.size() >= count);
+	}
+
+	private File newFile(String name, int size) throws IOException {
+		byte[] data = new byte[size];
+		new Random(size).nextBytes(data);
+		File file = new File(folder.getRoot(), name);
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(data);
+		}
+		finally {
+			out.close();
+		}
+		return file;
+	}
+
+	private static ChunkCodec.Frame decode(ByteBuffer message) {
+		ChunkCodec.Frame frame = new ChunkCodec.Frame();
+		ChunkCodec.decode(message.duplicate(), frame);
+		return frame;
+	}
+
+	// Outcomes as "complete in|out <id>" or "failed in|out <id> <reason>".
+	private static class RecordingListener implements FileTransferManager.Listener {
+		private final BlockingQueue<String> outcomes = new LinkedBlockingQueue<String>();
+
+		volatile File lastFile;
+
+		volatile boolean progressed;
+
+		public void onProgress(long transferId, String name, boolean outgoing, long bytesDone,
+				long size) {
+			progressed = true;
+		}
+
+		public void onComplete(long transferId, String name, boolean outgoing, File file) {
+			lastFile = file;
+			outcomes.add("complete " + (outgoing ? "out " : "in ") + transferId);
+		}
+
+		public void onFailed(long transferId, String name, boolean outgoing, String reason) {
+			outcomes.add("failed " + (outgoing ? "out " : "in ") + transferId + " " + reason);
+		}
+
+		String nextOutcome() throws InterruptedException {
+			String outcome = outcomes.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			assertNotNull("No outcome within " + TIMEOUT_MS + "ms", outcome);
+			return outcome;
+		}
+
+		void assertNoOutcome(long ms) throws InterruptedException {
+			assertNull(outcomes.poll(ms, TimeUnit.MILLISECONDS));
+		}
+	}
+}
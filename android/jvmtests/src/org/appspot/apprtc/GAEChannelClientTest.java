@@ -0,0 +1,197 @@
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Drives GAEChannelClient against a {@link SocketIoStandIn} that drops and refuses connections. */
+public class GAEChannelClientTest {
+	private static final long INITIAL_DELAY_MS = 20;
+
+	private SocketIoStandIn server;
+
+	private ExecutorService callbackExecutor;
+
+	private final List<GAEChannelClient> clients = new ArrayList<GAEChannelClient>();
+
+	@Before
+	public void setUp() throws Exception {
+		server = new SocketIoStandIn();
+		callbackExecutor = Executors.newSingleThreadExecutor();
+	}
+
+	@After
+	public void tearDown() {
+		for (GAEChannelClient client : clients) {
+			client.close();
+		}
+		server.close();
+		callbackExecutor.shutdownNow();
+	}
+
+	@Test
+	public void joinsTheRoomAndRelaysMessages() throws Exception {
+		RecordingMessageHandler first = new RecordingMessageHandler();
+		GAEChannelClient firstClient = connect(first, newBackoff());
+		assertEquals("created", first.next());
+		assertTrue(firstClient.isInitiator());
+
+		RecordingMessageHandler second = new RecordingMessageHandler();
+		GAEChannelClient secondClient = connect(second, newBackoff());
+		assertEquals("joined", second.next());
+		assertEquals("join", first.next());
+
+		firstClient.sendMessage("hello");
+		assertEquals("message:hello", second.next());
+		secondClient.sendMessage("hi");
+		assertEquals("message:hi", first.next());
+
+		server.sendToAll("2::");
+		awaitHeartbeats(2);
+	}
+
+	@Test
+	public void rejoinsAfterTheConnectionDrops() throws Exception {
+		RecordingMessageHandler first = new RecordingMessageHandler();
+		GAEChannelClient firstClient = connect(first, newBackoff());
+		assertEquals("created", first.next());
+		RecordingMessageHandler second = new RecordingMessageHandler();
+		GAEChannelClient secondClient = connect(second, newBackoff());
+		assertEquals("joined", second.next());
+		assertEquals("join", first.next());
+
+		server.getSessions().get(0).drop(false);
+		assertEquals("close", first.next());
+		assertEquals("rejoined", first.next());
+		// The other party hears the new session join, as the same party coming back.
+		assertEquals("rejoined", second.next());
+
+		firstClient.sendMessage("again");
+		assertEquals("message:again", second.next());
+		secondClient.sendMessage("welcome back");
+		assertEquals("message:welcome back", first.next());
+		first.assertQuiet(100);
+		second.assertQuiet(0);
+	}
+
+	@Test
+	public void backsOffWhileRefusedAndJoinsOnceAccepted() throws Exception {
+		server.setRefusing(true);
+		RecordingMessageHandler handler = new RecordingMessageHandler();
+		connect(handler, newBackoff());
+		awaitHandshakes(6);
+		// The first try is immediate; retry i waits at least half of INITIAL_DELAY_MS << i.
+		assertGapsBackOff(server.getHandshakeNanos(), 0, 0, 5);
+		handler.assertQuiet(0);
+
+		server.setRefusing(false);
+		assertEquals("created", handler.next());
+	}
+
+	@Test
+	public void keepsBackingOffWhileTheOldSessionHoldsTheRoom() throws Exception {
+		RecordingMessageHandler first = new RecordingMessageHandler();
+		ExponentialBackoff backoff = newBackoff();
+		connect(first, backoff);
+		assertEquals("created", first.next());
+		RecordingMessageHandler second = new RecordingMessageHandler();
+		connect(second, newBackoff());
+		assertEquals("joined", second.next());
+		assertEquals("join", first.next());
+
+		// The server hasn't noticed the drop: the room stays full and each new session is refused
+		// a place in it, though the socket itself connects fine.
+		int handshakesBefore = server.getHandshakeNanos().size();
+		server.getSessions().get(0).drop(true);
+		assertEquals("close", first.next());
+		awaitHandshakes(handshakesBefore + 5);
+		// The first of these followed retry 0, on the drop.
+		assertGapsBackOff(server.getHandshakeNanos(), handshakesBefore, 1, 4);
+		assertEquals(2, server.getRoomSize());
+
+		server.expireLingering();
+		assertEquals("rejoined", first.next());
+		assertEquals("rejoined", second.next());
+		assertEquals(0, backoff.getAttempts());
+		// The sessions turned away were closed, not left answering heartbeats.
+		long deadline = System.currentTimeMillis() + RecordingMessageHandler.TIMEOUT_MS;
+		while (server.getSessions().size() != 2) {
+			if (System.currentTimeMillis() > deadline) {
+				fail(server.getSessions().size() + " sessions still open");
+			}
+			Thread.sleep(10);
+		}
+	}
+
+	@Test
+	public void malformedEventDoesNotEndTheSession() throws Exception {
+		RecordingMessageHandler first = new RecordingMessageHandler();
+		connect(first, newBackoff());
+		assertEquals("created", first.next());
+
+		server.sendToAll("5:::{\"name\":");
+		server.sendToAll("5:::not json");
+		RecordingMessageHandler second = new RecordingMessageHandler();
+		connect(second, newBackoff());
+		assertEquals("join", first.next());
+		assertEquals("joined", second.next());
+		assertEquals(2, server.getHandshakeNanos().size());
+		first.assertQuiet(100);
+	}
+
+	private GAEChannelClient connect(RecordingMessageHandler handler, ExponentialBackoff backoff) {
+		GAEChannelClient client = new GAEChannelClient(server.getUrl(), backoff, callbackExecutor,
+				handler);
+		clients.add(client);
+		return client;
+	}
+
+	private static ExponentialBackoff newBackoff() {
+		return new ExponentialBackoff(INITIAL_DELAY_MS, 10000);
+	}
+
+	private void awaitHandshakes(int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + RecordingMessageHandler.TIMEOUT_MS;
+		while (server.getHandshakeNanos().size() < count) {
+			if (System.currentTimeMillis() > deadline) {
+				fail("Only " + server.getHandshakeNanos().size() + " of " + count + " handshakes");
+			}
+			Thread.sleep(5);
+		}
+	}
+
+	private void awaitHeartbeats(int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + RecordingMessageHandler.TIMEOUT_MS;
+		while (server.getHeartbeatsAnswered() < count) {
+			if (System.currentTimeMillis() > deadline) {
+				fail("Only " + server.getHeartbeatsAnswered() + " of " + count + " heartbeats");
+			}
+			Thread.sleep(5);
+		}
+	}
+
+	// The |count| gaps after handshake |from| are retries |firstRetry|, |firstRetry| + 1, ... of
+	// one backoff sequence, and retry i comes at least (INITIAL_DELAY_MS << i) / 2 after the
+	// previous try. Were the backoff reset in between, they would all be near INITIAL_DELAY_MS.
+	private static void assertGapsBackOff(List<Long> handshakeNanos, int from, int firstRetry,
+			int count) {
+		for (int i = 0; i < count; ++i) {
+			int retry = firstRetry + i;
+			long gapMs = TimeUnit.NANOSECONDS.toMillis(handshakeNanos.get(from + i + 1)
+					- handshakeNanos.get(from + i));
+			long minimumMs = (INITIAL_DELAY_MS << retry) / 2;
+			assertTrue("Retry " + retry + " after " + gapMs + "ms, expected at least " + minimumMs,
+					gapMs >= minimumMs);
+		}
+	}
+}
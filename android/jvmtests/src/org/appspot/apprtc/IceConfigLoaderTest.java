@@ -0,0 +1,304 @@
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.webrtc.PeerConnection;
+
+/** IceConfigLoader against a stand-in configuration endpoint. */
+public class IceConfigLoaderTest {
+	private static final long TIMEOUT_MS = 5000;
+
+	private static final String CONFIG = "{\"ttl\": 3600, \"iceServers\": ["
+			+ "{\"url\": \"stun:stun.example.org\"},"
+			+ "{\"url\": \"turn:turn.example.org\", \"username\": \"u\", \"credential\": \"p\"}]}";
+
+	private static final String OTHER_CONFIG =
+			"{\"iceServers\": [{\"url\": \"stun:other.example.org\"}]}";
+
+	private static final List<PeerConnection.IceServer> FALLBACK = Collections
+			.singletonList(new PeerConnection.IceServer("stun:fallback.example.org"));
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final AtomicInteger requests = new AtomicInteger();
+
+	private volatile int status = 200;
+
+	private volatile byte[] body;
+
+	private StandInServer server;
+
+	private File cacheFile;
+
+	// Servers reported by refreshes, by their URIs joined with commas.
+	private final BlockingQueue<String> refreshed = new LinkedBlockingQueue<String>();
+
+	private final IceConfigLoader.Listener listener = new IceConfigLoader.Listener() {
+		public void onIceServersRefreshed(List<PeerConnection.IceServer> iceServers) {
+			refreshed.add(uris(iceServers));
+		}
+	};
+
+	@Before
+	public void setUp() throws Exception {
+		body = CONFIG.getBytes("UTF-8");
+		server = new StandInServer() {
+			void handle(Request request) throws IOException {
+				requests.incrementAndGet();
+				respond(request.out, status, body);
+			}
+		};
+		cacheFile = new File(folder.getRoot(), "cache/iceconfig.json");
+	}
+
+	@After
+	public void tearDown() {
+		server.close();
+	}
+
+	@Test
+	public void firstLoadFallsBackAndRefreshesForNextTime() throws Exception {
+		IceConfigLoader loader = newLoader(IceConfigLoader.DEFAULT_TTL_MS);
+		assertSame(FALLBACK, loader.load(FALLBACK, listener));
+		assertEquals("stun:stun.example.org,turn:turn.example.org", nextRefresh());
+
+		List<PeerConnection.IceServer> servers = loader.load(FALLBACK, listener);
+		assertEquals("stun:stun.example.org,turn:turn.example.org", uris(servers));
+		assertEquals("u", servers.get(1).username);
+		assertEquals("p", servers.get(1).password);
+		assertNoRefresh();
+		assertEquals(1, requests.get());
+	}
+
+	@Test
+	public void freshCacheIsUsedWithoutFetching() throws Exception {
+		writeCacheFile(OTHER_CONFIG, 0);
+		IceConfigLoader loader = newLoader(IceConfigLoader.DEFAULT_TTL_MS);
+		assertEquals("stun:other.example.org", uris(loader.load(FALLBACK, listener)));
+		assertNoRefresh();
+		assertEquals(0, requests.get());
+	}
+
+	@Test
+	public void staleCacheIsUsedAndRefreshed() throws Exception {
+		writeCacheFile("{\"ttl\": 60, \"iceServers\": [{\"url\": \"stun:old.example.org\"}]}",
+				61000);
+		IceConfigLoader loader = newLoader(IceConfigLoader.DEFAULT_TTL_MS);
+		assertEquals("stun:old.example.org", uris(loader.load(FALLBACK, listener)));
+		assertEquals("stun:stun.example.org,turn:turn.example.org", nextRefresh());
+		assertEquals("stun:stun.example.org,turn:turn.example.org", uris(loader.load(FALLBACK,
+				listener)));
+	}
+
+	@Test
+	public void defaultTtlAppliesWithoutOne() throws Exception {
+		writeCacheFile(OTHER_CONFIG, 2000);
+		assertEquals("stun:other.example.org", uris(newLoader(3000).load(FALLBACK, listener)));
+		assertNoRefresh();
+		assertEquals("stun:other.example.org", uris(newLoader(1000).load(FALLBACK, listener)));
+		assertNotNull(nextRefresh());
+	}
+
+	@Test
+	public void cacheFromTheFutureIsStale() throws Exception {
+		writeCacheFile(CONFIG, -60000);
+		newLoader(IceConfigLoader.DEFAULT_TTL_MS).load(FALLBACK, listener);
+		assertNotNull(nextRefresh());
+	}
+
+	@Test
+	public void corruptCacheFallsBackAndIsReplaced() throws Exception {
+		writeCacheFile("{\"ttl\": 3600, \"iceServers\": [{\"url\": ", 0);
+		IceConfigLoader loader = newLoader(IceConfigLoader.DEFAULT_TTL_MS);
+		assertSame(FALLBACK, loader.load(FALLBACK, listener));
+		assertNotNull(nextRefresh());
+		assertEquals("stun:stun.example.org,turn:turn.example.org", uris(loader.load(FALLBACK,
+				listener)));
+	}
+
+	@Test
+	public void emptyServerListInCacheFallsBack() throws Exception {
+		writeCacheFile("{\"ttl\": 3600, \"iceServers\": []}", 0);
+		assertSame(FALLBACK, newLoader(IceConfigLoader.DEFAULT_TTL_MS).load(FALLBACK, listener));
+	}
+
+	@Test
+	public void errorResponseLeavesTheCacheAlone() throws Exception {
+		writeCacheFile(OTHER_CONFIG, 0);
+		status = 500;
+		assertFetchFails(newLoader(IceConfigLoader.DEFAULT_TTL_MS), "HTTP 500");
+		assertCacheHolds(OTHER_CONFIG);
+	}
+
+	@Test
+	public void failedRefreshKeepsTheCacheAndRetriesNextLoad() throws Exception {
+		writeCacheFile(OTHER_CONFIG, TimeUnit.DAYS.toMillis(2));
+		status = 404;
+		IceConfigLoader loader = newLoader(IceConfigLoader.DEFAULT_TTL_MS);
+		assertEquals("stun:other.example.org", uris(loader.load(FALLBACK, listener)));
+		awaitRequests(1);
+		assertNoRefresh();
+		assertCacheHolds(OTHER_CONFIG);
+
+		status = 200;
+		// The failed refresh may not quite have finished; until it has, load() starts none.
+		long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+		while (refreshed.isEmpty() && System.currentTimeMillis() < deadline) {
+			assertEquals("stun:other.example.org", uris(loader.load(FALLBACK, listener)));
+			Thread.sleep(10);
+		}
+		assertNotNull(nextRefresh());
+	}
+
+	@Test
+	public void oversizedResponseIsRejected() throws Exception {
+		writeCacheFile(OTHER_CONFIG, 0);
+		// Well-formed, just too big.
+		char[] padding = new char[65 * 1024];
+		Arrays.fill(padding, ' ');
+		body = ("{\"iceServers\": [{\"url\": \"stun:big.example.org\"}]" + new String(padding) + "}")
+				.getBytes("UTF-8");
+		assertFetchFails(newLoader(IceConfigLoader.DEFAULT_TTL_MS), "too large");
+		assertCacheHolds(OTHER_CONFIG);
+	}
+
+	@Test
+	public void malformedResponseIsRejected() throws Exception {
+		writeCacheFile(OTHER_CONFIG, 0);
+		body = "<html>Sign in to continue</html>".getBytes("UTF-8");
+		assertFetchFails(newLoader(IceConfigLoader.DEFAULT_TTL_MS), "Malformed");
+		assertCacheHolds(OTHER_CONFIG);
+	}
+
+	@Test
+	public void failedRenameLeavesNoTemporaryFile() throws Exception {
+		// A non-empty directory where the cache file should be can't be replaced by a rename.
+		assertTrue(new File(cacheFile, "in the way").mkdirs());
+		assertFetchFails(newLoader(IceConfigLoader.DEFAULT_TTL_MS), "Can't replace");
+		assertFalse(new File(cacheFile.getPath() + ".tmp").exists());
+	}
+
+	@Test
+	public void readersNeverSeeAHalfWrittenCache() throws Exception {
+		// Big enough that a write takes several system calls.
+		StringBuilder config = new StringBuilder("{\"ttl\": 3600, \"iceServers\": [");
+		for (int i = 0; i < 500; ++i) {
+			config.append(i == 0 ? "" : ",").append("{\"url\": \"stun:s").append(i)
+					.append(".example.org\"}");
+		}
+		body = config.append("]}").toString().getBytes("UTF-8");
+		final IceConfigLoader loader = newLoader(IceConfigLoader.DEFAULT_TTL_MS);
+		loader.fetch();
+		final AtomicBoolean done = new AtomicBoolean();
+		Thread writer = new Thread(new Runnable() {
+			public void run() {
+				try {
+					for (int i = 0; i < 100; ++i) {
+						loader.fetch();
+					}
+				}
+				catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+				finally {
+					done.set(true);
+				}
+			}
+		});
+		writer.start();
+		int loads = 0;
+		while (!done.get()) {
+			assertEquals(500, loader.load(FALLBACK, listener).size());
+			++loads;
+		}
+		writer.join();
+		assertTrue(loads > 0);
+		assertFalse(new File(cacheFile.getPath() + ".tmp").exists());
+	}
+
+	private IceConfigLoader newLoader(long defaultTtlMs) {
+		return new IceConfigLoader(server.getUrl() + "/iceconfig.json", cacheFile, defaultTtlMs);
+	}
+
+	// Write |config| to the cache file and make it |ageMs| old.
+	private void writeCacheFile(String config, long ageMs) throws IOException {
+		cacheFile.getParentFile().mkdirs();
+		OutputStream out = new FileOutputStream(cacheFile);
+		try {
+			out.write(config.getBytes("UTF-8"));
+		}
+		finally {
+			out.close();
+		}
+		assertTrue(cacheFile.setLastModified(Math.max(0, System.currentTimeMillis() - ageMs)));
+	}
+
+	private void assertCacheHolds(String config) throws IOException {
+		byte[] bytes = Files.readAllBytes(cacheFile.toPath());
+		assertEquals(config, new String(bytes, "UTF-8"));
+	}
+
+	private static void assertFetchFails(IceConfigLoader loader, String message) {
+		try {
+			loader.fetch();
+			fail("Fetched");
+		}
+		catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains(message));
+		}
+	}
+
+	private void awaitRequests(int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+		while (requests.get() < count) {
+			if (System.currentTimeMillis() > deadline) {
+				fail("Only " + requests.get() + " of " + count + " requests");
+			}
+			Thread.sleep(5);
+		}
+	}
+
+	private String nextRefresh() throws InterruptedException {
+		String servers = refreshed.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		assertNotNull("No refresh within " + TIMEOUT_MS + "ms", servers);
+		return servers;
+	}
+
+	private void assertNoRefresh() throws InterruptedException {
+		assertNull(refreshed.poll(200, TimeUnit.MILLISECONDS));
+	}
+
+	private static String uris(List<PeerConnection.IceServer> servers) {
+		StringBuilder uris = new StringBuilder();
+		for (PeerConnection.IceServer server : servers) {
+			uris.append(uris.length() == 0 ? "" : ",").append(server.uri);
+		}
+		return uris.toString();
+	}
+}
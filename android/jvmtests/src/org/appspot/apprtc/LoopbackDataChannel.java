@@ -0,0 +1,103 @@
+package org.appspot.apprtc;
+
+import java.nio.ByteBuffer;
+
+import org.webrtc.DataChannel;
+
+/**
+ * One direction of a data channel, in process: messages sent on it are handed straight to the
+ * receiving end's {@link Receiver}, unless the test drops them. Always OPEN, with nothing ever
+ * buffered, so a DataChannelSender on it sends right away.
+ */
+class LoopbackDataChannel extends DataChannel {
+	/** The receiving end. */
+	interface Receiver {
+		void onMessage(DataChannel.Buffer buffer);
+	}
+
+	/** Decides which messages are lost; |message| is the whole message, not to be consumed. */
+	interface DropPolicy {
+		boolean drop(ByteBuffer message);
+	}
+
+	private static final DropPolicy DROP_NOTHING = new DropPolicy() {
+		public boolean drop(ByteBuffer message) {
+			return false;
+		}
+	};
+
+	private volatile Receiver receiver;
+
+	private volatile DropPolicy dropPolicy = DROP_NOTHING;
+
+	private volatile boolean connected = true;
+
+	private long messagesSent = 0;
+
+	private long messagesDropped = 0;
+
+	LoopbackDataChannel() {
+		// No native channel behind it; the methods that would use it are overridden.
+		super(0);
+	}
+
+	void setReceiver(Receiver receiver) {
+		this.receiver = receiver;
+	}
+
+	void setDropPolicy(DropPolicy dropPolicy) {
+		this.dropPolicy = dropPolicy == null ? DROP_NOTHING : dropPolicy;
+	}
+
+	/** While not |connected|, everything sent is lost, as when the network goes away. */
+	void setConnected(boolean connected) {
+		this.connected = connected;
+	}
+
+	synchronized long getMessagesSent() {
+		return messagesSent;
+	}
+
+	synchronized long getMessagesDropped() {
+		return messagesDropped;
+	}
+
+	@Override
+	public String label() {
+		return "loopback";
+	}
+
+	@Override
+	public State state() {
+		return State.OPEN;
+	}
+
+	@Override
+	public long bufferedAmount() {
+		return 0;
+	}
+
+	@Override
+	public boolean send(DataChannel.Buffer buffer) {
+		boolean drop = !connected || dropPolicy.drop(buffer.data.duplicate());
+		synchronized (this) {
+			++messagesSent;
+			if (drop) {
+				++messagesDropped;
+			}
+		}
+		if (!drop) {
+			receiver.onMessage(buffer);
+		}
+		// Accepted either way: lost messages are lost on the way, not refused.
+		return true;
+	}
+
+	@Override
+	public void close() {
+	}
+
+	@Override
+	public void dispose() {
+	}
+}
@@ -0,0 +1,60 @@
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records {@link MessageHandler} callbacks as strings ("created", "join", "joined",
+ * "message:<data>", "close", "rejoined", "error:<description>") for tests to wait on in order.
+ */
+class RecordingMessageHandler implements MessageHandler {
+	static final long TIMEOUT_MS = 5000;
+
+	private final BlockingQueue<String> events = new LinkedBlockingQueue<String>();
+
+	/** The next callback, failing if none comes within TIMEOUT_MS. */
+	String next() throws InterruptedException {
+		String event = events.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		if (event == null) {
+			fail("No callback within " + TIMEOUT_MS + "ms");
+		}
+		return event;
+	}
+
+	/** Fail if any callback comes within |ms|. */
+	void assertQuiet(long ms) throws InterruptedException {
+		assertNull(events.poll(ms, TimeUnit.MILLISECONDS));
+	}
+
+	public void whenIJoinTheRoomCreatedByMe() {
+		events.add("created");
+	}
+
+	public void whenAnotherPartyJoinedMyRoom() {
+		events.add("join");
+	}
+
+	public void whenIJoinedARoomCreatedByAnotherParty() {
+		events.add("joined");
+	}
+
+	public void onMessage(String data) {
+		events.add("message:" + data);
+	}
+
+	public void onClose() {
+		events.add("close");
+	}
+
+	public void onRejoined() {
+		events.add("rejoined");
+	}
+
+	public void onError(int code, String description) {
+		events.add("error:" + description);
+	}
+}
@@ -0,0 +1,171 @@
+package org.appspot.apprtc;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * The server end of a WebSocket connection, for stand-in servers: the opening handshake and raw
+ * RFC 6455 framing, with nothing checked beyond what tests assert themselves, so that tests can
+ * also send what a well-behaved server wouldn't.
+ */
+class ServerWebSocket {
+	static final int OPCODE_CONTINUATION = 0x0;
+
+	static final int OPCODE_TEXT = 0x1;
+
+	static final int OPCODE_CLOSE = 0x8;
+
+	static final int OPCODE_PING = 0x9;
+
+	static final int OPCODE_PONG = 0xA;
+
+	private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+	/** One frame as received, unmasked. */
+	static class Frame {
+		boolean fin;
+
+		int opcode;
+
+		boolean masked;
+
+		byte[] payload;
+
+		String text() throws IOException {
+			return new String(payload, "UTF-8");
+		}
+	}
+
+	private final StandInServer.Request request;
+
+	private final InputStream in;
+
+	private final OutputStream out;
+
+	/** Answer |request|, which must be a WebSocket upgrade, with 101 Switching Protocols. */
+	ServerWebSocket(StandInServer.Request request) throws IOException {
+		this.request = request;
+		this.in = request.in;
+		this.out = request.out;
+		String key = request.headers.get("sec-websocket-key");
+		if (key == null || !"websocket".equalsIgnoreCase(request.headers.get("upgrade"))) {
+			StandInServer.respond(out, 400, "Not a WebSocket upgrade");
+			throw new IOException("Not a WebSocket upgrade: " + request.path);
+		}
+		String head = "HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\n"
+				+ "Connection: Upgrade\r\nSec-WebSocket-Accept: " + accept(key) + "\r\n\r\n";
+		write(head.getBytes("US-ASCII"));
+	}
+
+	/** The next frame; null once the client has gone away. */
+	Frame readFrame() throws IOException {
+		int b0 = in.read();
+		if (b0 < 0) {
+			return null;
+		}
+		int b1 = readByte();
+		Frame frame = new Frame();
+		frame.fin = (b0 & 0x80) != 0;
+		frame.opcode = b0 & 0x0f;
+		frame.masked = (b1 & 0x80) != 0;
+		long length = b1 & 0x7f;
+		if (length == 126) {
+			length = (readByte() << 8) | readByte();
+		} else if (length == 127) {
+			length = 0;
+			for (int i = 0; i < 8; ++i) {
+				length = (length << 8) | readByte();
+			}
+		}
+		byte[] mask = new byte[4];
+		if (frame.masked) {
+			readFully(mask);
+		}
+		frame.payload = new byte[(int) length];
+		readFully(frame.payload);
+		for (int i = 0; i < frame.payload.length; ++i) {
+			frame.payload[i] ^= mask[i & 3];
+		}
+		return frame;
+	}
+
+	void sendText(String text) throws IOException {
+		sendFrame(true, OPCODE_TEXT, text.getBytes("UTF-8"));
+	}
+
+	/** Send a close frame with |code|. */
+	void sendClose(int code) throws IOException {
+		sendFrame(true, OPCODE_CLOSE, new byte[] { (byte) (code >> 8), (byte) code });
+	}
+
+	/** Send one unmasked frame, as servers do. */
+	void sendFrame(boolean fin, int opcode, byte[] payload) throws IOException {
+		int length = payload.length;
+		byte[] header;
+		if (length < 126) {
+			header = new byte[] { 0, (byte) length };
+		} else if (length <= 0xffff) {
+			header = new byte[] { 0, 126, (byte) (length >> 8), (byte) length };
+		} else {
+			header = new byte[10];
+			header[1] = 127;
+			for (int i = 0; i < 8; ++i) {
+				header[2 + i] = (byte) ((long) length >> (56 - 8 * i));
+			}
+		}
+		header[0] = (byte) ((fin ? 0x80 : 0) | opcode);
+		byte[] frame = Arrays.copyOf(header, header.length + length);
+		System.arraycopy(payload, 0, frame, header.length, length);
+		write(frame);
+	}
+
+	/** Write |bytes| as they are, e.g. a malformed frame header. */
+	synchronized void write(byte[] bytes) throws IOException {
+		out.write(bytes);
+		out.flush();
+	}
+
+	/** Drop the connection without a closing handshake, as a network failure would. */
+	void abort() {
+		StandInServer.closeQuietly(request.socket);
+	}
+
+	private int readByte() throws IOException {
+		int b = in.read();
+		if (b < 0) {
+			throw new EOFException();
+		}
+		return b;
+	}
+
+	private void readFully(byte[] buffer) throws IOException {
+		int pos = 0;
+		while (pos < buffer.length) {
+			int read = in.read(buffer, pos, buffer.length - pos);
+			if (read < 0) {
+				throw new EOFException();
+			}
+			pos += read;
+		}
+	}
+
+	static String accept(String key) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(
+					(key + ACCEPT_GUID).getBytes("US-ASCII"));
+			return Base64.getEncoder().encodeToString(digest);
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
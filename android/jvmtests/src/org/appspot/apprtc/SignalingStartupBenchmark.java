@@ -0,0 +1,137 @@
+package org.appspot.apprtc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+
+/**
+ * Startup time and memory of the signaling transport, against a {@link SocketIoStandIn} on
+ * loopback: how long SocketIoClient takes from connect() to a session, and to joining the room,
+ * and the heap and threads each connected client holds. The WebView transport it replaced can
+ * only be measured on a device (e.g. with "adb shell dumpsys meminfo"), so it isn't compared here.
+ * <p>
+ * Run with: java org.appspot.apprtc.SignalingStartupBenchmark [runs] [clients]
+ */
+public class SignalingStartupBenchmark {
+	public static void main(String[] args) throws Exception {
+		int runs = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		int clients = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+		SocketIoStandIn server = new SocketIoStandIn();
+		try {
+			long[] connectNanos = new long[runs];
+			long[] joinNanos = new long[runs];
+			for (int i = 0; i < runs; ++i) {
+				long[] times = connectAndJoin(server);
+				connectNanos[i] = times[0];
+				joinNanos[i] = times[1];
+			}
+			System.out.println("First connect (cold): " + micros(connectNanos[0]) + ", joined "
+					+ micros(joinNanos[0]));
+			report("connect", Arrays.copyOfRange(connectNanos, 1, runs));
+			report("join", Arrays.copyOfRange(joinNanos, 1, runs));
+			measureFootprint(server, clients);
+		}
+		finally {
+			server.close();
+		}
+	}
+
+	// The times from connect() to onConnect() and to the room event, in ns; leaves the room.
+	private static long[] connectAndJoin(SocketIoStandIn server) throws InterruptedException {
+		final CountDownLatch connected = new CountDownLatch(1);
+		final CountDownLatch joined = new CountDownLatch(1);
+		final long[] times = new long[2];
+		final long startNanos = System.nanoTime();
+		SocketIoClient client = new SocketIoClient(server.getUrl(), new SocketIoClient.Listener() {
+			public void onConnect() {
+				times[0] = System.nanoTime() - startNanos;
+				connected.countDown();
+			}
+
+			public void onEvent(String name, JSONArray args) {
+				times[1] = System.nanoTime() - startNanos;
+				joined.countDown();
+			}
+
+			public void onDisconnect(String reason) {
+			}
+
+			public void onError(String description) {
+				throw new RuntimeException(description);
+			}
+		});
+		client.connect();
+		client.emit("create or join", "room");
+		if (!connected.await(10, TimeUnit.SECONDS) || !joined.await(10, TimeUnit.SECONDS)) {
+			throw new IllegalStateException("Stand-in didn't answer");
+		}
+		client.disconnect();
+		while (server.getRoomSize() > 0) {
+			Thread.sleep(1);
+		}
+		return times;
+	}
+
+	private static void measureFootprint(SocketIoStandIn server, int count) throws Exception {
+		Runtime runtime = Runtime.getRuntime();
+		long heapBefore = usedHeap(runtime);
+		int threadsBefore = Thread.activeCount();
+		final CountDownLatch connected = new CountDownLatch(count);
+		List<SocketIoClient> clients = new ArrayList<SocketIoClient>();
+		for (int i = 0; i < count; ++i) {
+			SocketIoClient client = new SocketIoClient(server.getUrl(),
+					new SocketIoClient.Listener() {
+						public void onConnect() {
+							connected.countDown();
+						}
+
+						public void onEvent(String name, JSONArray args) {
+						}
+
+						public void onDisconnect(String reason) {
+						}
+
+						public void onError(String description) {
+							throw new RuntimeException(description);
+						}
+					});
+			client.connect();
+			clients.add(client);
+		}
+		if (!connected.await(30, TimeUnit.SECONDS)) {
+			throw new IllegalStateException("Stand-in didn't answer");
+		}
+		long heapAfter = usedHeap(runtime);
+		int threadsAfter = Thread.activeCount();
+		// Each session's stand-in thread is counted too; the client itself runs one.
+		System.out.printf("Per connected client: %.1f KB of heap (client and stand-in session), "
+				+ "%.1f threads (one of them the stand-in's)%n", (heapAfter - heapBefore) / 1024.0
+				/ count, (threadsAfter - threadsBefore) / (double) count);
+		for (SocketIoClient client : clients) {
+			client.disconnect();
+		}
+	}
+
+	private static long usedHeap(Runtime runtime) throws InterruptedException {
+		for (int i = 0; i < 3; ++i) {
+			System.gc();
+			Thread.sleep(50);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static void report(String what, long[] nanos) {
+		Arrays.sort(nanos);
+		System.out.println(what + ": p50 " + micros(nanos[nanos.length / 2]) + ", p90 "
+				+ micros(nanos[nanos.length * 9 / 10]) + ", max " + micros(nanos[nanos.length - 1])
+				+ " over " + nanos.length + " runs");
+	}
+
+	private static String micros(long nanos) {
+		return TimeUnit.NANOSECONDS.toMicros(nanos) + "us";
+	}
+}
@@ -0,0 +1,158 @@
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** The socket.io layer against a {@link SocketIoStandIn}: handshake, heartbeats and packets. */
+public class SocketIoClientTest {
+	private static final long TIMEOUT_MS = 5000;
+
+	private SocketIoStandIn server;
+
+	private SocketIoClient client;
+
+	// The listener's callbacks as "connect", "event:<name>:<args>", "disconnect:<reason>" or
+	// "error:<description>".
+	private final BlockingQueue<String> events = new LinkedBlockingQueue<String>();
+
+	@Before
+	public void setUp() throws Exception {
+		server = new SocketIoStandIn();
+		client = new SocketIoClient(server.getUrl() + "/", new SocketIoClient.Listener() {
+			public void onConnect() {
+				events.add("connect");
+			}
+
+			public void onEvent(String name, JSONArray args) {
+				events.add("event:" + name + ":" + args);
+			}
+
+			public void onDisconnect(String reason) {
+				events.add("disconnect:" + reason);
+			}
+
+			public void onError(String description) {
+				events.add("error:" + description);
+			}
+		});
+	}
+
+	@After
+	public void tearDown() {
+		client.disconnect();
+		server.close();
+	}
+
+	@Test
+	public void sendsEventsQueuedBeforeConnecting() throws Exception {
+		client.connect();
+		client.emit("create or join", "room");
+		assertEquals("connect", next());
+		assertEquals("event:created:[\"room\"]", next());
+	}
+
+	@Test
+	public void answersHeartbeats() throws Exception {
+		connect();
+		server.sendToAll("2::");
+		server.sendToAll("2::");
+		long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+		while (server.getHeartbeatsAnswered() < 2) {
+			if (System.currentTimeMillis() > deadline) {
+				fail("Heartbeats not answered");
+			}
+			Thread.sleep(5);
+		}
+		assertQuiet(100);
+	}
+
+	@Test
+	public void givesUpOnASilentServer() throws Exception {
+		server.setHeartbeatTimeoutSeconds(1);
+		connect();
+		long startNanos = System.nanoTime();
+		String event = next();
+		long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+		assertTrue(event, event.startsWith("disconnect:1006"));
+		assertTrue("Gave up after " + elapsedMs + "ms", elapsedMs >= 900);
+	}
+
+	@Test
+	public void reportsTheServersError() throws Exception {
+		connect();
+		server.sendToAll("7:::unauthorized");
+		assertEquals("disconnect:Server error: unauthorized", next());
+	}
+
+	@Test
+	public void reportsTheServersDisconnect() throws Exception {
+		connect();
+		server.sendToAll("0::");
+		String event = next();
+		assertTrue(event, event.startsWith("disconnect:"));
+	}
+
+	@Test
+	public void reportsARefusedHandshake() throws Exception {
+		server.setRefusing(true);
+		client.connect();
+		String event = next();
+		assertTrue(event, event.startsWith("error:") && event.contains("HTTP 503"));
+		assertQuiet(100);
+	}
+
+	@Test
+	public void disconnectLeavesTheSession() throws Exception {
+		connect();
+		client.disconnect();
+		String event = next();
+		assertTrue(event, event.startsWith("disconnect:"));
+		long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+		while (!server.getSessions().isEmpty()) {
+			if (System.currentTimeMillis() > deadline) {
+				fail("Session still open");
+			}
+			Thread.sleep(5);
+		}
+		// Events emitted afterwards go nowhere.
+		client.emit("create or join", "room");
+		assertEquals(0, server.getRoomSize());
+	}
+
+	@Test
+	public void dropsMalformedEvents() throws Exception {
+		connect();
+		server.sendToAll("5:::{\"args\":[]}");
+		server.sendToAll("5:::[1, 2");
+		client.emit("create or join", "room");
+		assertEquals("event:created:[\"room\"]", next());
+		assertQuiet(100);
+	}
+
+	private void connect() throws InterruptedException {
+		client.connect();
+		assertEquals("connect", next());
+	}
+
+	private String next() throws InterruptedException {
+		String event = events.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		assertNotNull("No callback within " + TIMEOUT_MS + "ms", event);
+		return event;
+	}
+
+	private void assertQuiet(long ms) throws InterruptedException {
+		assertNull(events.poll(ms, TimeUnit.MILLISECONDS));
+	}
+}
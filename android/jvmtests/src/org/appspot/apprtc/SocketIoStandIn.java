@@ -0,0 +1,246 @@
+package org.appspot.apprtc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Stands in for server/server.js: a socket.io 0.9 server, websocket transport only, with its
+ * one two-party room. Tests can make it misbehave: drop connections, refuse handshakes, keep a
+ * dropped session in the room as though the server hadn't noticed yet, or send any packet.
+ */
+class SocketIoStandIn extends StandInServer {
+	private static final String HANDSHAKE_PATH = "/socket.io/1/";
+
+	private static final String WEBSOCKET_PATH = "/socket.io/1/websocket/";
+
+	/** One client's session. */
+	class Session {
+		final String id;
+
+		private final ServerWebSocket socket;
+
+		// Dropped, but still in the room until expireLingering().
+		private volatile boolean lingering = false;
+
+		Session(String id, ServerWebSocket socket) {
+			this.id = id;
+			this.socket = socket;
+		}
+
+		void send(String packet) {
+			try {
+				socket.sendText(packet);
+			}
+			catch (IOException e) {
+				// Its read loop notices.
+			}
+		}
+
+		void emit(String name, Object arg) {
+			try {
+				JSONObject event = new JSONObject();
+				event.put("name", name);
+				event.put("args", new JSONArray().put(arg));
+				send("5:::" + event);
+			}
+			catch (JSONException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		/**
+		 * Drop the connection, as a network failure would; if |linger|, the session stays in the
+		 * room, as it does on the real server until its heartbeat times out.
+		 */
+		void drop(boolean linger) {
+			lingering = linger;
+			socket.abort();
+		}
+	}
+
+	// These members are only read/written under |this|'s lock.
+	private final List<Session> sessions = new ArrayList<Session>();
+
+	private final List<Session> room = new ArrayList<Session>();
+
+	private final List<Long> handshakeNanos = new ArrayList<Long>();
+
+	private int nextSessionId = 1;
+
+	private boolean refusing = false;
+
+	private int heartbeatTimeoutSeconds = 60;
+
+	private int heartbeatsAnswered = 0;
+
+	SocketIoStandIn() throws IOException {
+		super();
+	}
+
+	/** Answer handshakes with 503 while |refusing|. */
+	synchronized void setRefusing(boolean refusing) {
+		this.refusing = refusing;
+	}
+
+	/** The heartbeat timeout the handshake announces; the stand-in itself never sends heartbeats. */
+	synchronized void setHeartbeatTimeoutSeconds(int seconds) {
+		heartbeatTimeoutSeconds = seconds;
+	}
+
+	/** When each handshake was asked for, in System.nanoTime(). */
+	synchronized List<Long> getHandshakeNanos() {
+		return new ArrayList<Long>(handshakeNanos);
+	}
+
+	/** Connected sessions, oldest first. */
+	synchronized List<Session> getSessions() {
+		return new ArrayList<Session>(sessions);
+	}
+
+	synchronized int getRoomSize() {
+		return room.size();
+	}
+
+	synchronized int getHeartbeatsAnswered() {
+		return heartbeatsAnswered;
+	}
+
+	/** Drop every connection; see {@link Session#drop(boolean)}. */
+	void dropAll(boolean linger) {
+		for (Session session : getSessions()) {
+			session.drop(linger);
+		}
+	}
+
+	/** Let the lingering sessions go, as the server does once their heartbeats time out. */
+	synchronized void expireLingering() {
+		for (int i = room.size() - 1; i >= 0; --i) {
+			if (room.get(i).lingering) {
+				room.remove(i);
+			}
+		}
+	}
+
+	/** Send |packet| to every connected session. */
+	void sendToAll(String packet) {
+		for (Session session : getSessions()) {
+			session.send(packet);
+		}
+	}
+
+	@Override
+	void handle(Request request) throws IOException {
+		if (request.path.startsWith(WEBSOCKET_PATH)) {
+			serveSession(request, request.path.substring(WEBSOCKET_PATH.length()));
+		} else if (request.path.startsWith(HANDSHAKE_PATH)) {
+			String response;
+			synchronized (this) {
+				handshakeNanos.add(System.nanoTime());
+				if (refusing) {
+					response = null;
+				} else {
+					response = "sid" + nextSessionId++ + ":" + heartbeatTimeoutSeconds
+							+ ":60:websocket,xhr-polling";
+				}
+			}
+			if (response == null) {
+				respond(request.out, 503, "Refusing");
+			} else {
+				respond(request.out, 200, response);
+			}
+		} else {
+			respond(request.out, 404, "Not found");
+		}
+	}
+
+	private void serveSession(Request request, String sessionId) throws IOException {
+		Session session = new Session(sessionId, new ServerWebSocket(request));
+		synchronized (this) {
+			sessions.add(session);
+		}
+		try {
+			session.send("1::");
+			ServerWebSocket.Frame frame;
+			while ((frame = session.socket.readFrame()) != null) {
+				if (frame.opcode == ServerWebSocket.OPCODE_CLOSE) {
+					session.socket.sendClose(1000);
+					break;
+				}
+				if (frame.opcode == ServerWebSocket.OPCODE_TEXT && !onPacket(session, frame.text())) {
+					break;
+				}
+			}
+		}
+		catch (IOException e) {
+			// Dropped.
+		}
+		finally {
+			synchronized (this) {
+				sessions.remove(session);
+				if (!session.lingering) {
+					room.remove(session);
+				}
+			}
+		}
+	}
+
+	// Returns false once the client has disconnected.
+	private boolean onPacket(Session session, String packet) {
+		if (packet.startsWith("0:")) {
+			return false;
+		}
+		if (packet.startsWith("2:")) {
+			synchronized (this) {
+				++heartbeatsAnswered;
+			}
+		} else if (packet.startsWith("5:::")) {
+			try {
+				JSONObject event = new JSONObject(packet.substring(4));
+				JSONArray args = event.getJSONArray("args");
+				String name = event.getString("name");
+				if (name.equals("create or join")) {
+					createOrJoin(session, args.getString(0));
+				} else if (name.equals("message")) {
+					for (Session other : getSessions()) {
+						if (other != session) {
+							other.emit("message", args.get(0));
+						}
+					}
+				}
+			}
+			catch (JSONException e) {
+				throw new RuntimeException("Stand-in got a malformed event: " + packet, e);
+			}
+		}
+		return true;
+	}
+
+	// As server.js does.
+	private void createOrJoin(Session session, String roomName) {
+		List<Session> others;
+		String outcome;
+		synchronized (this) {
+			others = new ArrayList<Session>(room);
+			if (room.size() == 0) {
+				outcome = "created";
+				room.add(session);
+			} else if (room.size() == 1) {
+				outcome = "joined";
+				room.add(session);
+			} else {
+				outcome = "full";
+			}
+		}
+		if (outcome.equals("joined")) {
+			for (Session other : others) {
+				other.emit("join", roomName);
+			}
+		}
+		session.emit(outcome, roomName);
+	}
+}
@@ -0,0 +1,176 @@
+package org.appspot.apprtc;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * An HTTP/1.1 server on a loopback port for tests to stand in for the real servers. Each
+ * connection gets a thread of its own, which reads the request head and hands it to
+ * {@link #handle(Request)}; the connection is closed once that returns.
+ */
+abstract class StandInServer {
+	/** A request's head, and the connection it came on. */
+	static class Request {
+		String method;
+
+		// With the query string, if any.
+		String path;
+
+		// Header names in lower case.
+		final Map<String, String> headers = new HashMap<String, String>();
+
+		Socket socket;
+
+		InputStream in;
+
+		OutputStream out;
+	}
+
+	private final ServerSocket serverSocket;
+
+	private final List<Socket> sockets = new ArrayList<Socket>();
+
+	private volatile boolean closed = false;
+
+	StandInServer() throws IOException {
+		serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				acceptLoop();
+			}
+		}, getClass().getSimpleName());
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/** Serve |request|; returning closes its connection. */
+	abstract void handle(Request request) throws IOException;
+
+	String getUrl() {
+		return "http://127.0.0.1:" + serverSocket.getLocalPort();
+	}
+
+	/** Stop listening and drop every connection. */
+	void close() {
+		closed = true;
+		try {
+			serverSocket.close();
+		}
+		catch (IOException e) {
+			// Closing anyway.
+		}
+		synchronized (sockets) {
+			for (Socket socket : sockets) {
+				closeQuietly(socket);
+			}
+			sockets.clear();
+		}
+	}
+
+	/** Write a complete response with |body| (ASCII), after which the connection is closed. */
+	static void respond(OutputStream out, int status, String body) throws IOException {
+		respond(out, status, body.getBytes("US-ASCII"));
+	}
+
+	static void respond(OutputStream out, int status, byte[] body) throws IOException {
+		String head = "HTTP/1.1 " + status + " Stand-in\r\nContent-Length: " + body.length
+				+ "\r\nConnection: close\r\n\r\n";
+		out.write(head.getBytes("US-ASCII"));
+		out.write(body);
+		out.flush();
+	}
+
+	static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		}
+		catch (IOException e) {
+			// Nothing left to do.
+		}
+	}
+
+	private void acceptLoop() {
+		while (!closed) {
+			final Socket socket;
+			try {
+				socket = serverSocket.accept();
+			}
+			catch (IOException e) {
+				return;
+			}
+			synchronized (sockets) {
+				sockets.add(socket);
+			}
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					serve(socket);
+				}
+			}, getClass().getSimpleName() + " connection");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	private void serve(Socket socket) {
+		try {
+			Request request = new Request();
+			request.socket = socket;
+			request.in = new BufferedInputStream(socket.getInputStream());
+			request.out = socket.getOutputStream();
+			String requestLine = readLine(request.in);
+			if (requestLine == null) {
+				return;
+			}
+			String[] parts = requestLine.split(" ");
+			request.method = parts[0];
+			request.path = parts.length > 1 ? parts[1] : "/";
+			for (String line = readLine(request.in); line != null && !line.isEmpty(); line =
+					readLine(request.in)) {
+				int colon = line.indexOf(':');
+				if (colon > 0) {
+					request.headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line
+							.substring(colon + 1).trim());
+				}
+			}
+			handle(request);
+		}
+		catch (IOException e) {
+			// The client went away.
+		}
+		finally {
+			closeQuietly(socket);
+			synchronized (sockets) {
+				sockets.remove(socket);
+			}
+		}
+	}
+
+	// A CRLF-terminated line without its CRLF; null on EOF.
+	static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		while (true) {
+			int b = in.read();
+			if (b < 0) {
+				return line.length() == 0 ? null : line.toString();
+			}
+			if (b == '\n') {
+				int last = line.length() - 1;
+				if (last >= 0 && line.charAt(last) == '\r') {
+					line.setLength(last);
+				}
+				return line.toString();
+			}
+			line.append((char) b);
+		}
+	}
+}
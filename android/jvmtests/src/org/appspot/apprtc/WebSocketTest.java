@@ -0,0 +1,291 @@
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/** WebSocket against a scripted server: framing, control frames and the closing handshake. */
+public class WebSocketTest {
+	private static final long TIMEOUT_MS = 5000;
+
+	private static final int MAX_MESSAGE_SIZE = 1 << 20;
+
+	/** What the server does once the connection is upgraded. */
+	private interface Script {
+		void run(ServerWebSocket socket) throws IOException;
+	}
+
+	private StandInServer server;
+
+	// Frames the server received, and the client's callbacks as "text:<message>" or
+	// "close:<code>:<reason>".
+	private final BlockingQueue<ServerWebSocket.Frame> serverFrames =
+			new LinkedBlockingQueue<ServerWebSocket.Frame>();
+
+	private final BlockingQueue<String> events = new LinkedBlockingQueue<String>();
+
+	@After
+	public void tearDown() {
+		if (server != null) {
+			server.close();
+		}
+	}
+
+	@Test
+	public void handshakeAndMaskedTextFrames() throws Exception {
+		WebSocket socket = connect(new Script() {
+			public void run(ServerWebSocket socket) throws IOException {
+				ServerWebSocket.Frame frame = socket.readFrame();
+				serverFrames.add(frame);
+				socket.sendText("echo " + frame.text());
+				readUntilClosed(socket);
+			}
+		});
+		socket.send("hello");
+		ServerWebSocket.Frame frame = nextFrame();
+		assertTrue(frame.fin);
+		assertTrue("Clients must mask", frame.masked);
+		assertEquals(ServerWebSocket.OPCODE_TEXT, frame.opcode);
+		assertEquals("hello", frame.text());
+		assertEquals("text:echo hello", nextEvent());
+		socket.close();
+	}
+
+	@Test
+	public void longMessagesUseExtendedLengths() throws Exception {
+		final String medium = repeat('m', 300);
+		final String large = repeat('l', 70000);
+		WebSocket socket = connect(new Script() {
+			public void run(ServerWebSocket socket) throws IOException {
+				socket.sendText(medium);
+				socket.sendText(large);
+				for (int i = 0; i < 2; ++i) {
+					serverFrames.add(socket.readFrame());
+				}
+				readUntilClosed(socket);
+			}
+		});
+		assertEquals("text:" + medium, nextEvent());
+		assertEquals("text:" + large, nextEvent());
+		socket.send(medium);
+		socket.send(large);
+		assertEquals(medium, nextFrame().text());
+		assertEquals(large, nextFrame().text());
+		socket.close();
+	}
+
+	@Test
+	public void rejectsABadAccept() throws Exception {
+		server = new StandInServer() {
+			void handle(Request request) throws IOException {
+				String head = "HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\n"
+						+ "Connection: Upgrade\r\nSec-WebSocket-Accept: "
+						+ ServerWebSocket.accept("not the key") + "\r\n\r\n";
+				request.out.write(head.getBytes("US-ASCII"));
+				request.out.flush();
+			}
+		};
+		assertConnectFails();
+	}
+
+	@Test
+	public void rejectsAPlainHttpResponse() throws Exception {
+		server = new StandInServer() {
+			void handle(Request request) throws IOException {
+				respond(request.out, 200, "Not a WebSocket server");
+			}
+		};
+		assertConnectFails();
+	}
+
+	@Test
+	public void reassemblesFragmentsAroundAPing() throws Exception {
+		WebSocket socket = connect(new Script() {
+			public void run(ServerWebSocket socket) throws IOException {
+				socket.sendFrame(false, ServerWebSocket.OPCODE_TEXT, "frag".getBytes("UTF-8"));
+				// Control frames may come between fragments.
+				socket.sendFrame(true, ServerWebSocket.OPCODE_PING, new byte[] { 1, 2, 3 });
+				socket.sendFrame(false, ServerWebSocket.OPCODE_CONTINUATION, "men".getBytes("UTF-8"));
+				socket.sendFrame(true, ServerWebSocket.OPCODE_CONTINUATION, "ted".getBytes("UTF-8"));
+				serverFrames.add(socket.readFrame());
+				readUntilClosed(socket);
+			}
+		});
+		assertEquals("text:fragmented", nextEvent());
+		ServerWebSocket.Frame pong = nextFrame();
+		assertEquals(ServerWebSocket.OPCODE_PONG, pong.opcode);
+		assertArrayEquals(new byte[] { 1, 2, 3 }, pong.payload);
+		socket.close();
+	}
+
+	@Test
+	public void dropsTheConnectionOnAnOversizedFrame() throws Exception {
+		connect(new Script() {
+			public void run(ServerWebSocket socket) throws IOException {
+				// Only the header: the client must give up without reading (or allocating) the rest.
+				socket.write(new byte[] { (byte) 0x81, 127, 0, 0, 0, 0, 0x7f, (byte) 0xff,
+						(byte) 0xff, (byte) 0xff });
+				readUntilClosed(socket);
+			}
+		});
+		assertEquals("close:1006:Frame too large: 2147483647", nextEvent());
+	}
+
+	@Test
+	public void dropsTheConnectionOnANegativeLength() throws Exception {
+		connect(new Script() {
+			public void run(ServerWebSocket socket) throws IOException {
+				socket.write(new byte[] { (byte) 0x81, 127, (byte) 0x80, 0, 0, 0, 0, 0, 0, 1 });
+				readUntilClosed(socket);
+			}
+		});
+		assertEquals("close:1006:Bad frame length", nextEvent());
+	}
+
+	@Test
+	public void dropsTheConnectionOnAnOversizedMessage() throws Exception {
+		connect(new Script() {
+			public void run(ServerWebSocket socket) throws IOException {
+				// Each fragment is within the limit, the message isn't.
+				byte[] half = new byte[MAX_MESSAGE_SIZE / 2 + 1];
+				Arrays.fill(half, (byte) 'x');
+				socket.sendFrame(false, ServerWebSocket.OPCODE_TEXT, half);
+				socket.sendFrame(true, ServerWebSocket.OPCODE_CONTINUATION, half);
+				readUntilClosed(socket);
+			}
+		});
+		assertEquals("close:1006:Message too large", nextEvent());
+	}
+
+	@Test
+	public void answersTheServersClose() throws Exception {
+		connect(new Script() {
+			public void run(ServerWebSocket socket) throws IOException {
+				socket.sendFrame(true, ServerWebSocket.OPCODE_CLOSE, new byte[] { 0x03, (byte) 0xe9,
+						'b', 'y', 'e' });
+				serverFrames.add(socket.readFrame());
+			}
+		});
+		assertEquals("close:1001:bye", nextEvent());
+		ServerWebSocket.Frame close = nextFrame();
+		assertEquals(ServerWebSocket.OPCODE_CLOSE, close.opcode);
+		assertArrayEquals(new byte[] { 0x03, (byte) 0xe9 }, close.payload);
+	}
+
+	@Test
+	public void closeWaitsForTheServersAnswer() throws Exception {
+		WebSocket socket = connect(new Script() {
+			public void run(ServerWebSocket socket) throws IOException {
+				ServerWebSocket.Frame frame = socket.readFrame();
+				serverFrames.add(frame);
+				socket.sendClose(1000);
+			}
+		});
+		socket.close();
+		ServerWebSocket.Frame close = nextFrame();
+		assertEquals(ServerWebSocket.OPCODE_CLOSE, close.opcode);
+		assertArrayEquals(new byte[] { 0x03, (byte) 0xe8 }, close.payload);
+		assertEquals("close:1000:", nextEvent());
+	}
+
+	@Test
+	public void reportsADroppedConnection() throws Exception {
+		connect(new Script() {
+			public void run(ServerWebSocket socket) throws IOException {
+				socket.sendText("last words");
+				socket.abort();
+			}
+		});
+		assertEquals("text:last words", nextEvent());
+		String close = nextEvent();
+		assertTrue(close, close.startsWith("close:1006:"));
+	}
+
+	// Start a server running |script| and connect to it, running the read loop on its own thread.
+	private WebSocket connect(final Script script) throws Exception {
+		server = new StandInServer() {
+			void handle(Request request) throws IOException {
+				script.run(new ServerWebSocket(request));
+			}
+		};
+		final WebSocket socket = new WebSocket(URI.create(server.getUrl().replaceFirst("^http",
+				"ws") + "/socket"), new WebSocket.Listener() {
+			public void onTextMessage(String text) {
+				events.add("text:" + text);
+			}
+
+			public void onClose(int code, String reason) {
+				events.add("close:" + code + ":" + reason);
+			}
+		});
+		socket.connect((int) TIMEOUT_MS);
+		Thread reader = new Thread(new Runnable() {
+			public void run() {
+				socket.readLoop();
+			}
+		}, "WebSocketTest");
+		reader.setDaemon(true);
+		reader.start();
+		return socket;
+	}
+
+	private void assertConnectFails() throws Exception {
+		WebSocket socket = new WebSocket(URI.create(server.getUrl().replaceFirst("^http", "ws")),
+				new WebSocket.Listener() {
+					public void onTextMessage(String text) {
+						fail("Message on a failed connection");
+					}
+
+					public void onClose(int code, String reason) {
+						fail("Close on a failed connection");
+					}
+				});
+		try {
+			socket.connect((int) TIMEOUT_MS);
+			fail("Connected");
+		}
+		catch (IOException e) {
+			// Expected.
+		}
+	}
+
+	private static void readUntilClosed(ServerWebSocket socket) throws IOException {
+		ServerWebSocket.Frame frame;
+		while ((frame = socket.readFrame()) != null) {
+			if (frame.opcode == ServerWebSocket.OPCODE_CLOSE) {
+				socket.sendClose(1000);
+				return;
+			}
+		}
+	}
+
+	private ServerWebSocket.Frame nextFrame() throws InterruptedException {
+		ServerWebSocket.Frame frame = serverFrames.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		assertNotNull("No frame within " + TIMEOUT_MS + "ms", frame);
+		return frame;
+	}
+
+	private String nextEvent() throws InterruptedException {
+		String event = events.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		assertNotNull("No callback within " + TIMEOUT_MS + "ms", event);
+		return event;
+	}
+
+	private static String repeat(char c, int count) {
+		char[] chars = new char[count];
+		Arrays.fill(chars, c);
+		return new String(chars);
+	}
+}
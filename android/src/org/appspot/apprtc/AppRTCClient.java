@@ -1,12 +1,15 @@
 package org.appspot.apprtc;
 
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
 
 import org.webrtc.MediaConstraints;
 import org.webrtc.PeerConnection;
 
-import android.app.Activity;
-import android.os.AsyncTask;
 import android.util.Log;
 
 /**
@@ -16,6 +19,14 @@ import android.util.Log;
  * To use: create an instance of this object (registering a message handler) and invoke
  * {@link #connect()}. Once that's done call {@link #sendMessage(String)} and wait for the
  * registered handler to be invoked with received messages.
+ * <p>
+ * Outgoing messages are coalesced by a {@link SignalingSender}, so a burst may reach the other
+ * party as a single JSON array. Handlers should decode incoming data with {@link SignalingCodec},
+ * which accepts both forms.
+ * <p>
+ * Signaling survives the server connection dropping: once the room is rejoined the frames sent
+ * lately are sent again, and frames the other party sends again are handed to the handler only if
+ * it hasn't seen them yet. The peer connection is left alone meanwhile.
  * 
  * TODO Rename this class to "SignalingClient" when we have more time to modify the ninja scripts!
  */
@@ -23,50 +34,83 @@ public class AppRTCClient {
 	
 	private static final String TAG = "SignalingClient";
 
+	/** Where the ICE server configuration is fetched from (see {@link IceConfigLoader}). */
+	public static final String ICE_CONFIG_URL = "http://192.168.1.6:2013/iceconfig.json";
+
 	private GAEChannelClient webSocketClient;
 
-	private final Activity activity;
+	private final Executor callbackExecutor;
 
 	private final MessageHandler websocketMessageHandler;
 
 	private final IceServersObserver iceServersObserver;
 
-	// These members are only read/written under sendQueue's lock.
-	private LinkedList<String> sendQueue = new LinkedList<String>();
+	private final IceConfigLoader iceConfigLoader;
+
+	private final String signalingServerUrl;
+
+	private final SignalingSender sender = new SignalingSender();
 
 	private SignalingParameters signalingParameters;
 
-	public AppRTCClient(Activity activity, MessageHandler websocketMessageHandler,
-			IceServersObserver iceServersObserver) {
-		this.activity = activity;
-		this.websocketMessageHandler = websocketMessageHandler;
+	/**
+	 * |websocketMessageHandler| and |iceServersObserver| are invoked on |callbackExecutor|, which
+	 * must run tasks in order. ICE servers come from |iceConfigLoader|.
+	 */
+	public AppRTCClient(Executor callbackExecutor, MessageHandler websocketMessageHandler,
+			IceServersObserver iceServersObserver, IceConfigLoader iceConfigLoader) {
+		this(GAEChannelClient.SIGNALING_SERVER_URL, callbackExecutor, websocketMessageHandler,
+				iceServersObserver, iceConfigLoader);
+	}
+
+	// For tests, against a stand-in server.
+	AppRTCClient(String signalingServerUrl, Executor callbackExecutor,
+			MessageHandler websocketMessageHandler, IceServersObserver iceServersObserver,
+			IceConfigLoader iceConfigLoader) {
+		this.signalingServerUrl = signalingServerUrl;
+		this.callbackExecutor = callbackExecutor;
+		this.websocketMessageHandler = new SequencingMessageHandler(websocketMessageHandler);
 		this.iceServersObserver = iceServersObserver;
+		this.iceConfigLoader = iceConfigLoader;
 	}
 
 	/**
 	 * Asynchronously connect to the signaling server and
-	 * register message-handling callbacks on its web socket client.
+	 * register message-handling callbacks on its web socket client. The ICE servers are reported on
+	 * the callback executor, ahead of any message, while the connection is still being set up.
 	 */
 	public void connect() {
-		SignalingParameters params = getSignalingParameters();
+		signalingParameters = getSignalingParameters();
+		final SignalingParameters params = signalingParameters;
+		callbackExecutor.execute(new Runnable() {
+			public void run() {
+				iceServersObserver.onIceServers(params.iceServers);
+			}
+		});
 
-		webSocketClient = new GAEChannelClient(activity, websocketMessageHandler);
-		synchronized (sendQueue) {
-			signalingParameters = params;
-		}
-		attemptToSendAllQueuedMessagesOnTheBackground();
-		iceServersObserver.onIceServers(signalingParameters.iceServers);
+		final GAEChannelClient client = new GAEChannelClient(signalingServerUrl,
+				new ExponentialBackoff(GAEChannelClient.RECONNECT_INITIAL_DELAY_MS,
+						GAEChannelClient.RECONNECT_MAX_DELAY_MS), callbackExecutor,
+				websocketMessageHandler);
+		webSocketClient = client;
+		sender.start(new SignalingSender.Transport() {
+			public void send(String frame) {
+				Log.i(TAG, "Sending message: " + frame);
+				client.sendMessage(frame);
+			}
+		});
 	}
 
 	/**
-	 * Queue a message for sending to the room's channel and send it if already connected (other
-	 * wise queued messages are drained when the channel is eventually established).
+	 * Queue a message for sending to the room's channel; it is sent on the sender thread once
+	 * connected, possibly together with other messages queued around the same time.
 	 */
-	public synchronized void sendMessage(String msg) {
-		synchronized (sendQueue) {
-			sendQueue.add(msg);
-		}
-		attemptToSendAllQueuedMessagesOnTheBackground();
+	public void sendMessage(String msg) {
+		sender.send(msg);
+	}
+
+	public SignalingSender.Stats getSendStats() {
+		return sender.getStats();
 	}
 
 	public boolean isInitiator() {
@@ -78,19 +122,35 @@ public class AppRTCClient {
 	}
 	
 	/**
-	 * Disconnect from the web socket
+	 * Disconnect from the web socket, once messages already queued (e.g. a "bye") have been sent.
 	 */
 	public void disconnect() {
-		if (webSocketClient != null) {
-			webSocketClient.close();
-			webSocketClient = null;
-		}
+		final GAEChannelClient client = webSocketClient;
+		webSocketClient = null;
+		sender.stop(new Runnable() {
+			public void run() {
+				Log.d(TAG, "Send stats: " + sender.getStats());
+				if (client != null) {
+					client.close();
+				}
+			}
+		});
 	}
 	
+	// Never waits on the network: the ICE servers come from the loader's cache, or the built-in
+	// ones on first run, and a background refresh reports newer ones through the observer.
 	private SignalingParameters getSignalingParameters() {
-		LinkedList<PeerConnection.IceServer> iceServers = new LinkedList<PeerConnection.IceServer>();
-		iceServers.add(new PeerConnection.IceServer("stun:stun.l.google.com:19302"));
-		 iceServers.add(new PeerConnection.IceServer("turn:computeengineondemand.appspot.com", "41784574", "4080218913"));
+		List<PeerConnection.IceServer> iceServers = iceConfigLoader.load(defaultIceServers(),
+				new IceConfigLoader.Listener() {
+					public void onIceServersRefreshed(
+							final List<PeerConnection.IceServer> iceServers) {
+						callbackExecutor.execute(new Runnable() {
+							public void run() {
+								iceServersObserver.onIceServersUpdated(iceServers);
+							}
+						});
+					}
+				});
 
 		MediaConstraints pcConstraints = new MediaConstraints();
 		pcConstraints.optional
@@ -99,30 +159,121 @@ public class AppRTCClient {
 				.add(new MediaConstraints.KeyValuePair("OfferToReceiveVideo", "false"));
 		pcConstraints.optional
 				.add(new MediaConstraints.KeyValuePair("DtlsSrtpKeyAgreement", "true"));
-		pcConstraints.optional.add(new MediaConstraints.KeyValuePair("RtpDataChannels", "true"));
+		// No "RtpDataChannels": data channels run over SCTP, which unlike RTP data channels offers
+		// reliable and ordered delivery, per channel (see DataChannelManager).
 
 		return new SignalingParameters(iceServers, pcConstraints);
 	}
-	
-	private void attemptToSendAllQueuedMessagesOnTheBackground() {
-		(new AsyncTask<Void, Void, Void>() {
-			public Void doInBackground(Void... unused) {
-				ifConnectedSendAllQueuedMessages();
-				return null;
+
+	private static List<PeerConnection.IceServer> defaultIceServers() {
+		LinkedList<PeerConnection.IceServer> iceServers = new LinkedList<PeerConnection.IceServer>();
+		iceServers.add(new PeerConnection.IceServer("stun:stun.l.google.com:19302"));
+		 iceServers.add(new PeerConnection.IceServer("turn:computeengineondemand.appspot.com", "41784574", "4080218913"));
+		return iceServers;
+	}
+
+	// Drops frames already delivered, as told by their sequence numbers, and replays our own
+	// frames whenever either party rejoins the room. Invoked on the callback executor only.
+	private class SequencingMessageHandler implements MessageHandler {
+		private final MessageHandler handler;
+
+		private final SignalingCodec codec = new SignalingCodec();
+
+		private final SignalingCodec.FrameSequence sequence = new SignalingCodec.FrameSequence();
+
+		// Sequence numbers delivered, by sender id.
+		private final Map<String, DeliveredFrames> delivered =
+				new HashMap<String, DeliveredFrames>();
+
+		public SequencingMessageHandler(MessageHandler handler) {
+			this.handler = handler;
+		}
+
+		public void whenIJoinTheRoomCreatedByMe() {
+			handler.whenIJoinTheRoomCreatedByMe();
+		}
+
+		public void whenAnotherPartyJoinedMyRoom() {
+			handler.whenAnotherPartyJoinedMyRoom();
+		}
+
+		public void whenIJoinedARoomCreatedByAnotherParty() {
+			handler.whenIJoinedARoomCreatedByAnotherParty();
+		}
+
+		public void onMessage(String data) {
+			boolean sequenced;
+			try {
+				sequenced = codec.readSequence(data, sequence);
 			}
-		}).execute();
+			catch (IllegalArgumentException e) {
+				// Let the handler report it.
+				sequenced = false;
+			}
+			if (sequenced) {
+				DeliveredFrames frames = delivered.get(sequence.from);
+				if (frames == null) {
+					frames = new DeliveredFrames();
+					delivered.put(sequence.from, frames);
+				}
+				if (!frames.add(sequence.seq)) {
+					Log.d(TAG, "Dropping frame " + sequence.seq + " from " + sequence.from
+							+ ", already delivered");
+					return;
+				}
+			}
+			handler.onMessage(data);
+		}
+
+		public void onClose() {
+			handler.onClose();
+		}
+
+		public void onRejoined() {
+			sender.replay();
+			handler.onRejoined();
+		}
+
+		public void onError(int code, String description) {
+			handler.onError(code, description);
+		}
 	}
 
-	private void ifConnectedSendAllQueuedMessages() {
-		synchronized (sendQueue) {
-			if (signalingParameters == null) {
-				return;
+	// The sequence numbers delivered from one sender, which may arrive out of order when frames
+	// are replayed: every one up to |contiguous|, and those set in |above| past it. Frames too far
+	// behind the newest to still be replayed are forgotten, so |above| stays within the replay
+	// history.
+	private static class DeliveredFrames {
+		private long contiguous = 0;
+
+		// Bit i stands for sequence number contiguous + 1 + i.
+		private BitSet above = new BitSet();
+
+		// Whether |seq| is new; it counts as delivered from now on.
+		boolean add(long seq) {
+			if (seq - contiguous > SignalingSender.HISTORY_SIZE) {
+				// Whatever is still missing that far back won't be replayed any more.
+				advanceTo(seq - SignalingSender.HISTORY_SIZE);
+			}
+			if (seq <= contiguous) {
+				return false;
+			}
+			int bit = (int) (seq - contiguous - 1);
+			if (above.get(bit)) {
+				return false;
 			}
-			for (String msg : sendQueue) {
-				Log.i(TAG, "Sending message: " + msg);
-				webSocketClient.sendMessage(msg);
+			above.set(bit);
+			advanceTo(contiguous + above.nextClearBit(0));
+			return true;
+		}
+
+		private void advanceTo(long seq) {
+			if (seq <= contiguous) {
+				return;
 			}
-			sendQueue.clear();
+			long shift = seq - contiguous;
+			above = shift >= above.length() ? new BitSet() : above.get((int) shift, above.length());
+			contiguous = seq;
 		}
 	}
 }
@@ -1,12 +1,14 @@
 package org.appspot.apprtc;
 
+import java.io.File;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
 
-import org.json.JSONException;
-import org.json.JSONObject;
 import org.webrtc.DataChannel;
 import org.webrtc.DataChannel.Buffer;
 import org.webrtc.IceCandidate;
@@ -19,11 +21,13 @@ import org.webrtc.SessionDescription;
 
 import android.app.Activity;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.util.Log;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.WindowManager;
-import android.webkit.JavascriptInterface;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.LinearLayout;
@@ -39,6 +43,21 @@ import android.widget.Toast;
 public class AppRTCDemoActivity extends Activity implements IceServersObserver {
 	private static final String TAG = "WebRTCAndroidClientActivity";
 
+	// How long ICE may stay DISCONNECTED, which it often recovers from by itself, before it is
+	// restarted. FAILED restarts it right away.
+	private static final long ICE_RESTART_GRACE_MS = 3000;
+
+	// Received commands are summed up on screen at most this often.
+	private static final long RECEIVE_SUMMARY_INTERVAL_MS = 250;
+
+	// How much of the last received command the summary shows.
+	private static final int RECEIVE_SUMMARY_CHARS = 64;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	// How often our status goes out on the telemetry channel.
+	private static final long TELEMETRY_INTERVAL_MS = 1000;
+
 	private PeerConnectionFactory factory;
 
 	private PeerConnection pc;
@@ -49,21 +68,72 @@ public class AppRTCDemoActivity extends Activity implements IceServersObserver {
 
 	private final MessageHandler websocketMessageHandler = new WebsocketMessageHandler();
 
-	private AppRTCClient signalingClient = new AppRTCClient(this, websocketMessageHandler, this);
+	// Signaling runs on its own thread, which owns |pc| and the offer/answer state: SDP and
+	// candidate handling never competes with the UI, and only user-visible updates are posted to
+	// the UI thread.
+	private HandlerThread signalingThread;
+
+	private Handler signalingHandler;
+
+	private final Executor signalingExecutor = new Executor() {
+		public void execute(Runnable command) {
+			signalingHandler.post(command);
+		}
+	};
+
+	private volatile AppRTCClient signalingClient;
 
 	private Toast logToast;
 
-	private LinkedList<IceCandidate> queuedRemoteCandidates = new LinkedList<IceCandidate>();
+	// Only touched on the signaling thread.
+	private final NegotiationStateMachine negotiation = new NegotiationStateMachine(
+			new NegotiationActions());
+
+	private final SignalingCodec signalingCodec = new SignalingCodec();
+
+	private final IceCandidateBatcher candidateBatcher = new IceCandidateBatcher(
+			IceCandidateBatcher.DEFAULT_WINDOW_MS, new IceCandidateBatcher.Sink() {
+				public void sendCandidates(List<IceCandidate> candidates) {
+					sendMessage(SignalingMessage.candidates(candidates));
+				}
+			});
 
 	// Synchronize on quit[0] to avoid teardown-related crashes.
 	private final Boolean[] quit = new Boolean[] { false };
 
-	private DataChannel dataChannel;
+	private final DataChannelManager channels = new DataChannelManager(new ChannelReceiver());
+
+	// The CONTROL channel's; holds commands back while ICE is interrupted.
+	private DataChannelSender commandSender;
+
+	// Sends on the BULK channel.
+	private FileTransferManager fileTransfers;
+
+	private final Runnable telemetryTask = new Runnable() {
+		public void run() {
+			sendTelemetry();
+			signalingHandler.postDelayed(this, TELEMETRY_INTERVAL_MS);
+		}
+	};
+
+	private final CommandCodec commandCodec = new CommandCodec();
+
+	private final DataChannelReceiver commandReceiver = new DataChannelReceiver();
+
+	private final ReceiveSummary receiveSummary = new ReceiveSummary();
+
+	private final Runnable iceRestartTask = new Runnable() {
+		public void run() {
+			restartIce();
+		}
+	};
 
 	private EditText commandEditText;
 
 	private Button submitButton;
 
+	private Button sendFileButton;
+
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
@@ -71,12 +141,36 @@ public class AppRTCDemoActivity extends Activity implements IceServersObserver {
 		Thread.setDefaultUncaughtExceptionHandler(new UnhandledExceptionHandler(this));
 
 		initializeView();
+		commandReceiver.addConsumer(receiveSummary);
 
-		abortUnless(PeerConnectionFactory.initializeAndroidGlobals(this),
-				"Failed to initializeAndroidGlobals");
+		signalingThread = new HandlerThread("Signaling");
+		signalingThread.start();
+		signalingHandler = new Handler(signalingThread.getLooper());
+		signalingClient = new AppRTCClient(signalingExecutor, websocketMessageHandler, this,
+				new IceConfigLoader(AppRTCClient.ICE_CONFIG_URL, new File(getCacheDir(),
+						"iceconfig.json"), IceConfigLoader.DEFAULT_TTL_MS));
 
+		// Start connecting first, so that warming up the factory overlaps the round trips to the
+		// signaling server; the ICE servers (and so the peer connection) follow the warm-up.
 		logAndToast("Connecting to room...");
-		signalingClient.connect();
+		signalingExecutor.execute(new Runnable() {
+			public void run() {
+				signalingClient.connect();
+			}
+		});
+		signalingExecutor.execute(new Runnable() {
+			public void run() {
+				createPeerConnectionFactory();
+			}
+		});
+	}
+
+	// Loading the native library and creating the factory are the slow part of startup.
+	private void createPeerConnectionFactory() {
+		abortUnless(PeerConnectionFactory.initializeAndroidGlobals(this),
+				"Failed to initializeAndroidGlobals");
+		factory = new PeerConnectionFactory();
+		negotiation.onFactoryCreated();
 	}
 
 	private void initializeView() {
@@ -102,54 +196,199 @@ public class AppRTCDemoActivity extends Activity implements IceServersObserver {
 				}
 			}
 		});
+		sendFileButton = new Button(this);
+		sendFileButton.setText("Send file");
+		sendFileButton.setEnabled(false);
+		sendFileButton.setOnClickListener(new OnClickListener() {
+			@Override
+			public void onClick(View v) {
+				CharSequence text = commandEditText.getText();
+				if (text == null || text.length() == 0) {
+					return;
+				}
+				File file = new File(text.toString());
+				if (!file.isFile()) {
+					logAndToast("No such file: " + file);
+					return;
+				}
+				logAndToast("Sending " + file.getName() + "...");
+				fileTransfers.sendFile(file);
+			}
+		});
 		LinearLayout layout = new LinearLayout(this);
 		layout.addView(commandEditText);
 		layout.addView(submitButton);
+		layout.addView(sendFileButton);
 		setContentView(layout);
 	}
 
-	private void sendThroughDataChannel(String command) {
-		dataChannel.send(new Buffer(ByteBuffer.wrap(command.getBytes(Charset.forName("UTF-8"))),
-				false));
+	// The frame goes back to the codec's pool once sent.
+	private void sendThroughDataChannel(final String command) {
+		final ByteBuffer frame = commandCodec.encode(CommandCodec.TYPE_COMMAND, command);
+		commandSender.send(new Buffer(frame, true)).setListener(
+				new DataChannelSender.Completion.Listener() {
+					public void onComplete(boolean sent) {
+						commandCodec.recycle(frame);
+						if (!sent) {
+							logAndToast("Too many commands waiting for the connection; dropped \""
+									+ command + "\"");
+						}
+					}
+				});
+	}
+
+	private void createDataChannels() {
+		channels.open(pc);
+		commandSender = channels.getSender(DataChannelManager.Channel.CONTROL);
+		fileTransfers = new FileTransferManager(channels
+				.getSender(DataChannelManager.Channel.BULK), new File(getCacheDir(), "received"),
+				new FileTransferProgress());
 	}
 
-	private void createDataChannel() {
-		dataChannel = pc.createDataChannel("commands", new DataChannel.Init());
-		dataChannel.registerObserver(new DataChannel.Observer() {
-			@Override
-			public void onStateChange() {
-				Log.d(TAG, "DC is " + dataChannel.state());
+	/** Routes each channel's messages, and reacts to the channels opening; on their thread. */
+	private class ChannelReceiver implements DataChannelManager.Receiver {
+		public void onStateChange(DataChannelManager.Channel channel, DataChannel.State state) {
+			if (state != DataChannel.State.OPEN) {
+				return;
 			}
-
-			@Override
-			public void onMessage(final Buffer buffer) {
-				byte[] msgAsByteArray = new byte[buffer.data.capacity()];
-				buffer.data.get(msgAsByteArray);
-				String command = new String(msgAsByteArray, Charset.forName("UTF-8"));
-				final String msg = "Received \"" + command + "\"";
-				Log.i(TAG, msg);
-				runOnUiThread(new Runnable() {
-					@Override
+			switch (channel) {
+			case CONTROL:
+				signalingExecutor.execute(new Runnable() {
 					public void run() {
-						Toast.makeText(AppRTCDemoActivity.this, msg, Toast.LENGTH_SHORT).show();
+						negotiation.onDataChannelOpen();
+						NegotiationStateMachine.SetupTiming timing = negotiation.getSetupTiming();
+						logAndToast("Ready to send after " + timing.getColdStartMillis() + "ms");
+						Log.i(TAG, "Connection setup: " + timing);
 					}
 				});
+				break;
+			case TELEMETRY:
+				signalingHandler.removeCallbacks(telemetryTask);
+				signalingHandler.postDelayed(telemetryTask, TELEMETRY_INTERVAL_MS);
+				break;
+			default:
+				break;
 			}
-		});
+		}
+
+		public void onMessage(DataChannelManager.Channel channel, Buffer buffer) {
+			switch (channel) {
+			case CONTROL:
+				commandReceiver.onMessage(buffer);
+				break;
+			case BULK:
+				fileTransfers.onMessage(buffer);
+				break;
+			case TELEMETRY:
+				byte[] bytes = new byte[buffer.data.remaining()];
+				buffer.data.get(bytes);
+				Log.d(TAG, "Peer telemetry: " + new String(bytes, UTF_8));
+				break;
+			}
+		}
+	}
+
+	// Our per-channel traffic, for the other party's log; on the signaling thread.
+	private void sendTelemetry() {
+		StringBuilder telemetry = new StringBuilder();
+		for (DataChannelManager.ChannelStats stats : channels.getStats()) {
+			telemetry.append(stats.channel.label).append(": sent ")
+					.append(stats.sent.messagesSent).append(" (")
+					.append(stats.sent.getBytesPerSecond()).append("B/s) received ")
+					.append(stats.messagesReceived).append("; ");
+		}
+		channels.getSender(DataChannelManager.Channel.TELEMETRY).send(
+				new Buffer(ByteBuffer.wrap(telemetry.toString().getBytes(UTF_8)), false));
+	}
+
+	/** Reports file transfers every 10% of the way, and their outcome. */
+	private class FileTransferProgress implements FileTransferManager.Listener {
+		// The last tenth of each transfer shown; only touched on the manager's thread. Progress
+		// may skip over a multiple of 10% when a chunk is more than 1% of the file.
+		private final Map<Long, Long> lastDecile = new HashMap<Long, Long>();
+
+		public void onProgress(long transferId, String name, boolean outgoing, long bytesDone,
+				long size) {
+			long percent = size == 0 ? 100 : bytesDone * 100 / size;
+			Long last = lastDecile.get(transferId);
+			if (percent < 100 && (last == null || percent / 10 > last)) {
+				lastDecile.put(transferId, percent / 10);
+				logAndToast((outgoing ? "Sending " : "Receiving ") + name + ": " + percent + "%");
+			}
+		}
+
+		public void onComplete(long transferId, String name, boolean outgoing, File file) {
+			lastDecile.remove(transferId);
+			logAndToast(outgoing ? "Sent " + name : "Received " + name + " as " + file);
+		}
+
+		public void onFailed(long transferId, String name, boolean outgoing, String reason) {
+			lastDecile.remove(transferId);
+			logAndToast("Failed to " + (outgoing ? "send " : "receive ") + name + ": " + reason);
+		}
+	}
+
+	/**
+	 * Counts received commands and, at most every RECEIVE_SUMMARY_INTERVAL_MS, shows how many
+	 * arrived and the start of the last one, instead of a toast per command.
+	 */
+	private class ReceiveSummary implements DataChannelReceiver.Consumer, Runnable {
+		// These members are only read/written under |this|'s lock.
+		private final StringBuilder lastMessage = new StringBuilder(RECEIVE_SUMMARY_CHARS);
+
+		private int count = 0;
+
+		private boolean posted = false;
+
+		private final Handler uiHandler = new Handler(Looper.getMainLooper());
+
+		public synchronized void onMessage(CharSequence message) {
+			++count;
+			lastMessage.setLength(0);
+			lastMessage.append(message, 0, Math.min(message.length(), RECEIVE_SUMMARY_CHARS));
+			if (!posted) {
+				posted = true;
+				uiHandler.postDelayed(this, RECEIVE_SUMMARY_INTERVAL_MS);
+			}
+		}
+
+		// Shows the summary; on the UI thread.
+		public void run() {
+			String summary;
+			synchronized (this) {
+				summary = (count == 1 ? "Received \"" : "Received " + count + " commands, the last \"")
+						+ lastMessage + "\"";
+				count = 0;
+				posted = false;
+			}
+			Log.i(TAG, summary);
+			Toast.makeText(AppRTCDemoActivity.this, summary, Toast.LENGTH_SHORT).show();
+		}
 	}
 
 	@Override
 	public void onIceServers(List<PeerConnection.IceServer> iceServers) {
-		factory = new PeerConnectionFactory();
+		if (factory == null) {
+			createPeerConnectionFactory();
+		}
 
 		MediaConstraints pcConstraints = signalingClient.pcConstraints();
 		pc = factory.createPeerConnection(iceServers, pcConstraints, pcObserver);
 
-		createDataChannel();
+		createDataChannels();
+		negotiation.onPeerConnectionCreated();
 
 		logAndToast("Waiting for ICE candidates...");
 	}
 
+	@Override
+	public void onIceServersUpdated(List<PeerConnection.IceServer> iceServers) {
+		Log.i(TAG, "Using refreshed ICE servers " + iceServers);
+		if (pc != null) {
+			pc.updateIce(iceServers, signalingClient.pcConstraints());
+		}
+	}
+
 	@Override
 	protected void onDestroy() {
 		disconnectAndExit();
@@ -166,34 +405,30 @@ public class AppRTCDemoActivity extends Activity implements IceServersObserver {
 	}
 
 	/**
-	 * Log |msg| and Toast about it.
+	 * Log |msg| and Toast about it; may be called from any thread.
 	 */
-	private void logAndToast(String msg) {
+	private void logAndToast(final String msg) {
 		Log.i(TAG, msg);
-		if (logToast != null) {
-			logToast.cancel();
-		}
-		logToast = Toast.makeText(this, msg, Toast.LENGTH_SHORT);
-		logToast.show();
-	}
-
-	/**
-	 * Send |json| to the underlying Signaling client
-	 */
-	private void sendMessage(JSONObject json) {
-		signalingClient.sendMessage(json.toString());
+		runOnUiThread(new Runnable() {
+			public void run() {
+				if (logToast != null) {
+					logToast.cancel();
+				}
+				logToast = Toast.makeText(AppRTCDemoActivity.this, msg, Toast.LENGTH_SHORT);
+				logToast.show();
+			}
+		});
 	}
 
 	/**
-	 * Put a |key|->|value| mapping in |json|.
+	 * Send |message| to the underlying Signaling client
 	 */
-	private static void jsonPut(JSONObject json, String key, Object value) {
-		try {
-			json.put(key, value);
-		}
-		catch (JSONException e) {
-			throw new RuntimeException(e);
+	private void sendMessage(SignalingMessage message) {
+		AppRTCClient client = signalingClient;
+		if (client == null) {
+			return; // Already disconnected; may happen for candidates sent from another thread.
 		}
+		client.sendMessage(signalingCodec.encode(message));
 	}
 
 	/**
@@ -203,14 +438,12 @@ public class AppRTCDemoActivity extends Activity implements IceServersObserver {
 
 		@Override
 		public void onIceCandidate(final IceCandidate candidate) {
-			runOnUiThread(new Runnable() {
+			if (!candidateBatcher.add(candidate)) {
+				Log.d(TAG, "Dropping duplicate local candidate " + candidate);
+			}
+			signalingExecutor.execute(new Runnable() {
 				public void run() {
-					JSONObject json = new JSONObject();
-					jsonPut(json, "type", "candidate");
-					jsonPut(json, "label", candidate.sdpMLineIndex);
-					jsonPut(json, "id", candidate.sdpMid);
-					jsonPut(json, "candidate", candidate.sdp);
-					sendMessage(json);
+					negotiation.onLocalCandidate();
 				}
 			});
 		}
@@ -232,13 +465,21 @@ public class AppRTCDemoActivity extends Activity implements IceServersObserver {
 		}
 
 		@Override
-		public void onIceConnectionChange(PeerConnection.IceConnectionState newState) {
+		public void onIceConnectionChange(final PeerConnection.IceConnectionState newState) {
 			Log.d(TAG, "ICE Connection state has changed to " + newState);
+			signalingExecutor.execute(new Runnable() {
+				public void run() {
+					onIceConnectionStateChanged(newState);
+				}
+			});
 		}
 
 		@Override
 		public void onIceGatheringChange(PeerConnection.IceGatheringState newState) {
 			Log.d(TAG, "ICE Gathering state has changed to " + newState);
+			if (newState == PeerConnection.IceGatheringState.COMPLETE) {
+				candidateBatcher.flush();
+			}
 		}
 
 		@Override
@@ -254,6 +495,7 @@ public class AppRTCDemoActivity extends Activity implements IceServersObserver {
 		@Override
 		public void onDataChannel(final DataChannel dc) {
 			Log.d(TAG, "Data Channel " + dc.label() + " has been created");
+			channels.onRemoteDataChannel(dc);
 		}
 
 		@Override
@@ -263,19 +505,77 @@ public class AppRTCDemoActivity extends Activity implements IceServersObserver {
 		}
 	}
 
+	// Pause commands while ICE is down and restart it unless it comes back by itself within the
+	// grace period; resume them, and report how long recovery took, once it is back. Runs on the
+	// signaling thread.
+	private void onIceConnectionStateChanged(PeerConnection.IceConnectionState newState) {
+		boolean wasInterrupted = negotiation.isIceInterrupted();
+		negotiation.onIceConnectionChange(newState);
+		switch (newState) {
+		case DISCONNECTED:
+			if (!wasInterrupted && negotiation.isIceInterrupted()) {
+				logAndToast("Connection lost, waiting for it to come back...");
+				channels.pause();
+				signalingHandler.postDelayed(iceRestartTask, ICE_RESTART_GRACE_MS);
+			}
+			break;
+		case FAILED:
+			if (negotiation.isIceInterrupted()) {
+				channels.pause();
+				signalingHandler.removeCallbacks(iceRestartTask);
+				restartIce();
+			}
+			break;
+		case CONNECTED:
+		case COMPLETED:
+			signalingHandler.removeCallbacks(iceRestartTask);
+			if (wasInterrupted) {
+				long recoveryMs = negotiation.getLastIceRecoveryMillis();
+				Log.i(TAG, "ICE recovery: " + recoveryMs + "ms, "
+						+ commandSender.getBufferedCount() + " commands held back");
+				logAndToast("Reconnected after " + recoveryMs + "ms");
+				channels.resume();
+				fileTransfers.onReconnected();
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	private void restartIce() {
+		if (!negotiation.isIceInterrupted() || pc == null) {
+			return;
+		}
+		if (negotiation.restartIce()) {
+			logAndToast("Restarting ICE...");
+		} else {
+			Log.i(TAG, "Leaving the ICE restart to the other party (or the negotiation under way)");
+		}
+	}
+
+	// The offer constraints plus IceRestart, so that the new offer carries fresh ICE credentials.
+	private MediaConstraints iceRestartConstraints() {
+		MediaConstraints pcConstraints = signalingClient.pcConstraints();
+		MediaConstraints constraints = new MediaConstraints();
+		constraints.mandatory.addAll(pcConstraints.mandatory);
+		constraints.mandatory.add(new MediaConstraints.KeyValuePair("IceRestart", "true"));
+		constraints.optional.addAll(pcConstraints.optional);
+		return constraints;
+	}
+
 	/**
-	 * Handle offer creation/signaling and answer setting, as well as adding remote ICE candidates
-	 * once the answer SDP is set.
+	 * Forward offer/answer creation and setting results to the negotiation state machine, on the
+	 * signaling thread.
 	 */
 	private class SessionDescriptionProtocolObserver implements SdpObserver {
 
 		/** Called on success of Create{Offer,Answer}(). */
 		@Override
 		public void onCreateSuccess(final SessionDescription localDescription) {
-			runOnUiThread(new Runnable() {
+			signalingExecutor.execute(new Runnable() {
 				public void run() {
-					Log.i(TAG, "Setting local description (" + localDescription.type + ")");
-					pc.setLocalDescription(sdpObserver, localDescription);
+					negotiation.onLocalDescriptionCreated(localDescription);
 				}
 			});
 		}
@@ -283,32 +583,9 @@ public class AppRTCDemoActivity extends Activity implements IceServersObserver {
 		/** Called on success of Set{Local,Remote}Description(). */
 		@Override
 		public void onSetSuccess() {
-			runOnUiThread(new Runnable() {
+			signalingExecutor.execute(new Runnable() {
 				public void run() {
-					if (signalingClient.isInitiator()) {
-						if (pc.getRemoteDescription() != null) {
-							// We've set our local offer and received & set the remote answer
-							addAllRemoteCandidatesToPeerConnection();
-						} else {
-							// We've just set our local description on the OFFER, so time to send
-							// it.
-							Log.i(TAG, "Sending local description to the other party (OFFER)");
-							sendLocalDescription();
-						}
-					} else {
-						if (pc.getLocalDescription() == null) {
-							// The remote offer is set, time to create our answer.
-							logAndToast("Creating answer...");
-							pc.createAnswer(SessionDescriptionProtocolObserver.this,
-									signalingClient.pcConstraints());
-						} else {
-							// We've just set our local description on the ANSWER, so time to send
-							// it.
-							Log.i(TAG, "Sending local description to the other party (ANSWER)");
-							sendLocalDescription();
-							addAllRemoteCandidatesToPeerConnection();
-						}
-					}
+					negotiation.onSetSuccess();
 				}
 			});
 		}
@@ -336,130 +613,194 @@ public class AppRTCDemoActivity extends Activity implements IceServersObserver {
 				}
 			});
 		}
+	}
+
+	/**
+	 * Carry out the negotiation state machine's decisions on the peer connection; invoked on the
+	 * signaling thread.
+	 */
+	private class NegotiationActions implements NegotiationStateMachine.Actions {
+
+		public void createOffer(boolean iceRestart) {
+			if (iceRestart) {
+				// Candidates of the new generation go out once the offer has.
+				candidateBatcher.reset();
+				candidateBatcher.hold();
+				pc.createOffer(sdpObserver, iceRestartConstraints());
+				return;
+			}
+			logAndToast("Creating offer...");
+			pc.createOffer(sdpObserver, signalingClient.pcConstraints());
+		}
+
+		public void createAnswer() {
+			logAndToast("Creating answer...");
+			pc.createAnswer(sdpObserver, signalingClient.pcConstraints());
+		}
+
+		public void setLocalDescription(SessionDescription description) {
+			Log.i(TAG, "Setting local description (" + description.type + ")");
+			pc.setLocalDescription(sdpObserver, description);
+		}
+
+		public void setRemoteDescription(SessionDescription description) {
+			Log.i(TAG, "Setting remote description of type " + description.type);
+			pc.setRemoteDescription(sdpObserver, description);
+		}
 
 		/**
 		 * Sends local SDP (offer or answer, depending on role) to the other participant.
 		 */
-		private void sendLocalDescription() {
-			SessionDescription sdp = pc.getLocalDescription();
-			logAndToast("Sending " + sdp.type);
-			JSONObject json = new JSONObject();
-			jsonPut(json, "type", sdp.type.canonicalForm());
-			jsonPut(json, "sdp", sdp.description);
-			sendMessage(json);
-		}
-
-		private void addAllRemoteCandidatesToPeerConnection() {
-			for (IceCandidate candidate : queuedRemoteCandidates) {
-				Log.i(TAG, "Adding Ice Candidate to my peer connection: " + candidate);
-				pc.addIceCandidate(candidate);
-			}
-			queuedRemoteCandidates = null;
-			Toast.makeText(AppRTCDemoActivity.this, "Now you can send a message", Toast.LENGTH_LONG)
-					.show();
-			submitButton.setText("Send");
-			submitButton.setEnabled(true);
+		public void sendLocalDescription(SessionDescription description) {
+			logAndToast("Sending " + description.type);
+			sendMessage(SignalingMessage.description(description));
+			candidateBatcher.release();
+		}
+
+		public void addRemoteCandidate(IceCandidate candidate) {
+			Log.i(TAG, "Adding Ice Candidate to my peer connection: " + candidate);
+			pc.addIceCandidate(candidate);
+		}
+
+		public void onNegotiated() {
+			runOnUiThread(new Runnable() {
+				public void run() {
+					Toast.makeText(AppRTCDemoActivity.this, "Now you can send a message",
+							Toast.LENGTH_LONG).show();
+					submitButton.setText("Send");
+					submitButton.setEnabled(true);
+					sendFileButton.setEnabled(true);
+				}
+			});
 		}
 	}
 
 	private class WebsocketMessageHandler implements MessageHandler {
 
-		@JavascriptInterface
 		public void whenIJoinTheRoomCreatedByMe() {
 			Log.i(TAG, "Waiting until another party arrives...");
+			// Our offer is made now, to start ICE gathering; nobody is there to receive our
+			// candidates until the other party joins.
+			candidateBatcher.hold();
+			negotiation.onRoomCreated();
 		}
 
-		@JavascriptInterface
 		public void whenAnotherPartyJoinedMyRoom() {
 			Log.i(TAG, "Another party has just joined the room");
-
-			// safety check as this message should be delivered only to me.
-			if (signalingClient.isInitiator()) {
-				logAndToast("Creating offer...");
-				pc.createOffer(sdpObserver, signalingClient.pcConstraints());
-			}
+			negotiation.onPeerJoined();
+			candidateBatcher.release();
 		}
 
-		@JavascriptInterface
 		public void whenIJoinedARoomCreatedByAnotherParty() {
 			Log.i(TAG, "Waiting for the room creator to send me an offer");
+			negotiation.onRoomJoined();
 		}
 
-		@JavascriptInterface
 		public void onMessage(String data) {
-			try {
-				JSONObject json = new JSONObject(data);
-				String type = (String) json.get("type");
-				if (type.equals("candidate")) {
-					IceCandidate candidate = new IceCandidate((String) json.get("id"),
-							json.getInt("label"), (String) json.get("candidate"));
-
-					if (queuedRemoteCandidates != null) {
-						Log.d(TAG, "Adding a remote candidate to my queue");
-						queuedRemoteCandidates.add(candidate);
-					} else {
-						Log.d(TAG,
-								"Adding a remote candidate directly to the connection, as the queue was null");
-						pc.addIceCandidate(candidate);
+			List<SignalingMessage> messages = new ArrayList<SignalingMessage>(1);
+			signalingCodec.decode(data, messages);
+			for (SignalingMessage message : messages) {
+				switch (message.type) {
+				case CANDIDATE:
+				case CANDIDATES:
+					for (IceCandidate candidate : message.candidates) {
+						addRemoteCandidate(candidate);
 					}
-				} else if (type.equals("answer") || type.equals("offer")) {
-					Log.i(TAG, "Setting remote description of type " + type);
-
-					SessionDescription sdp = new SessionDescription(
-							SessionDescription.Type.fromCanonicalForm(type),
-							(String) json.get("sdp"));
-					pc.setRemoteDescription(sdpObserver, sdp);
-				} else if (type.equals("bye")) {
+					break;
+				case OFFER:
+					if (negotiation.getState() == NegotiationStateMachine.State.NEGOTIATED) {
+						// The other party is restarting ICE; our new candidates follow the answer.
+						candidateBatcher.reset();
+						candidateBatcher.hold();
+					}
+					negotiation.onRemoteDescription(message.toSessionDescription());
+					break;
+				case ANSWER:
+					negotiation.onRemoteDescription(message.toSessionDescription());
+					break;
+				case BYE:
 					Log.i(TAG, "Remote end hung up; dropping PeerConnection");
 					disconnectAndExit();
-				} else {
-					String errorMessage = "Unexpected message: " + data;
-					Log.e(TAG, errorMessage);
-					throw new RuntimeException(errorMessage);
+					return;
 				}
 			}
-			catch (JSONException e) {
-				throw new RuntimeException(e);
-			}
 		}
 
-		@JavascriptInterface
+		// The peer connection carries on without signaling; whatever was said meanwhile is
+		// replayed once the room is rejoined.
 		public void onClose() {
-			disconnectAndExit();
+			logAndToast("Signaling lost, reconnecting...");
+		}
+
+		public void onRejoined() {
+			logAndToast("Signaling reconnected");
+		}
+
+		/**
+		 * Hand a remote candidate to the negotiation, which adds it once both descriptions are
+		 * set. Duplicates are dropped.
+		 */
+		private void addRemoteCandidate(IceCandidate candidate) {
+			if (!candidateBatcher.acceptRemote(candidate)) {
+				Log.d(TAG, "Dropping duplicate remote candidate " + candidate);
+			} else {
+				negotiation.onRemoteCandidate(candidate);
+			}
 		}
 
-		@JavascriptInterface
 		public void onError(int code, String description) {
 			disconnectAndExit();
 		}
 	}
 
-	// Disconnect from remote resources, dispose of local resources, and exit.
+	// Disconnect from remote resources, dispose of local resources, and exit. The teardown runs on
+	// the signaling thread, after anything already queued there.
 	private void disconnectAndExit() {
 		synchronized (quit[0]) {
 			if (quit[0]) {
 				return;
 			}
 			quit[0] = true;
-			if (pc != null) {
-				pc.dispose();
-				pc = null;
-			}
-			if (signalingClient != null) {
-				signalingClient.sendMessage("{\"type\": \"bye\"}");
-				signalingClient.disconnect();
-				signalingClient = null;
-			}
-			if (factory != null) {
-				factory.dispose();
-				factory = null;
-			}
-			if (dataChannel != null) {
-				dataChannel.close();
-				dataChannel.dispose();
-				dataChannel = null;
-			}
+		}
+		candidateBatcher.close();
+		if (signalingHandler == null) {
 			finish();
+			return;
 		}
+		signalingExecutor.execute(new Runnable() {
+			public void run() {
+				negotiation.close();
+				signalingHandler.removeCallbacks(iceRestartTask);
+				if (fileTransfers != null) {
+					fileTransfers.close();
+				}
+				signalingHandler.removeCallbacks(telemetryTask);
+				for (DataChannelManager.ChannelStats stats : channels.getStats()) {
+					Log.d(TAG, "Channel stats: " + stats);
+				}
+				channels.close();
+				commandReceiver.close();
+				Log.d(TAG, "Receive stats: " + commandReceiver.getStats());
+				if (pc != null) {
+					pc.dispose();
+					pc = null;
+				}
+				if (signalingClient != null) {
+					signalingClient.sendMessage(signalingCodec.encode(SignalingMessage.bye()));
+					signalingClient.disconnect();
+					signalingClient = null;
+				}
+				if (factory != null) {
+					factory.dispose();
+					factory = null;
+				}
+				signalingThread.quit();
+			}
+		});
+		runOnUiThread(new Runnable() {
+			public void run() {
+				finish();
+			}
+		});
 	}
 }
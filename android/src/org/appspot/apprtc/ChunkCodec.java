@@ -0,0 +1,158 @@
+package org.appspot.apprtc;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Encodes and decodes the binary frames that carry a large payload (a file) over a data channel in
+ * numbered chunks. Every frame starts with its kind and the id of its transfer:
+ *
+ * <pre>
+ * START    kind(1) id(8) size(8) chunk size(4) name length(2) name(UTF-8)
+ * DATA     kind(1) id(8) seq(4) payload
+ * RESUME   kind(1) id(8) seq(4)
+ * COMPLETE kind(1) id(8)
+ * </pre>
+ *
+ * Integers are big-endian. The sender opens a transfer with START, which the receiver answers with
+ * RESUME naming the first chunk it lacks (0 for a new transfer); the sender then sends DATA from
+ * there on. The receiver answers a repeated START the same way, which is how a transfer resumes
+ * after an interruption, and sends COMPLETE once it has every chunk. See
+ * {@link FileTransferManager}.
+ * <p>
+ * Plain Java, with no Android or WebRTC dependency.
+ */
+public class ChunkCodec {
+	public static final byte START = 1;
+
+	public static final byte DATA = 2;
+
+	public static final byte RESUME = 3;
+
+	public static final byte COMPLETE = 4;
+
+	/** Bytes in a DATA frame ahead of the payload. */
+	public static final int DATA_HEADER_SIZE = 1 + 8 + 4;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	// Longer names are cut short, well within a START frame's name length field.
+	private static final int MAX_NAME_BYTES = 1024;
+
+	/** A decoded frame; only the fields its kind carries are set. */
+	public static class Frame {
+		public byte kind;
+
+		public long transferId;
+
+		/** DATA's chunk, or RESUME's first missing chunk. */
+		public int seq;
+
+		/** START only. */
+		public long size;
+
+		/** START only. */
+		public int chunkSize;
+
+		/** START only. */
+		public String name;
+
+		/** DATA only: a view of the decoded frame's payload. */
+		public ByteBuffer payload;
+	}
+
+	private ChunkCodec() {
+	}
+
+	public static ByteBuffer start(long transferId, long size, int chunkSize, String name) {
+		byte[] nameBytes = name.getBytes(UTF_8);
+		int nameLength = Math.min(nameBytes.length, MAX_NAME_BYTES);
+		ByteBuffer frame = ByteBuffer.allocate(1 + 8 + 8 + 4 + 2 + nameLength);
+		frame.put(START).putLong(transferId).putLong(size).putInt(chunkSize)
+				.putShort((short) nameLength).put(nameBytes, 0, nameLength);
+		frame.flip();
+		return frame;
+	}
+
+	/**
+	 * Write a DATA frame's header into |out|, which must have room for DATA_HEADER_SIZE bytes; the
+	 * payload goes right after it.
+	 */
+	public static void writeDataHeader(ByteBuffer out, long transferId, int seq) {
+		out.put(DATA).putLong(transferId).putInt(seq);
+	}
+
+	public static ByteBuffer resume(long transferId, int seq) {
+		ByteBuffer frame = ByteBuffer.allocate(1 + 8 + 4);
+		frame.put(RESUME).putLong(transferId).putInt(seq);
+		frame.flip();
+		return frame;
+	}
+
+	public static ByteBuffer complete(long transferId) {
+		ByteBuffer frame = ByteBuffer.allocate(1 + 8);
+		frame.put(COMPLETE).putLong(transferId);
+		frame.flip();
+		return frame;
+	}
+
+	/**
+	 * Decode the remaining bytes of |frame| into |out|, consuming them; a DATA frame's payload is a
+	 * view of |frame|, so valid as long as it is. Throws IllegalArgumentException if |frame| is
+	 * malformed.
+	 */
+	public static void decode(ByteBuffer frame, Frame out) {
+		try {
+			out.kind = frame.get();
+			out.transferId = frame.getLong();
+			out.name = null;
+			out.payload = null;
+			switch (out.kind) {
+			case START:
+				out.size = frame.getLong();
+				out.chunkSize = frame.getInt();
+				int nameLength = frame.getShort() & 0xffff;
+				if (out.size < 0 || out.chunkSize <= 0) {
+					throw new IllegalArgumentException("Bad START: size " + out.size + ", chunk size "
+							+ out.chunkSize);
+				}
+				byte[] nameBytes = new byte[nameLength];
+				frame.get(nameBytes);
+				out.name = new String(nameBytes, UTF_8);
+				break;
+			case DATA:
+				out.seq = readSeq(frame);
+				out.payload = frame.slice();
+				frame.position(frame.limit());
+				break;
+			case RESUME:
+				out.seq = readSeq(frame);
+				break;
+			case COMPLETE:
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown chunk frame kind " + out.kind);
+			}
+			if (frame.hasRemaining()) {
+				throw new IllegalArgumentException("Trailing bytes in chunk frame of kind " + out.kind);
+			}
+		}
+		catch (BufferUnderflowException e) {
+			throw new IllegalArgumentException("Truncated chunk frame", e);
+		}
+	}
+
+	/** How many chunks of |chunkSize| bytes a payload of |size| bytes takes. */
+	public static long chunkCount(long size, int chunkSize) {
+		return (size + chunkSize - 1) / chunkSize;
+	}
+
+	private static int readSeq(ByteBuffer frame) {
+		int seq = frame.getInt();
+		if (seq < 0) {
+			throw new IllegalArgumentException("Negative chunk sequence number " + seq);
+		}
+		return seq;
+	}
+}
@@ -0,0 +1,318 @@
+package org.appspot.apprtc;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encodes and decodes the binary envelope that commands travel in over a data channel:
+ *
+ * <pre>
+ * version(1) type(1) flags(1) length(varint) payload
+ * </pre>
+ *
+ * |length| is the payload's size once decompressed, as an unsigned LEB128 varint. Payloads of at
+ * least the compression threshold are deflated, and the DEFLATED flag set, if that makes them
+ * smaller. A decoder rejects versions, types and flags it doesn't know.
+ * <p>
+ * Nothing is allocated per message once warmed up: encoded frames come from a pool, to which
+ * {@link #recycle(ByteBuffer)} returns them once sent, and a decoded payload is a view of the
+ * frame, or of the codec's own inflate buffer. Plain Java, with no Android or WebRTC dependency.
+ * Instances may be shared between threads.
+ */
+public class CommandCodec {
+	public static final int VERSION = 1;
+
+	/** A command typed by the user, as UTF-8 text. */
+	public static final int TYPE_COMMAND = 1;
+
+	public static final int FLAG_DEFLATED = 1;
+
+	/**
+	 * Smaller payloads aren't worth deflating: they shrink by a few bytes at best, for far more time
+	 * than the rest of encoding.
+	 */
+	public static final int DEFAULT_COMPRESSION_THRESHOLD = 256;
+
+	/** Larger payloads are refused, lest a small deflated frame inflate to an enormous one. */
+	public static final int MAX_PAYLOAD_SIZE = 1024 * 1024;
+
+	// Version, type and flags.
+	private static final int FIXED_HEADER_SIZE = 3;
+
+	private static final int MAX_POOLED_FRAMES = 16;
+
+	private static final int MIN_FRAME_SIZE = 256;
+
+	/** A decoded envelope. */
+	public static class Envelope {
+		public int type;
+
+		public int flags;
+
+		/**
+		 * The payload, from its position to its limit: the decoded frame itself, or the codec's
+		 * buffer, valid until the codec's next decode().
+		 */
+		public ByteBuffer payload;
+	}
+
+	private final int compressionThreshold;
+
+	private final BlockingQueue<ByteBuffer> framePool = new ArrayBlockingQueue<ByteBuffer>(
+			MAX_POOLED_FRAMES);
+
+	// These members are only read/written under |this|'s lock.
+	private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+	private final Inflater inflater = new Inflater();
+
+	private ByteBuffer scratch = ByteBuffer.allocate(MIN_FRAME_SIZE);
+
+	private ByteBuffer inflated = ByteBuffer.allocate(MIN_FRAME_SIZE);
+
+	private final byte[] overflow = new byte[1];
+
+	public CommandCodec() {
+		this(DEFAULT_COMPRESSION_THRESHOLD);
+	}
+
+	public CommandCodec(int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	/**
+	 * Encode |text| as a message of |type|; the frame may be handed to {@link #recycle(ByteBuffer)}
+	 * once sent. Unpaired surrogates are encoded as '?'.
+	 */
+	public synchronized ByteBuffer encode(int type, CharSequence text) {
+		int maxLength = text.length() * 3;
+		if (scratch.capacity() < maxLength) {
+			scratch = ByteBuffer.allocate(maxLength);
+		}
+		scratch.clear();
+		writeUtf8(text, scratch);
+		scratch.flip();
+		return encode(type, scratch);
+	}
+
+	/**
+	 * Encode the remaining bytes of |payload|, which are left unconsumed, as a message of |type|;
+	 * the frame may be handed to {@link #recycle(ByteBuffer)} once sent.
+	 */
+	public synchronized ByteBuffer encode(int type, ByteBuffer payload) {
+		checkType(type);
+		int length = payload.remaining();
+		if (length > MAX_PAYLOAD_SIZE) {
+			throw new IllegalArgumentException("Payload too large: " + length);
+		}
+		ByteBuffer frame = obtainFrame(FIXED_HEADER_SIZE + varintSize(length) + length);
+		frame.put((byte) VERSION).put((byte) type).put((byte) 0);
+		writeVarint(length, frame);
+		if (length >= compressionThreshold && deflate(payload, frame)) {
+			frame.put(2, (byte) FLAG_DEFLATED);
+		} else {
+			int position = payload.position();
+			frame.put(payload);
+			payload.position(position);
+		}
+		frame.flip();
+		return frame;
+	}
+
+	/** Return a frame from encode() to the pool, once it has been sent. */
+	public void recycle(ByteBuffer frame) {
+		frame.clear();
+		framePool.offer(frame);
+	}
+
+	/**
+	 * Decode the remaining bytes of |frame| into |envelope|. Throws IllegalArgumentException if
+	 * |frame| is malformed, or of an unknown version, type or flags.
+	 */
+	public synchronized void decode(ByteBuffer frame, Envelope envelope) {
+		try {
+			int version = frame.get() & 0xff;
+			if (version != VERSION) {
+				throw new IllegalArgumentException("Unsupported envelope version " + version);
+			}
+			envelope.type = frame.get() & 0xff;
+			checkType(envelope.type);
+			envelope.flags = frame.get() & 0xff;
+			if ((envelope.flags & ~FLAG_DEFLATED) != 0) {
+				throw new IllegalArgumentException("Unknown flags " + envelope.flags);
+			}
+			int length = readVarint(frame);
+			if (length > MAX_PAYLOAD_SIZE) {
+				throw new IllegalArgumentException("Payload too large: " + length);
+			}
+			if ((envelope.flags & FLAG_DEFLATED) != 0) {
+				envelope.payload = inflate(frame, length);
+			} else {
+				if (frame.remaining() != length) {
+					throw new IllegalArgumentException("Payload of " + frame.remaining()
+							+ " bytes, expected " + length);
+				}
+				envelope.payload = frame;
+			}
+		}
+		catch (BufferUnderflowException e) {
+			throw new IllegalArgumentException("Truncated envelope", e);
+		}
+	}
+
+	// Deflate |payload| into |frame| if it comes out smaller; leaves |payload| unconsumed.
+	private boolean deflate(ByteBuffer payload, ByteBuffer frame) {
+		int length = payload.remaining();
+		byte[] input;
+		int offset;
+		if (payload.hasArray()) {
+			input = payload.array();
+			offset = payload.arrayOffset() + payload.position();
+		} else {
+			if (scratch.capacity() < length) {
+				scratch = ByteBuffer.allocate(length);
+			}
+			input = scratch.array();
+			offset = 0;
+			payload.duplicate().get(input, 0, length);
+		}
+		deflater.reset();
+		deflater.setInput(input, offset, length);
+		deflater.finish();
+		byte[] output = frame.array();
+		int start = frame.arrayOffset() + frame.position();
+		// Anything short of the raw length is a saving.
+		int room = length - 1;
+		int written = 0;
+		while (!deflater.finished() && written < room) {
+			written += deflater.deflate(output, start + written, room - written);
+		}
+		if (!deflater.finished()) {
+			return false;
+		}
+		frame.position(frame.position() + written);
+		return true;
+	}
+
+	private ByteBuffer inflate(ByteBuffer frame, int length) {
+		byte[] input;
+		int offset;
+		int compressed = frame.remaining();
+		if (frame.hasArray()) {
+			input = frame.array();
+			offset = frame.arrayOffset() + frame.position();
+		} else {
+			if (scratch.capacity() < compressed) {
+				scratch = ByteBuffer.allocate(compressed);
+			}
+			input = scratch.array();
+			offset = 0;
+			frame.duplicate().get(input, 0, compressed);
+		}
+		frame.position(frame.limit());
+		if (inflated.capacity() < length) {
+			inflated = ByteBuffer.allocate(length);
+		}
+		inflater.reset();
+		inflater.setInput(input, offset, compressed);
+		int read = 0;
+		try {
+			while (!inflater.finished() && read < length) {
+				int n = inflater.inflate(inflated.array(), read, length - read);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				read += n;
+			}
+			// Make sure nothing is left over past |length|.
+			if (!inflater.finished() && inflater.inflate(overflow) > 0) {
+				throw new IllegalArgumentException("Payload inflates past " + length + " bytes");
+			}
+		}
+		catch (DataFormatException e) {
+			throw new IllegalArgumentException("Bad deflated payload", e);
+		}
+		if (!inflater.finished() || read != length || inflater.getRemaining() != 0) {
+			throw new IllegalArgumentException("Deflated payload doesn't match length " + length);
+		}
+		inflated.clear();
+		inflated.limit(length);
+		return inflated;
+	}
+
+	// A cleared heap buffer with room for at least |size| bytes.
+	private ByteBuffer obtainFrame(int size) {
+		ByteBuffer frame = framePool.poll();
+		if (frame == null || frame.capacity() < size) {
+			return ByteBuffer.allocate(Math.max(size, MIN_FRAME_SIZE));
+		}
+		return frame;
+	}
+
+	private static void checkType(int type) {
+		if (type != TYPE_COMMAND) {
+			throw new IllegalArgumentException("Unknown message type " + type);
+		}
+	}
+
+	private static int varintSize(int value) {
+		int size = 1;
+		while ((value >>>= 7) != 0) {
+			++size;
+		}
+		return size;
+	}
+
+	private static void writeVarint(int value, ByteBuffer out) {
+		while ((value & ~0x7f) != 0) {
+			out.put((byte) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		out.put((byte) value);
+	}
+
+	private static int readVarint(ByteBuffer in) {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = in.get() & 0xff;
+			value |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				if (value < 0) {
+					throw new IllegalArgumentException("Length out of range");
+				}
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("Length varint too long");
+	}
+
+	// UTF-8 encode |text| into |out|, which has room for 3 bytes per char.
+	private static void writeUtf8(CharSequence text, ByteBuffer out) {
+		int length = text.length();
+		for (int i = 0; i < length; ++i) {
+			char c = text.charAt(i);
+			if (c < 0x80) {
+				out.put((byte) c);
+			} else if (c < 0x800) {
+				out.put((byte) (0xc0 | (c >> 6))).put((byte) (0x80 | (c & 0x3f)));
+			} else if (Character.isHighSurrogate(c) && i + 1 < length
+					&& Character.isLowSurrogate(text.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, text.charAt(++i));
+				out.put((byte) (0xf0 | (codePoint >> 18)))
+						.put((byte) (0x80 | ((codePoint >> 12) & 0x3f)))
+						.put((byte) (0x80 | ((codePoint >> 6) & 0x3f)))
+						.put((byte) (0x80 | (codePoint & 0x3f)));
+			} else if (Character.isSurrogate(c)) {
+				out.put((byte) '?');
+			} else {
+				out.put((byte) (0xe0 | (c >> 12))).put((byte) (0x80 | ((c >> 6) & 0x3f)))
+						.put((byte) (0x80 | (c & 0x3f)));
+			}
+		}
+	}
+}
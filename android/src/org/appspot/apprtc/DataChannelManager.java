@@ -0,0 +1,199 @@
+package org.appspot.apprtc;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.webrtc.DataChannel;
+import org.webrtc.PeerConnection;
+
+import android.util.Log;
+
+/**
+ * Opens the app's data channels, each suited to one kind of traffic, and sends on them through a
+ * {@link SendScheduler}, so that a command never waits behind a file transfer.
+ * <p>
+ * The channels are negotiated out of band, with fixed ids: both parties create the same ones
+ * with {@link #open(PeerConnection)}, without waiting for each other, and any channel the other
+ * party opens in band is refused.
+ * <p>
+ * All methods may be called from any thread; the {@link Receiver} is invoked on the channels'
+ * thread.
+ */
+public class DataChannelManager {
+	/** The channels, with their delivery guarantees and share of the send budget. */
+	public enum Channel {
+		/** Commands typed by the user: reliable, ordered, and sent first. */
+		CONTROL("commands", 0, true, -1, 16, 256),
+		/** Periodic status: unordered and never retransmitted, as a late sample is worthless. */
+		TELEMETRY("telemetry", 1, false, 0, 4, 16),
+		/** File transfers: reliable and ordered, in whatever bandwidth is left. */
+		BULK("files", 2, true, -1, 1, 64);
+
+		public final String label;
+
+		final int id;
+
+		final boolean ordered;
+
+		// -1 to retransmit until delivered.
+		final int maxRetransmits;
+
+		final int weight;
+
+		final int maxBuffered;
+
+		private Channel(String label, int id, boolean ordered, int maxRetransmits, int weight,
+				int maxBuffered) {
+			this.label = label;
+			this.id = id;
+			this.ordered = ordered;
+			this.maxRetransmits = maxRetransmits;
+			this.weight = weight;
+			this.maxBuffered = maxBuffered;
+		}
+	}
+
+	/** Receives what happens on the channels. */
+	public interface Receiver {
+		public void onStateChange(Channel channel, DataChannel.State state);
+
+		/** |buffer| is only valid during the call. */
+		public void onMessage(Channel channel, DataChannel.Buffer buffer);
+	}
+
+	private static final String TAG = "DataChannelManager";
+
+	private final Receiver receiver;
+
+	private final SendScheduler scheduler = new SendScheduler();
+
+	private final AtomicLongArray messagesReceived = new AtomicLongArray(Channel.values().length);
+
+	private final AtomicLongArray bytesReceived = new AtomicLongArray(Channel.values().length);
+
+	// These members are only read/written under |this|'s lock.
+	private final Map<Channel, DataChannel> channels = new EnumMap<Channel, DataChannel>(
+			Channel.class);
+
+	private final Map<Channel, DataChannelSender> senders = new EnumMap<Channel, DataChannelSender>(
+			Channel.class);
+
+	public DataChannelManager(Receiver receiver) {
+		this.receiver = receiver;
+	}
+
+	/** Create every channel on |pc|. */
+	public synchronized void open(PeerConnection pc) {
+		if (!channels.isEmpty()) {
+			throw new IllegalStateException("Data channels already open");
+		}
+		for (final Channel channel : Channel.values()) {
+			DataChannel.Init init = new DataChannel.Init();
+			init.ordered = channel.ordered;
+			init.maxRetransmits = channel.maxRetransmits;
+			init.negotiated = true;
+			init.id = channel.id;
+			final DataChannel dataChannel = pc.createDataChannel(channel.label, init);
+			final DataChannelSender sender = scheduler.newSender(dataChannel, channel.weight,
+					channel.maxBuffered);
+			dataChannel.registerObserver(new DataChannel.Observer() {
+				public void onStateChange() {
+					DataChannel.State state = dataChannel.state();
+					Log.d(TAG, channel.label + " is " + state);
+					sender.onStateChange(state);
+					receiver.onStateChange(channel, state);
+				}
+
+				public void onMessage(DataChannel.Buffer buffer) {
+					messagesReceived.incrementAndGet(channel.ordinal());
+					bytesReceived.addAndGet(channel.ordinal(), buffer.data.remaining());
+					receiver.onMessage(channel, buffer);
+				}
+			});
+			channels.put(channel, dataChannel);
+			senders.put(channel, sender);
+		}
+	}
+
+	/** Where to send on |channel|; null before {@link #open(PeerConnection)}. */
+	public synchronized DataChannelSender getSender(Channel channel) {
+		return senders.get(channel);
+	}
+
+	/** Hold back sending on every channel, e.g. while ICE is interrupted. */
+	public synchronized void pause() {
+		for (DataChannelSender sender : senders.values()) {
+			sender.pause();
+		}
+	}
+
+	public synchronized void resume() {
+		for (DataChannelSender sender : senders.values()) {
+			sender.resume();
+		}
+	}
+
+	/**
+	 * The other party opened |dataChannel| in band (see
+	 * {@link PeerConnection.Observer#onDataChannel(DataChannel)}); ours are all negotiated out of
+	 * band, so it is closed.
+	 */
+	public void onRemoteDataChannel(DataChannel dataChannel) {
+		Log.w(TAG, "Closing unexpected data channel " + dataChannel.label());
+		dataChannel.close();
+	}
+
+	/** Per-channel traffic so far. */
+	public synchronized List<ChannelStats> getStats() {
+		List<ChannelStats> stats = new ArrayList<ChannelStats>(senders.size());
+		for (Map.Entry<Channel, DataChannelSender> entry : senders.entrySet()) {
+			Channel channel = entry.getKey();
+			stats.add(new ChannelStats(channel, entry.getValue().getStats(), messagesReceived
+					.get(channel.ordinal()), bytesReceived.get(channel.ordinal())));
+		}
+		return stats;
+	}
+
+	/** One channel's traffic: what was sent, with its queueing latency, and what was received. */
+	public static class ChannelStats {
+		public final Channel channel;
+
+		public final DataChannelSender.Stats sent;
+
+		public final long messagesReceived;
+
+		public final long bytesReceived;
+
+		ChannelStats(Channel channel, DataChannelSender.Stats sent, long messagesReceived,
+				long bytesReceived) {
+			this.channel = channel;
+			this.sent = sent;
+			this.messagesReceived = messagesReceived;
+			this.bytesReceived = bytesReceived;
+		}
+
+		@Override
+		public String toString() {
+			return channel.label + ": sent " + sent + ", received messages=" + messagesReceived
+					+ " bytes=" + bytesReceived;
+		}
+	}
+
+	/** Drop what is queued and close and dispose of every channel. */
+	public synchronized void close() {
+		scheduler.close();
+		for (DataChannelSender sender : senders.values()) {
+			sender.close();
+		}
+		senders.clear();
+		for (DataChannel dataChannel : channels.values()) {
+			dataChannel.unregisterObserver();
+			dataChannel.close();
+			dataChannel.dispose();
+		}
+		channels.clear();
+	}
+}
@@ -0,0 +1,221 @@
+package org.appspot.apprtc;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.webrtc.DataChannel;
+
+import android.util.Log;
+
+/**
+ * Decodes the commands arriving on a data channel and hands them to registered {@link Consumer}s
+ * on a worker thread of its own, so that the data channel's thread only decodes. Binary messages
+ * are {@link CommandCodec} envelopes; text ones, as sent by older versions, are taken as plain
+ * UTF-8 commands.
+ * <p>
+ * Each message is bulk-copied out of the channel's (direct) buffer into a reused array, which one
+ * cached decoder decodes into a pooled CharBuffer that goes back to the pool once the consumers are
+ * done with it, by way of a bounded queue: the steady state allocates nothing per message.
+ * (Decoding the direct buffer itself would skip the copy, but takes the decoder's byte-at-a-time
+ * path, over ten times slower.) Should the consumers fall MAX_QUEUED_MESSAGES behind, further
+ * messages are dropped, and counted, rather than held in memory without bound or left to block the
+ * channel's thread.
+ * <p>
+ * All methods may be called from any thread; consumers are invoked on the worker thread, in the
+ * order messages arrived.
+ */
+public class DataChannelReceiver {
+	/** Receives every message, in order. */
+	public interface Consumer {
+		/** |message| is only valid during the call: copy whatever must outlive it. */
+		public void onMessage(CharSequence message);
+	}
+
+	private static final String TAG = "DataChannelReceiver";
+
+	// Buffers smaller than this aren't worth pooling separately; most commands fit.
+	private static final int MIN_BUFFER_CHARS = 256;
+
+	// Buffers kept for reuse; more are allocated, and dropped afterwards, only in bursts.
+	private static final int MAX_POOLED_BUFFERS = 16;
+
+	// Messages decoded but not yet handed to the consumers; later ones are dropped.
+	private static final int MAX_QUEUED_MESSAGES = 256;
+
+	private final CharsetDecoder decoder = Charset.forName("UTF-8").newDecoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+	// Guarded by |decoder|; grown to the largest message seen.
+	private ByteBuffer bytes = ByteBuffer.allocate(MIN_BUFFER_CHARS);
+
+	private final CommandCodec codec = new CommandCodec();
+
+	// Guarded by |decoder|.
+	private final CommandCodec.Envelope envelope = new CommandCodec.Envelope();
+
+	private final List<Consumer> consumers = new CopyOnWriteArrayList<Consumer>();
+
+	private final BlockingQueue<CharBuffer> received = new ArrayBlockingQueue<CharBuffer>(
+			MAX_QUEUED_MESSAGES);
+
+	private final BlockingQueue<CharBuffer> pool = new ArrayBlockingQueue<CharBuffer>(
+			MAX_POOLED_BUFFERS);
+
+	private final AtomicLong messagesReceived = new AtomicLong();
+
+	private final AtomicLong bytesReceived = new AtomicLong();
+
+	private final AtomicLong messagesDropped = new AtomicLong();
+
+	private final Thread worker;
+
+	private volatile boolean closed = false;
+
+	public DataChannelReceiver() {
+		worker = new Thread(new Runnable() {
+			public void run() {
+				dispatch();
+			}
+		}, TAG);
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	public void addConsumer(Consumer consumer) {
+		consumers.add(consumer);
+	}
+
+	public void removeConsumer(Consumer consumer) {
+		consumers.remove(consumer);
+	}
+
+	/**
+	 * Decode |buffer| and queue it for the consumers; suitable for calling straight from
+	 * {@link DataChannel.Observer#onMessage(DataChannel.Buffer)}. Consumes |buffer|'s data, and
+	 * keeps no reference to it.
+	 */
+	public void onMessage(DataChannel.Buffer buffer) {
+		if (closed) {
+			return;
+		}
+		ByteBuffer data = buffer.data;
+		int length = data.remaining();
+		CharBuffer message;
+		synchronized (decoder) {
+			if (bytes.capacity() < length) {
+				bytes = ByteBuffer.allocate(length);
+			}
+			bytes.clear();
+			bytes.put(data);
+			bytes.flip();
+			ByteBuffer text = bytes;
+			if (buffer.binary) {
+				try {
+					codec.decode(bytes, envelope);
+				}
+				catch (IllegalArgumentException e) {
+					Log.w(TAG, "Dropping undecodable message: " + e.getMessage());
+					return;
+				}
+				// TYPE_COMMAND being the only type so far, the payload is the command's text.
+				text = envelope.payload;
+			}
+			// Never more chars than bytes in UTF-8, so a single pass fits.
+			message = obtainBuffer((int) (text.remaining() * decoder.maxCharsPerByte()));
+			decoder.reset();
+			decoder.decode(text, message, true);
+			decoder.flush(message);
+		}
+		message.flip();
+		messagesReceived.incrementAndGet();
+		bytesReceived.addAndGet(length);
+		if (!received.offer(message)) {
+			if (messagesDropped.incrementAndGet() == 1) {
+				Log.w(TAG, "Consumers " + MAX_QUEUED_MESSAGES + " messages behind, dropping");
+			}
+			message.clear();
+			pool.offer(message);
+		}
+	}
+
+	public Stats getStats() {
+		return new Stats(messagesReceived.get(), bytesReceived.get(), messagesDropped.get(),
+				received.size());
+	}
+
+	/** A snapshot of what has been received so far. */
+	public static class Stats {
+		public final long messagesReceived;
+
+		public final long bytesReceived;
+
+		/** Messages dropped because the consumers were too far behind. */
+		public final long messagesDropped;
+
+		/** Messages decoded but not yet handed to the consumers. */
+		public final int queued;
+
+		Stats(long messagesReceived, long bytesReceived, long messagesDropped, int queued) {
+			this.messagesReceived = messagesReceived;
+			this.bytesReceived = bytesReceived;
+			this.messagesDropped = messagesDropped;
+			this.queued = queued;
+		}
+
+		@Override
+		public String toString() {
+			return "messages=" + messagesReceived + " bytes=" + bytesReceived + " dropped="
+					+ messagesDropped + " queued=" + queued;
+		}
+	}
+
+	/** Drop queued messages and stop the worker thread; later messages are ignored. */
+	public void close() {
+		closed = true;
+		worker.interrupt();
+		received.clear();
+	}
+
+	// A cleared buffer with room for at least |chars| chars.
+	private CharBuffer obtainBuffer(int chars) {
+		CharBuffer buffer = pool.poll();
+		if (buffer == null || buffer.capacity() < chars) {
+			// A too-small pooled buffer is dropped, so the pool drifts towards the sizes in use.
+			return CharBuffer.allocate(Math.max(chars, MIN_BUFFER_CHARS));
+		}
+		return buffer;
+	}
+
+	private void dispatch() {
+		// Whatever has queued up is taken at once, rather than contending for the queue per message.
+		List<CharBuffer> batch = new ArrayList<CharBuffer>(MAX_QUEUED_MESSAGES);
+		try {
+			while (!closed) {
+				batch.add(received.take());
+				received.drainTo(batch);
+				for (CharBuffer message : batch) {
+					for (Consumer consumer : consumers) {
+						consumer.onMessage(message);
+						message.rewind();
+					}
+					message.clear();
+					pool.offer(message);
+				}
+				batch.clear();
+			}
+		}
+		catch (InterruptedException e) {
+			// Closed.
+		}
+	}
+}
@@ -0,0 +1,475 @@
+package org.appspot.apprtc;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.webrtc.DataChannel;
+
+/**
+ * Sends messages on a {@link DataChannel} with flow control. Messages are queued, up to a bound,
+ * and handed to the channel in order only while it is open, not paused and not too far behind:
+ * once the channel's {@link DataChannel#bufferedAmount()} reaches the high watermark, sending stops
+ * until it drains to the low one. The channel reports no drain events, so it is polled meanwhile.
+ * <p>
+ * Sending is paused between {@link #pause()} and {@link #resume()} (e.g. while ICE is
+ * interrupted), and while the channel isn't open, as reported to
+ * {@link #onStateChange(DataChannel.State)}; messages queued then go out once it is. Each send
+ * returns a {@link Completion} telling when its message was handed to the channel, or dropped.
+ * <p>
+ * A sender made by a {@link SendScheduler} queues every message and leaves it to the scheduler to
+ * pick when to send it, within a budget shared with other channels, instead of watching its own
+ * channel's watermarks.
+ * <p>
+ * All methods may be called from any thread; completion listeners are invoked on whichever thread
+ * completes the message, never under the sender's lock.
+ */
+public class DataChannelSender {
+	/** How many messages may be queued. */
+	public static final int DEFAULT_MAX_BUFFERED = 256;
+
+	/** Stop handing messages to the channel once it has this many bytes buffered... */
+	public static final long DEFAULT_HIGH_WATERMARK = 256 * 1024;
+
+	/** ...and carry on once it is down to this many. */
+	public static final long DEFAULT_LOW_WATERMARK = 64 * 1024;
+
+	// How often the channel's buffered amount is checked while above the watermarks.
+	private static final long DRAIN_POLL_MS = 10;
+
+	private static final String TAG = "DataChannelSender";
+
+	/** Tracks one message: whether it was handed to the channel, or dropped. */
+	public static class Completion {
+		public interface Listener {
+			/** |sent| is false if the message was dropped (queue full, channel closed...). */
+			public void onComplete(boolean sent);
+		}
+
+		// Shared by messages completed on the spot.
+		static final Completion SENT = new Completion(true);
+
+		static final Completion DROPPED = new Completion(false);
+
+		// These members are only read/written under |this|'s lock.
+		private boolean done;
+
+		private boolean sent;
+
+		private Listener listener;
+
+		// When the message was queued.
+		final long queuedNanos;
+
+		Completion() {
+			queuedNanos = System.nanoTime();
+		}
+
+		private Completion(boolean sent) {
+			this.done = true;
+			this.sent = sent;
+			this.queuedNanos = 0;
+		}
+
+		public synchronized boolean isDone() {
+			return done;
+		}
+
+		/** Whether the message was handed to the channel; false while still queued. */
+		public synchronized boolean isSent() {
+			return sent;
+		}
+
+		/** Call |listener| once the message is done with; right away if it already is. */
+		public void setListener(Listener listener) {
+			boolean sentNow;
+			synchronized (this) {
+				if (!done) {
+					this.listener = listener;
+					return;
+				}
+				sentNow = sent;
+			}
+			listener.onComplete(sentNow);
+		}
+
+		/**
+		 * Wait up to |timeoutMs| for the message to be done with; returns whether it was sent (false
+		 * on timeout).
+		 */
+		public synchronized boolean await(long timeoutMs) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + timeoutMs;
+			long left = timeoutMs;
+			while (!done && left > 0) {
+				wait(left);
+				left = deadline - System.currentTimeMillis();
+			}
+			return sent;
+		}
+
+		void complete(boolean sent) {
+			Listener listener;
+			synchronized (this) {
+				if (done) {
+					return;
+				}
+				done = true;
+				this.sent = sent;
+				listener = this.listener;
+				this.listener = null;
+				notifyAll();
+			}
+			if (listener != null) {
+				listener.onComplete(sent);
+			}
+		}
+	}
+
+	private final DataChannel channel;
+
+	// Null if the sender schedules itself.
+	private final SendScheduler scheduler;
+
+	private final int maxBuffered;
+
+	private final long highWatermark;
+
+	private final long lowWatermark;
+
+	private final ScheduledExecutorService drainTimer = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, TAG);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private final Runnable drainTask = new Runnable() {
+		public void run() {
+			synchronized (DataChannelSender.this) {
+				drainScheduled = false;
+			}
+			drain();
+		}
+	};
+
+	// These members are only read/written under |this|'s lock.
+	private final ArrayDeque<DataChannel.Buffer> buffered = new ArrayDeque<DataChannel.Buffer>();
+
+	private final ArrayDeque<Completion> completions = new ArrayDeque<Completion>();
+
+	private boolean paused = false;
+
+	private boolean open;
+
+	// Whether the channel went past the high watermark and hasn't drained to the low one since.
+	private boolean aboveWatermark = false;
+
+	private boolean drainScheduled = false;
+
+	private boolean closed = false;
+
+	private final long startNanos = System.nanoTime();
+
+	private long messagesSent = 0;
+
+	private long bytesSent = 0;
+
+	private long messagesDropped = 0;
+
+	// From send() to the channel, in microseconds.
+	private final LatencyHistogram queueLatencyUs = new LatencyHistogram();
+
+	public DataChannelSender(DataChannel channel) {
+		this(channel, DEFAULT_MAX_BUFFERED, DEFAULT_HIGH_WATERMARK, DEFAULT_LOW_WATERMARK);
+	}
+
+	public DataChannelSender(DataChannel channel, int maxBuffered, long highWatermark,
+			long lowWatermark) {
+		this(channel, maxBuffered, highWatermark, lowWatermark, null);
+	}
+
+	// For SendScheduler.
+	DataChannelSender(DataChannel channel, int maxBuffered, SendScheduler scheduler) {
+		this(channel, maxBuffered, 0, 0, scheduler);
+	}
+
+	private DataChannelSender(DataChannel channel, int maxBuffered, long highWatermark,
+			long lowWatermark, SendScheduler scheduler) {
+		if (maxBuffered < 1) {
+			throw new IllegalArgumentException("Need room for at least one message: "
+					+ maxBuffered);
+		}
+		if (lowWatermark < 0 || lowWatermark > highWatermark) {
+			throw new IllegalArgumentException("Bad watermarks: low " + lowWatermark + ", high "
+					+ highWatermark);
+		}
+		this.channel = channel;
+		this.scheduler = scheduler;
+		this.maxBuffered = maxBuffered;
+		this.highWatermark = highWatermark;
+		this.lowWatermark = lowWatermark;
+		this.open = channel.state() == DataChannel.State.OPEN;
+	}
+
+	/**
+	 * Send |buffer| now, or queue it until the channel can take it. The message is dropped,
+	 * completing unsent, if too many are queued already or the sender is closed.
+	 */
+	public Completion send(DataChannel.Buffer buffer) {
+		Completion completion;
+		synchronized (this) {
+			if (closed) {
+				++messagesDropped;
+				return Completion.DROPPED;
+			}
+			if (scheduler == null && buffered.isEmpty() && canSend()) {
+				int size = buffer.data.remaining();
+				if (trySend(buffer)) {
+					recordSent(size, 0);
+					checkWatermark();
+					return Completion.SENT;
+				}
+			}
+			if (buffered.size() >= maxBuffered) {
+				++messagesDropped;
+				return Completion.DROPPED;
+			}
+			completion = new Completion();
+			buffered.add(buffer);
+			completions.add(completion);
+			if (scheduler == null && canSend()) {
+				// The channel refused it while supposedly open; try again shortly.
+				scheduleDrain();
+			}
+		}
+		if (scheduler != null) {
+			scheduler.wake();
+		}
+		return completion;
+	}
+
+	/** Hold messages back, e.g. because ICE has disconnected. */
+	public synchronized void pause() {
+		paused = true;
+	}
+
+	/** Send the messages held back, in order, and carry on sending. */
+	public void resume() {
+		synchronized (this) {
+			paused = false;
+		}
+		drainOrWake();
+	}
+
+	/**
+	 * The channel's state changed; call from {@link DataChannel.Observer#onStateChange()}. Sending
+	 * is held back unless it is OPEN, and what is queued is dropped once it is CLOSED.
+	 */
+	public void onStateChange(DataChannel.State state) {
+		if (state == DataChannel.State.CLOSED) {
+			close();
+			return;
+		}
+		synchronized (this) {
+			open = state == DataChannel.State.OPEN;
+		}
+		drainOrWake();
+	}
+
+	/** How many messages are waiting to be sent. */
+	public synchronized int getBufferedCount() {
+		return buffered.size();
+	}
+
+	public synchronized Stats getStats() {
+		return new Stats(messagesSent, bytesSent, messagesDropped,
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos),
+				queueLatencyUs.getPercentile(50), queueLatencyUs.getPercentile(99));
+	}
+
+	/** What the sender has done since it was created. */
+	public static class Stats {
+		public final long messagesSent;
+
+		public final long bytesSent;
+
+		/** Messages dropped because the queue was full or the sender closed. */
+		public final long messagesDropped;
+
+		public final long elapsedMs;
+
+		/** Time from send() to the channel, for messages sent (not dropped). */
+		public final long queueLatencyP50Us;
+
+		public final long queueLatencyP99Us;
+
+		Stats(long messagesSent, long bytesSent, long messagesDropped, long elapsedMs,
+				long queueLatencyP50Us, long queueLatencyP99Us) {
+			this.messagesSent = messagesSent;
+			this.bytesSent = bytesSent;
+			this.messagesDropped = messagesDropped;
+			this.elapsedMs = elapsedMs;
+			this.queueLatencyP50Us = queueLatencyP50Us;
+			this.queueLatencyP99Us = queueLatencyP99Us;
+		}
+
+		/** Average throughput since the sender was created. */
+		public long getBytesPerSecond() {
+			return elapsedMs == 0 ? 0 : bytesSent * 1000 / elapsedMs;
+		}
+
+		@Override
+		public String toString() {
+			return "messages=" + messagesSent + " bytes=" + bytesSent + " (" + getBytesPerSecond()
+					+ "B/s) dropped=" + messagesDropped + " queue p50=" + queueLatencyP50Us
+					+ "us p99=" + queueLatencyP99Us + "us";
+		}
+	}
+
+	/**
+	 * Drop the queued messages, completing them unsent; later sends fail. Call before disposing of
+	 * the channel.
+	 */
+	public void close() {
+		List<Completion> dropped;
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			messagesDropped += buffered.size();
+			buffered.clear();
+			dropped = new ArrayList<Completion>(completions);
+			completions.clear();
+			drainTimer.shutdownNow();
+		}
+		for (Completion completion : dropped) {
+			completion.complete(false);
+		}
+	}
+
+	/** The size of the next message, or -1 if there is none to send now. For SendScheduler. */
+	synchronized int nextMessageSize() {
+		if (closed || paused || !open || buffered.isEmpty()) {
+			return -1;
+		}
+		return buffered.peek().data.remaining();
+	}
+
+	/**
+	 * Hand the next message to the channel; returns its size, or -1 if there is none to send now or
+	 * the channel refused it (the message then stays queued, intact). For SendScheduler.
+	 */
+	int sendNext() {
+		Completion completion;
+		int size;
+		synchronized (this) {
+			size = nextMessageSize();
+			if (size < 0 || !trySend(buffered.peek())) {
+				return -1;
+			}
+			buffered.poll();
+			completion = completions.poll();
+			recordSent(size, completion.queuedNanos);
+		}
+		completion.complete(true);
+		return size;
+	}
+
+	/** The channel's buffered amount, or 0 once closed. For SendScheduler. */
+	synchronized long bufferedAmount() {
+		return closed ? 0 : channel.bufferedAmount();
+	}
+
+	private void drainOrWake() {
+		if (scheduler != null) {
+			scheduler.wake();
+		} else {
+			drain();
+		}
+	}
+
+	// Hand queued messages to the channel while it can take them.
+	private void drain() {
+		List<Completion> sent = null;
+		synchronized (this) {
+			while (!buffered.isEmpty() && canSend()) {
+				int size = buffered.peek().data.remaining();
+				if (!trySend(buffered.peek())) {
+					scheduleDrain();
+					break;
+				}
+				buffered.poll();
+				if (sent == null) {
+					sent = new ArrayList<Completion>();
+				}
+				Completion completion = completions.poll();
+				recordSent(size, completion.queuedNanos);
+				sent.add(completion);
+				checkWatermark();
+			}
+		}
+		if (sent != null) {
+			for (Completion completion : sent) {
+				completion.complete(true);
+			}
+		}
+	}
+
+	// Under the lock. Whether the channel may be handed a message now; polls for it to drain if it
+	// is over the watermark.
+	private boolean canSend() {
+		if (closed || paused || !open) {
+			return false;
+		}
+		if (aboveWatermark) {
+			if (channel.bufferedAmount() > lowWatermark) {
+				scheduleDrain();
+				return false;
+			}
+			aboveWatermark = false;
+		}
+		return true;
+	}
+
+	// Under the lock. DataChannel.send() consumes |buffer|'s data even when it refuses it, so its
+	// position is put back for the retry.
+	private boolean trySend(DataChannel.Buffer buffer) {
+		int position = buffer.data.position();
+		if (channel.send(buffer)) {
+			return true;
+		}
+		buffer.data.position(position);
+		return false;
+	}
+
+	// Under the lock. |queuedNanos| is 0 for a message sent on the spot.
+	private void recordSent(int size, long queuedNanos) {
+		++messagesSent;
+		bytesSent += size;
+		long latencyUs = queuedNanos == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(System.nanoTime()
+				- queuedNanos);
+		queueLatencyUs.record(latencyUs);
+	}
+
+	// Under the lock, after a send.
+	private void checkWatermark() {
+		if (channel.bufferedAmount() >= highWatermark) {
+			aboveWatermark = true;
+		}
+	}
+
+	// Under the lock.
+	private void scheduleDrain() {
+		if (!drainScheduled && !closed) {
+			drainScheduled = true;
+			drainTimer.schedule(drainTask, DRAIN_POLL_MS, TimeUnit.MILLISECONDS);
+		}
+	}
+}
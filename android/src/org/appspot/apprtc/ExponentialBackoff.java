@@ -0,0 +1,45 @@
+package org.appspot.apprtc;
+
+import java.util.Random;
+
+/**
+ * Delays for retrying an operation: each failure doubles the ceiling, from |initialMs| up to
+ * |maxMs|, and the actual delay is drawn uniformly between half the ceiling and the ceiling, so
+ * that clients that failed together don't all retry together. Not thread-safe.
+ */
+public class ExponentialBackoff {
+	private final long initialMs;
+
+	private final long maxMs;
+
+	private final Random random = new Random();
+
+	private int attempts = 0;
+
+	public ExponentialBackoff(long initialMs, long maxMs) {
+		if (initialMs <= 0 || maxMs < initialMs) {
+			throw new IllegalArgumentException("Bad backoff range " + initialMs + ".." + maxMs);
+		}
+		this.initialMs = initialMs;
+		this.maxMs = maxMs;
+	}
+
+	/** The delay before the next attempt; each call counts as one more failure. */
+	public long nextDelayMs() {
+		// Stop doubling well before overflowing.
+		long ceiling = attempts >= 30 ? maxMs : Math.min(maxMs, initialMs << attempts);
+		++attempts;
+		long half = ceiling / 2;
+		return half + (long) (random.nextDouble() * (ceiling - half));
+	}
+
+	/** The number of failures since the last {@link #reset()}. */
+	public int getAttempts() {
+		return attempts;
+	}
+
+	/** Call on success: the next failure starts again from |initialMs|. */
+	public void reset() {
+		attempts = 0;
+	}
+}
@@ -0,0 +1,504 @@
+package org.appspot.apprtc;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.SecureRandom;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.webrtc.DataChannel;
+
+import android.util.Log;
+
+/**
+ * Sends files over a data channel, and receives them, in chunks framed by {@link ChunkCodec} and
+ * sent as binary messages, so a file may be any size however small the channel's message limit.
+ * <p>
+ * The sender keeps a few chunks in flight, reading the next one from disk as each is handed to
+ * the channel, and the receiver writes each chunk straight to its place in the file: neither
+ * holds more than a window of chunks in memory. The receiver tracks which chunks it has, so that
+ * a transfer interrupted by a lost connection or dropped chunks resumes from the first missing one:
+ * while a transfer is unfinished and nothing is heard back, the sender repeats its START every
+ * PROBE_INTERVAL_MS (and right away on {@link #onReconnected()}), which the receiver answers with
+ * where to carry on.
+ * <p>
+ * All methods may be called from any thread; files are read and written, and the listener
+ * invoked, on the manager's own thread.
+ */
+public class FileTransferManager {
+	/** Progress and outcome of transfers both ways; invoked on the manager's thread. */
+	public interface Listener {
+		/** Called each time another percent of the transfer is through. */
+		public void onProgress(long transferId, String name, boolean outgoing, long bytesDone,
+				long size);
+
+		/** |file| is the received file for an incoming transfer, the sent one otherwise. */
+		public void onComplete(long transferId, String name, boolean outgoing, File file);
+
+		public void onFailed(long transferId, String name, boolean outgoing, String reason);
+	}
+
+	/** SCTP stacks don't all take messages larger than this. */
+	public static final int DEFAULT_CHUNK_SIZE = 16 * 1024;
+
+	// Larger chunk sizes offered by a sender are refused.
+	private static final int MAX_CHUNK_SIZE = 64 * 1024;
+
+	// Chunks handed to the DataChannelSender but not yet to the channel.
+	private static final int WINDOW = 16;
+
+	private static final long PROBE_INTERVAL_MS = 2000;
+
+	private static final String PARTIAL_SUFFIX = ".part";
+
+	private static final String TAG = "FileTransferManager";
+
+	private final DataChannelSender sender;
+
+	private final File receiveDirectory;
+
+	private final int chunkSize;
+
+	private final Listener listener;
+
+	private final Random random = new SecureRandom();
+
+	private final ScheduledExecutorService executor = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, TAG);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	// These members are only touched on |executor|'s thread.
+	private final ChunkCodec.Frame frame = new ChunkCodec.Frame();
+
+	private final Map<Long, Outgoing> outgoing = new HashMap<Long, Outgoing>();
+
+	private final Map<Long, Incoming> incoming = new HashMap<Long, Incoming>();
+
+	// Received transfers, so that a START repeated after our COMPLETE was lost is answered.
+	private final Set<Long> completed = new HashSet<Long>();
+
+	private boolean closed = false;
+
+	/** Received files are written to |receiveDirectory|, which is created if need be. */
+	public FileTransferManager(DataChannelSender sender, File receiveDirectory, Listener listener) {
+		this(sender, receiveDirectory, DEFAULT_CHUNK_SIZE, listener);
+	}
+
+	public FileTransferManager(DataChannelSender sender, File receiveDirectory, int chunkSize,
+			Listener listener) {
+		if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+			throw new IllegalArgumentException("Bad chunk size: " + chunkSize);
+		}
+		this.sender = sender;
+		this.receiveDirectory = receiveDirectory;
+		this.chunkSize = chunkSize;
+		this.listener = listener;
+	}
+
+	/** Start sending |file|; returns the transfer's id, as reported to the listener. */
+	public long sendFile(final File file) {
+		final long transferId = random.nextLong();
+		post(new Runnable() {
+			public void run() {
+				startOutgoing(transferId, file);
+			}
+		});
+		return transferId;
+	}
+
+	/**
+	 * Handle a binary message from the channel; suitable for calling straight from
+	 * {@link DataChannel.Observer#onMessage(DataChannel.Buffer)}. The message is copied, so
+	 * |buffer| needn't outlive the call.
+	 */
+	public void onMessage(DataChannel.Buffer buffer) {
+		final ByteBuffer message = ByteBuffer.allocate(buffer.data.remaining());
+		message.put(buffer.data);
+		message.flip();
+		post(new Runnable() {
+			public void run() {
+				handleMessage(message);
+			}
+		});
+	}
+
+	/** The connection is back after an interruption: resume unfinished transfers now. */
+	public void onReconnected() {
+		post(new Runnable() {
+			public void run() {
+				for (Outgoing transfer : outgoing.values()) {
+					transfer.probe();
+				}
+			}
+		});
+	}
+
+	/** Abandon all transfers, leaving partly received files behind, and stop the thread. */
+	public void close() {
+		post(new Runnable() {
+			public void run() {
+				closed = true;
+				for (Outgoing transfer : outgoing.values()) {
+					transfer.close();
+				}
+				outgoing.clear();
+				for (Incoming transfer : incoming.values()) {
+					transfer.close();
+				}
+				incoming.clear();
+				executor.shutdown();
+			}
+		});
+	}
+
+	private void startOutgoing(long transferId, File file) {
+		if (closed) {
+			return;
+		}
+		Outgoing transfer;
+		try {
+			transfer = new Outgoing(transferId, file);
+		}
+		catch (IOException e) {
+			listener.onFailed(transferId, file.getName(), true, e.toString());
+			return;
+		}
+		outgoing.put(transferId, transfer);
+		transfer.probe();
+	}
+
+	private void handleMessage(ByteBuffer message) {
+		if (closed) {
+			return;
+		}
+		try {
+			ChunkCodec.decode(message, frame);
+		}
+		catch (IllegalArgumentException e) {
+			Log.w(TAG, "Dropping malformed chunk frame: " + e.getMessage());
+			return;
+		}
+		switch (frame.kind) {
+		case ChunkCodec.START:
+			onStart(frame);
+			break;
+		case ChunkCodec.DATA:
+			Incoming in = incoming.get(frame.transferId);
+			if (in != null) {
+				in.onData(frame.seq, frame.payload);
+			}
+			break;
+		case ChunkCodec.RESUME:
+			Outgoing resumed = outgoing.get(frame.transferId);
+			if (resumed != null) {
+				resumed.resumeFrom(frame.seq);
+			}
+			break;
+		case ChunkCodec.COMPLETE:
+			Outgoing done = outgoing.remove(frame.transferId);
+			if (done != null) {
+				done.close();
+				listener.onComplete(done.id, done.file.getName(), true, done.file);
+			}
+			break;
+		}
+	}
+
+	private void onStart(ChunkCodec.Frame start) {
+		if (completed.contains(start.transferId)) {
+			send(ChunkCodec.complete(start.transferId));
+			return;
+		}
+		Incoming transfer = incoming.get(start.transferId);
+		if (transfer == null) {
+			if (start.chunkSize > MAX_CHUNK_SIZE
+					|| ChunkCodec.chunkCount(start.size, start.chunkSize) > Integer.MAX_VALUE) {
+				Log.w(TAG, "Refusing transfer of " + start.size + " bytes in chunks of "
+						+ start.chunkSize);
+				return;
+			}
+			try {
+				transfer = new Incoming(start.transferId, start.name, start.size, start.chunkSize);
+			}
+			catch (IOException e) {
+				listener.onFailed(start.transferId, start.name, false, e.toString());
+				return;
+			}
+			incoming.put(start.transferId, transfer);
+			if (transfer.isComplete()) {
+				transfer.finish();
+				return;
+			}
+		}
+		send(ChunkCodec.resume(start.transferId, transfer.firstMissing()));
+	}
+
+	// Run |task| on the manager's thread, unless it is closed.
+	private void post(Runnable task) {
+		try {
+			executor.execute(task);
+		}
+		catch (RejectedExecutionException e) {
+			// Closed.
+		}
+	}
+
+	private DataChannelSender.Completion send(ByteBuffer message) {
+		return sender.send(new DataChannel.Buffer(message, true));
+	}
+
+	// A file being sent.
+	private class Outgoing implements DataChannelSender.Completion.Listener {
+		final long id;
+
+		final File file;
+
+		final FileChannel in;
+
+		final long size;
+
+		final int chunkCount;
+
+		// The next chunk to send, and how many sent chunks the DataChannelSender still holds.
+		int nextSeq = 0;
+
+		int inFlight = 0;
+
+		// Whether the receiver has said where to start.
+		boolean resumed = false;
+
+		int reportedPercent = -1;
+
+		long lastHeardNanos = System.nanoTime();
+
+		final ScheduledFuture<?> prober;
+
+		Outgoing(long id, File file) throws IOException {
+			this.id = id;
+			this.file = file;
+			this.in = new FileInputStream(file).getChannel();
+			this.size = in.size();
+			this.chunkCount = (int) Math.min(Integer.MAX_VALUE, ChunkCodec.chunkCount(size,
+					chunkSize));
+			this.prober = executor.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					if (System.nanoTime() - lastHeardNanos >= TimeUnit.MILLISECONDS
+							.toNanos(PROBE_INTERVAL_MS)) {
+						probe();
+					}
+				}
+			}, PROBE_INTERVAL_MS, PROBE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+		}
+
+		// (Re)announce the transfer; the receiver answers with where to carry on.
+		void probe() {
+			lastHeardNanos = System.nanoTime();
+			send(ChunkCodec.start(id, size, chunkSize, file.getName()));
+		}
+
+		void resumeFrom(int seq) {
+			lastHeardNanos = System.nanoTime();
+			resumed = true;
+			// Chunks still in flight past |seq| are sent again; the receiver ignores duplicates.
+			nextSeq = Math.min(seq, chunkCount);
+			pump();
+		}
+
+		// Read and send chunks until the window is full.
+		void pump() {
+			while (resumed && inFlight < WINDOW && nextSeq < chunkCount) {
+				int seq = nextSeq;
+				long position = (long) seq * chunkSize;
+				int length = (int) Math.min(chunkSize, size - position);
+				ByteBuffer message = ByteBuffer.allocate(ChunkCodec.DATA_HEADER_SIZE + length);
+				ChunkCodec.writeDataHeader(message, id, seq);
+				try {
+					while (message.hasRemaining()) {
+						if (in.read(message, position + message.position()
+								- ChunkCodec.DATA_HEADER_SIZE) < 0) {
+							throw new IOException(file + " shrank while being sent");
+						}
+					}
+				}
+				catch (IOException e) {
+					outgoing.remove(id);
+					close();
+					listener.onFailed(id, file.getName(), true, e.toString());
+					return;
+				}
+				message.flip();
+				++nextSeq;
+				++inFlight;
+				send(message).setListener(this);
+				reportProgress(Math.min(size, position + length));
+			}
+		}
+
+		// A chunk left the DataChannelSender; on whichever thread that happened.
+		public void onComplete(final boolean sent) {
+			post(new Runnable() {
+				public void run() {
+					--inFlight;
+					// A dropped chunk is sent again once the receiver, probed, asks for it.
+					if (sent && outgoing.get(id) == Outgoing.this) {
+						lastHeardNanos = System.nanoTime();
+						pump();
+					}
+				}
+			});
+		}
+
+		void reportProgress(long bytesDone) {
+			int percent = size == 0 ? 100 : (int) (bytesDone * 100 / size);
+			if (percent > reportedPercent) {
+				reportedPercent = percent;
+				listener.onProgress(id, file.getName(), true, bytesDone, size);
+			}
+		}
+
+		void close() {
+			prober.cancel(false);
+			try {
+				in.close();
+			}
+			catch (IOException e) {
+				Log.w(TAG, "Failed to close " + file, e);
+			}
+		}
+	}
+
+	// A file being received, into a ".part" file renamed once complete.
+	private class Incoming {
+		final long id;
+
+		final String name;
+
+		final long size;
+
+		final int chunkSize;
+
+		final int chunkCount;
+
+		final File partialFile;
+
+		final FileChannel out;
+
+		final BitSet received = new BitSet();
+
+		long bytesReceived = 0;
+
+		int reportedPercent = -1;
+
+		Incoming(long id, String name, long size, int chunkSize) throws IOException {
+			this.id = id;
+			this.name = name;
+			this.size = size;
+			this.chunkSize = chunkSize;
+			this.chunkCount = (int) ChunkCodec.chunkCount(size, chunkSize);
+			if (!receiveDirectory.isDirectory() && !receiveDirectory.mkdirs()) {
+				throw new IOException("Failed to create " + receiveDirectory);
+			}
+			this.partialFile = new File(receiveDirectory, Long.toHexString(id) + PARTIAL_SUFFIX);
+			this.out = new RandomAccessFile(partialFile, "rw").getChannel();
+		}
+
+		boolean isComplete() {
+			return received.cardinality() == chunkCount;
+		}
+
+		int firstMissing() {
+			return received.nextClearBit(0);
+		}
+
+		void onData(int seq, ByteBuffer payload) {
+			if (seq >= chunkCount || received.get(seq)) {
+				return;
+			}
+			long position = (long) seq * chunkSize;
+			if (payload.remaining() != Math.min(chunkSize, size - position)) {
+				Log.w(TAG, "Dropping chunk " + seq + " of " + name + " with " + payload.remaining()
+						+ " bytes");
+				return;
+			}
+			try {
+				while (payload.hasRemaining()) {
+					out.write(payload, position + (long) payload.position());
+				}
+			}
+			catch (IOException e) {
+				incoming.remove(id);
+				close();
+				listener.onFailed(id, name, false, e.toString());
+				return;
+			}
+			received.set(seq);
+			bytesReceived += Math.min(chunkSize, size - position);
+			int percent = (int) (bytesReceived * 100 / size);
+			if (percent > reportedPercent) {
+				reportedPercent = percent;
+				listener.onProgress(id, name, false, bytesReceived, size);
+			}
+			if (isComplete()) {
+				finish();
+			} else if (seq == chunkCount - 1) {
+				// The last chunk is in but some before it were lost: ask for them again.
+				send(ChunkCodec.resume(id, firstMissing()));
+			}
+		}
+
+		// Every chunk is in: keep the file and tell the sender.
+		void finish() {
+			incoming.remove(id);
+			close();
+			File file = new File(receiveDirectory, safeName());
+			if (!partialFile.renameTo(file)) {
+				listener.onFailed(id, name, false, "Failed to rename " + partialFile + " to " + file);
+				return;
+			}
+			completed.add(id);
+			send(ChunkCodec.complete(id));
+			listener.onComplete(id, name, false, file);
+		}
+
+		// The sender's name for the file, less any directories, and made unique.
+		String safeName() {
+			String base = new File(name).getName();
+			if (base.length() == 0 || base.equals("..") || base.endsWith(PARTIAL_SUFFIX)) {
+				base = Long.toHexString(id);
+			}
+			String candidate = base;
+			for (int i = 1; new File(receiveDirectory, candidate).exists(); ++i) {
+				candidate = i + "-" + base;
+			}
+			return candidate;
+		}
+
+		void close() {
+			try {
+				out.close();
+			}
+			catch (IOException e) {
+				Log.w(TAG, "Failed to close " + partialFile, e);
+			}
+		}
+	}
+}
@@ -0,0 +1,98 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+import org.webrtc.VideoRenderer.I420Frame;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference-counted hold on the planes of an I420Frame.  Producers that can
+ * keep their buffers alive past a renderFrame() call hand a FrameLease to
+ * VideoStreamsView.queueFrame() instead of the bare frame, which lets the view
+ * upload straight from the producer's buffers instead of copying them.  Once
+ * the last reference is released the Releaser is told the buffers are free.
+ *
+ * A new lease holds one reference, owned by its creator.  retain() and
+ * release() may be called on any thread.
+ */
+public class FrameLease {
+  /** Notified once when the last reference to a lease is released. */
+  public interface Releaser {
+    public void onReleased(I420Frame frame);
+  }
+
+  // Number of leases created but not yet fully released, across all users.
+  private static final AtomicInteger outstanding = new AtomicInteger();
+
+  public final I420Frame frame;
+  private final Releaser releaser;
+  private final AtomicInteger refCount = new AtomicInteger(1);
+
+  /** Lease |frame|; |releaser| (may be null) is called on final release. */
+  public FrameLease(I420Frame frame, Releaser releaser) {
+    this.frame = frame;
+    this.releaser = releaser;
+    outstanding.incrementAndGet();
+  }
+
+  /** Add a reference; returns |this| for chaining. */
+  public FrameLease retain() {
+    while (true) {
+      int refs = refCount.get();
+      if (refs <= 0) {
+        throw new IllegalStateException("Lease already released");
+      }
+      if (refCount.compareAndSet(refs, refs + 1)) {
+        return this;
+      }
+    }
+  }
+
+  /** Drop a reference, freeing the frame if it was the last one. */
+  public void release() {
+    int refs = refCount.decrementAndGet();
+    if (refs < 0) {
+      throw new IllegalStateException("Lease released too many times");
+    }
+    if (refs == 0) {
+      outstanding.decrementAndGet();
+      if (releaser != null) {
+        releaser.onReleased(frame);
+      }
+    }
+  }
+
+  /**
+   * Number of leases that have been created but not fully released.  Should
+   * drop back to zero once rendering stops; anything else is a leak.
+   */
+  public static int outstandingLeases() {
+    return outstanding.get();
+  }
+}
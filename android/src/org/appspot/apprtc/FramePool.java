@@ -29,58 +29,118 @@ package org.appspot.apprtc;
 
 import org.webrtc.VideoRenderer.I420Frame;
 
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * This class acts as an allocation pool meant to minimize GC churn caused by
  * frame allocation & disposal.  The public API comprises of just two methods:
- * copyFrame(), which allocates as necessary and copies, and
- * returnFrame(), which returns frame ownership to the pool for use by a later
- * call to copyFrame().
+ * takeFrame(), which returns a pooled frame (allocating as necessary) able to
+ * hold a copy of its argument, and returnFrame(), which returns frame
+ * ownership to the pool for use by a later call to takeFrame().
  *
- * This class is thread-safe; calls to copyFrame() and returnFrame() are allowed
- * to happen on any thread.
+ * Frames are kept in small fixed-size free lists, one per frame shape (see
+ * summarizeFrameDimensions()).  The total size of the pooled frames is bounded
+ * by a byte budget; when it would be exceeded, free frames belonging to the
+ * least-recently-used shapes are dropped first, so a resolution change
+ * mid-call doesn't strand old-shape frames forever.
+ *
+ * This class is thread-safe; calls to takeFrame() and returnFrame() are allowed
+ * to happen on any thread, and neither takes a lock nor allocates unless a new
+ * shape is seen or the pool is empty.
  */
 class FramePool {
-  // Maps each summary code (see summarizeFrameDimensions()) to a list of frames
-  // of that description.
-  private final HashMap<Long, LinkedList<I420Frame>> availableFrames =
-      new HashMap<Long, LinkedList<I420Frame>>();
   // Every dimension (e.g. width, height, stride) of a frame must be less than
   // this value.
   private static final long MAX_DIMENSION = 4096;
+  // Default for the byte budget: enough for a handful of 1080p frames.
+  public static final long DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+  // Number of free frames kept per shape.
+  private static final int SLOTS_PER_SHAPE = 4;
+
+  private final long maxBytes;
+  // Copy-on-write; readers scan it without locking, writers hold shapesLock.
+  private volatile Shape[] shapes = new Shape[0];
+  private final Object shapesLock = new Object();
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong bytesHeld = new AtomicLong();
+
+  public FramePool() {
+    this(DEFAULT_MAX_BYTES);
+  }
+
+  /** Create a pool holding at most |maxBytes| of free frames. */
+  public FramePool(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
 
   public I420Frame takeFrame(I420Frame source) {
-    long desc = summarizeFrameDimensions(source);
-    I420Frame dst = null;
-    synchronized (availableFrames) {
-      LinkedList<I420Frame> frames = availableFrames.get(desc);
-      if (frames == null) {
-        frames = new LinkedList<I420Frame>();
-        availableFrames.put(desc, frames);
-      }
-      if (!frames.isEmpty()) {
-        dst = frames.pop();
-      } else {
-        dst = new I420Frame(
-            source.width, source.height, source.yuvStrides, null);
-      }
+    return takeFrame(source.width, source.height, source.yuvStrides);
+  }
+
+  /**
+   * Like takeFrame(I420Frame), for a frame of the given dimensions.  |yuvStrides|
+   * is copied if a new frame has to be allocated.
+   */
+  public I420Frame takeFrame(int width, int height, int[] yuvStrides) {
+    Shape shape = getOrCreateShape(
+        summarizeFrameDimensions(width, height, yuvStrides),
+        frameBytes(height, yuvStrides));
+    shape.lastUsedNanos = System.nanoTime();
+    I420Frame dst = shape.poll();
+    if (dst != null) {
+      bytesHeld.addAndGet(-shape.frameBytes);
+      hits.incrementAndGet();
+      return dst;
     }
-    return dst;
+    misses.incrementAndGet();
+    return new I420Frame(width, height,
+        new int[] { yuvStrides[0], yuvStrides[1], yuvStrides[2] }, null);
   }
 
   public void returnFrame(I420Frame frame) {
-    long desc = summarizeFrameDimensions(frame);
-    synchronized (availableFrames) {
-      LinkedList<I420Frame> frames = availableFrames.get(desc);
-      if (frames == null) {
-        throw new IllegalArgumentException("Unexpected frame dimensions");
+    long desc =
+        summarizeFrameDimensions(frame.width, frame.height, frame.yuvStrides);
+    long bytes = frameBytes(frame.height, frame.yuvStrides);
+    while (true) {
+      // The shape may have been evicted while |frame| was out; recreate it.
+      Shape shape = getOrCreateShape(desc, bytes);
+      shape.lastUsedNanos = System.nanoTime();
+      if (!reserve(shape)) {
+        evictions.incrementAndGet();
+        return;
+      }
+      if (!shape.offer(frame)) {
+        bytesHeld.addAndGet(-shape.frameBytes);
+        evictions.incrementAndGet();
+        return;
       }
-      frames.add(frame);
+      // removeShape() may have unlinked |shape| before the offer landed, and
+      // missed it when draining: take |frame| back and try again, unless a
+      // taker or the drain got to it first.
+      if (findShape(desc) == shape || !shape.remove(frame)) {
+        return;
+      }
+      bytesHeld.addAndGet(-shape.frameBytes);
     }
   }
 
+  /** Drop every pooled frame, e.g. when rendering stops. */
+  public void clear() {
+    for (Shape shape : shapes) {
+      drain(shape);
+    }
+  }
+
+  /** Return a snapshot of the pool's counters. */
+  public Stats getStats() {
+    return new Stats(hits.get(), misses.get(), evictions.get(),
+        bytesHeld.get());
+  }
+
   /** Validate that |frame| can be managed by the pool. */
   public static boolean validateDimensions(I420Frame frame) {
     return frame.width < MAX_DIMENSION && frame.height < MAX_DIMENSION &&
@@ -89,16 +149,211 @@ class FramePool {
         frame.yuvStrides[2] < MAX_DIMENSION;
   }
 
-  // Return a code summarizing the dimensions of |frame|.  Two frames that
+  /** Immutable snapshot of the pool's counters. */
+  public static class Stats {
+    public final long hits;
+    public final long misses;
+    public final long evictions;
+    public final long bytesHeld;
+
+    Stats(long hits, long misses, long evictions, long bytesHeld) {
+      this.hits = hits;
+      this.misses = misses;
+      this.evictions = evictions;
+      this.bytesHeld = bytesHeld;
+    }
+
+    public double hitRate() {
+      long total = hits + misses;
+      return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public String toString() {
+      return "hits=" + hits + " misses=" + misses + " evictions=" + evictions +
+          " bytesHeld=" + bytesHeld;
+    }
+  }
+
+  // Account for |shape|.frameBytes more bytes being held, evicting idle shapes
+  // as needed to stay under |maxBytes|.  Returns false if the frame doesn't fit
+  // even after eviction, in which case nothing has been reserved.
+  private boolean reserve(Shape shape) {
+    while (true) {
+      long held = bytesHeld.get();
+      long wanted = held + shape.frameBytes;
+      if (wanted <= maxBytes) {
+        if (bytesHeld.compareAndSet(held, wanted)) {
+          return true;
+        }
+        continue;
+      }
+      if (!evictLeastRecentlyUsed(shape)) {
+        return false;
+      }
+    }
+  }
+
+  // Drop all free frames of the least-recently-used shape other than |keep|,
+  // and forget that shape, along with any other empty ones, so shapes of
+  // resolutions no longer in use don't pile up.  Returns false if there was
+  // nothing to evict.
+  private boolean evictLeastRecentlyUsed(Shape keep) {
+    Shape victim = null;
+    for (Shape shape : shapes) {
+      if (shape == keep) {
+        continue;
+      }
+      if (shape.isEmpty()) {
+        removeShape(shape);
+      } else if (victim == null ||
+          shape.lastUsedNanos < victim.lastUsedNanos) {
+        victim = shape;
+      }
+    }
+    if (victim == null) {
+      return false;
+    }
+    removeShape(victim);
+    return true;
+  }
+
+  // Drop every free frame of |shape|; returns the number of frames dropped.
+  private int drain(Shape shape) {
+    int dropped = 0;
+    while (shape.poll() != null) {
+      bytesHeld.addAndGet(-shape.frameBytes);
+      ++dropped;
+    }
+    return dropped;
+  }
+
+  private Shape findShape(long desc) {
+    Shape[] current = shapes;
+    for (int i = 0; i < current.length; ++i) {
+      if (current[i].desc == desc) {
+        return current[i];
+      }
+    }
+    return null;
+  }
+
+  private Shape getOrCreateShape(long desc, long frameBytes) {
+    Shape shape = findShape(desc);
+    if (shape != null) {
+      return shape;
+    }
+    synchronized (shapesLock) {
+      shape = findShape(desc);
+      if (shape == null) {
+        shape = new Shape(desc, frameBytes);
+        Shape[] grown = new Shape[shapes.length + 1];
+        System.arraycopy(shapes, 0, grown, 0, shapes.length);
+        grown[shapes.length] = shape;
+        shapes = grown;
+      }
+      return shape;
+    }
+  }
+
+  // Forget |victim| and drop its free frames.  Unlinking comes first, so a
+  // frame offered to |victim| concurrently is either seen by the drain or
+  // taken back by returnFrame(), which checks the link after offering.  Frames
+  // of that shape still in flight recreate it when returned.
+  private void removeShape(Shape victim) {
+    synchronized (shapesLock) {
+      Shape[] current = shapes;
+      int index = -1;
+      for (int i = 0; i < current.length; ++i) {
+        if (current[i] == victim) {
+          index = i;
+        }
+      }
+      if (index >= 0) {
+        Shape[] shrunk = new Shape[current.length - 1];
+        System.arraycopy(current, 0, shrunk, 0, index);
+        System.arraycopy(current, index + 1, shrunk, index,
+            current.length - index - 1);
+        shapes = shrunk;
+      }
+    }
+    evictions.addAndGet(drain(victim));
+  }
+
+  // Number of bytes I420Frame's constructor allocates for a frame of |height|
+  // rows with |yuvStrides|.
+  private static long frameBytes(int height, int[] yuvStrides) {
+    return (long) height * (yuvStrides[0] + yuvStrides[1] + yuvStrides[2]);
+  }
+
+  // Return a code summarizing the given frame dimensions.  Two frames that
   // return the same summary are guaranteed to be able to store each others'
   // contents.  Used like Object.hashCode(), but we need all the bits of a long
   // to do a good job, and hashCode() returns int, so we do this.
-  private static long summarizeFrameDimensions(I420Frame frame) {
-    long ret = frame.width;
-    ret = ret * MAX_DIMENSION + frame.height;
-    ret = ret * MAX_DIMENSION + frame.yuvStrides[0];
-    ret = ret * MAX_DIMENSION + frame.yuvStrides[1];
-    ret = ret * MAX_DIMENSION + frame.yuvStrides[2];
+  private static long summarizeFrameDimensions(
+      int width, int height, int[] yuvStrides) {
+    long ret = width;
+    ret = ret * MAX_DIMENSION + height;
+    ret = ret * MAX_DIMENSION + yuvStrides[0];
+    ret = ret * MAX_DIMENSION + yuvStrides[1];
+    ret = ret * MAX_DIMENSION + yuvStrides[2];
     return ret;
   }
+
+  // Lock-free bounded free list of frames sharing one summary code.  Slots are
+  // claimed with getAndSet()/compareAndSet(), so neither poll() nor offer()
+  // allocates.
+  private static class Shape {
+    final long desc;
+    final long frameBytes;
+    final AtomicReferenceArray<I420Frame> slots =
+        new AtomicReferenceArray<I420Frame>(SLOTS_PER_SHAPE);
+    // Written racily by every user; only used as an LRU hint.
+    volatile long lastUsedNanos;
+
+    Shape(long desc, long frameBytes) {
+      this.desc = desc;
+      this.frameBytes = frameBytes;
+    }
+
+    I420Frame poll() {
+      for (int i = 0; i < SLOTS_PER_SHAPE; ++i) {
+        if (slots.get(i) != null) {
+          I420Frame frame = slots.getAndSet(i, null);
+          if (frame != null) {
+            return frame;
+          }
+        }
+      }
+      return null;
+    }
+
+    boolean offer(I420Frame frame) {
+      for (int i = 0; i < SLOTS_PER_SHAPE; ++i) {
+        if (slots.compareAndSet(i, null, frame)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    // Take |frame| itself back out; false if it is no longer here.
+    boolean remove(I420Frame frame) {
+      for (int i = 0; i < SLOTS_PER_SHAPE; ++i) {
+        if (slots.compareAndSet(i, frame, null)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    boolean isEmpty() {
+      for (int i = 0; i < SLOTS_PER_SHAPE; ++i) {
+        if (slots.get(i) != null) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
 }
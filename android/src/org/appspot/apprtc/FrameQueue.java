@@ -0,0 +1,149 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+/**
+ * The frames waiting to be uploaded for one of VideoStreamsView's streams,
+ * together with counters describing what happened to them.  Which frames get
+ * dropped is up to a PacingPolicy.  Queued frames are held as FrameLeases,
+ * one reference each, which are released when the frame is dropped or handed
+ * to the caller of poll().
+ *
+ * Backed by fixed-size ring buffers so neither offer() nor poll() allocates.
+ * Not thread-safe; VideoStreamsView guards it with its frame lock.
+ */
+class FrameQueue {
+  private final PacingPolicy policy;
+  private final FrameLease[] leases;
+  private final long[] queuedNanos;
+  private int head = 0;
+  private int size = 0;
+
+  private long framesQueued = 0;
+  private long framesRendered = 0;
+  private long framesDropped = 0;
+  // Time from offer() to poll() of rendered frames, in microseconds.
+  private final LatencyHistogram queueLatencyUs = new LatencyHistogram();
+
+  public FrameQueue(PacingPolicy policy) {
+    this.policy = policy;
+    int depth = policy.maxQueueDepth();
+    leases = new FrameLease[depth];
+    queuedNanos = new long[depth];
+  }
+
+  /** Queue |lease|, taking over the caller's reference to it. */
+  public void offer(FrameLease lease, long nowNanos) {
+    ++framesQueued;
+    if (size == leases.length) {
+      drop(removeFirst());
+    }
+    int tail = (head + size) % leases.length;
+    leases[tail] = lease;
+    queuedNanos[tail] = nowNanos;
+    ++size;
+  }
+
+  /**
+   * Return the next frame to render (passing its reference on to the caller),
+   * after dropping whichever queued frames the policy deems too stale; null if
+   * nothing is queued.  The newest frame is never dropped here, whatever the
+   * policy says, as PacingPolicy promises.
+   */
+  public FrameLease poll(long nowNanos) {
+    while (size > 0) {
+      long age = nowNanos - queuedNanos[head];
+      if (size > 1 && policy.shouldDrop(age, size - 1)) {
+        drop(removeFirst());
+        continue;
+      }
+      ++framesRendered;
+      queueLatencyUs.record(age / 1000);
+      return removeFirst();
+    }
+    return null;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /** Drop every queued frame. */
+  public void clear() {
+    while (size > 0) {
+      drop(removeFirst());
+    }
+  }
+
+  public Stats getStats() {
+    return new Stats(framesQueued, framesRendered, framesDropped,
+        queueLatencyUs.getPercentile(50), queueLatencyUs.getPercentile(90),
+        queueLatencyUs.getPercentile(99));
+  }
+
+  /** Snapshot of a FrameQueue's counters. */
+  public static class Stats {
+    public final long framesQueued;
+    public final long framesRendered;
+    public final long framesDropped;
+    // Queue-to-render latency percentiles, in microseconds.
+    public final long latencyP50Us;
+    public final long latencyP90Us;
+    public final long latencyP99Us;
+
+    Stats(long framesQueued, long framesRendered, long framesDropped,
+        long latencyP50Us, long latencyP90Us, long latencyP99Us) {
+      this.framesQueued = framesQueued;
+      this.framesRendered = framesRendered;
+      this.framesDropped = framesDropped;
+      this.latencyP50Us = latencyP50Us;
+      this.latencyP90Us = latencyP90Us;
+      this.latencyP99Us = latencyP99Us;
+    }
+
+    @Override
+    public String toString() {
+      return "queued=" + framesQueued + " rendered=" + framesRendered +
+          " dropped=" + framesDropped + " latencyUs(p50/p90/p99)=" +
+          latencyP50Us + "/" + latencyP90Us + "/" + latencyP99Us;
+    }
+  }
+
+  private FrameLease removeFirst() {
+    FrameLease lease = leases[head];
+    leases[head] = null;
+    head = (head + 1) % leases.length;
+    --size;
+    return lease;
+  }
+
+  private void drop(FrameLease lease) {
+    ++framesDropped;
+    lease.release();
+  }
+}
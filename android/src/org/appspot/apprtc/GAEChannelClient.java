@@ -1,167 +1,346 @@
 package org.appspot.apprtc;
 
-import android.annotation.SuppressLint;
-import android.app.Activity;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+
 import android.util.Log;
-import android.webkit.ConsoleMessage;
-import android.webkit.JavascriptInterface;
-import android.webkit.WebChromeClient;
-import android.webkit.WebView;
-import android.webkit.WebViewClient;
 
 /**
- * A web socket client that uses a Web View to load a tiny HTML that contains the necessary
- * Javascript that opens the web socket and dispatches events to a global object named
- * "androidMessageHandler".
+ * A web socket client that talks the socket.io protocol to the signaling server (server/server.js)
+ * directly, joins the default room and dispatches the room's events to a {@link MessageHandler}
+ * through a caller-supplied Executor.
+ * <p>
+ * If the connection drops it is re-established, with jittered exponential backoff, and the room
+ * rejoined; the handler hears {@link MessageHandler#onClose()} when it drops and
+ * {@link MessageHandler#onRejoined()} when it is back, but the room events proper are delivered
+ * only once.
  * 
  * TODO Rename this class to "WebSocketClient" when we have more time to modify the ninja scripts!
  */
 public class GAEChannelClient {
-	private static final String SIGNALING_SERVER_URL = "http://192.168.1.6:2013";
+	static final String SIGNALING_SERVER_URL = "http://192.168.1.6:2013";
+
+	private static final String ROOM = "defaultRoom";
 
 	private static final String TAG = "WebSocketClient";
 
-	private WebView webView;
+	static final long RECONNECT_INITIAL_DELAY_MS = 500;
+
+	static final long RECONNECT_MAX_DELAY_MS = 30000;
+
+	private final String serverUrl;
 
 	private final ProxyingMessageHandler proxyingMessageHandler;
 
-	private boolean isInitiator;
-
-	/** Asynchronously open an AppEngine channel. */
-	@SuppressLint("SetJavaScriptEnabled")
-	public GAEChannelClient(Activity activity, MessageHandler handler) {
-		webView = new WebView(activity);
-		webView.getSettings().setJavaScriptEnabled(true);
-		webView.setWebChromeClient(new WebChromeClient() { // Purely for debugging.
-			public boolean onConsoleMessage(ConsoleMessage msg) {
-				Log.d(TAG,
-						"console: " + msg.message() + " at " + msg.sourceId() + ":"
-								+ msg.lineNumber());
-				return false;
-			}
-		});
-		webView.setWebViewClient(new WebViewClient() { // Purely for debugging.
-			public void onReceivedError(WebView view, int errorCode, String description,
-					String failingUrl) {
-				Log.e(TAG, "JS error: " + errorCode + " in " + failingUrl + ", desc: "
-						+ description);
-			}
-		});
-		// inject the proxy into the Javascript context. It will be seen as another JS object...
-		proxyingMessageHandler = new ProxyingMessageHandler(activity, handler);
-		webView.addJavascriptInterface(proxyingMessageHandler, "androidMessageHandler");
-		webView.loadUrl(SIGNALING_SERVER_URL);
+	private final ScheduledExecutorService reconnectTimer = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, TAG);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	// These members are only read/written under |this|'s lock.
+	private SocketIoClient socketIoClient;
+
+	private boolean closed = false;
+
+	private final ExponentialBackoff backoff;
+
+	private volatile boolean isInitiator;
+
+	/**
+	 * Asynchronously connect to the signaling server and join the room. |handler| is invoked on
+	 * |callbackExecutor|, which must run tasks in order (e.g. a single thread).
+	 */
+	public GAEChannelClient(Executor callbackExecutor, MessageHandler handler) {
+		this(SIGNALING_SERVER_URL, new ExponentialBackoff(RECONNECT_INITIAL_DELAY_MS,
+				RECONNECT_MAX_DELAY_MS), callbackExecutor, handler);
+	}
+
+	// For tests, against a stand-in server.
+	GAEChannelClient(String serverUrl, ExponentialBackoff backoff, Executor callbackExecutor,
+			MessageHandler handler) {
+		this.serverUrl = serverUrl;
+		this.backoff = backoff;
+		proxyingMessageHandler = new ProxyingMessageHandler(callbackExecutor, handler);
+		synchronized (this) {
+			openConnection();
+		}
 	}
 
 	/** Close the connection to the Web Socket. */
 	public void close() {
-		if (webView == null) {
-			return;
+		SocketIoClient client;
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			client = socketIoClient;
+			socketIoClient = null;
 		}
 		proxyingMessageHandler.disconnect();
-		webView.removeJavascriptInterface("androidMessageHandler");
-		webView.loadUrl("about:blank");
-		webView = null;
+		reconnectTimer.shutdownNow();
+		if (client != null) {
+			client.disconnect();
+		}
 	}
 
 	/**
-	 * Pushes an object into the web socket
+	 * Pushes an object into the web socket. Messages sent before the connection is up are queued;
+	 * those sent while it is down are dropped.
 	 */
 	public void sendMessage(String msg) {
-		webView.loadUrl("javascript:sendMessage('" + msg + "')");
+		SocketIoClient client;
+		synchronized (this) {
+			client = socketIoClient;
+		}
+		if (client != null) {
+			client.emit("message", msg);
+		}
 	}
 
 	public boolean isInitiator() {
 		return isInitiator;
 	}
 
+	// Must hold |this|'s lock.
+	private void openConnection() {
+		Connection connection = new Connection();
+		socketIoClient = new SocketIoClient(serverUrl, connection);
+		connection.client = socketIoClient;
+		socketIoClient.connect();
+		// Queued until the connection is up, so it goes out ahead of any message.
+		socketIoClient.emit("create or join", ROOM);
+	}
+
+	// Called when |connection|'s client is gone or no use; reconnect unless closed or already
+	// replaced.
+	private void scheduleReconnect(Connection connection) {
+		// Make sure the old session is over, lest it keep answering heartbeats and hold our place
+		// in the room.
+		connection.client.disconnect();
+		synchronized (this) {
+			if (closed || !connection.isCurrent()) {
+				return;
+			}
+			socketIoClient = null;
+			long delayMs = backoff.nextDelayMs();
+			Log.d(TAG, "Reconnecting in " + delayMs + "ms (attempt " + backoff.getAttempts() + ")");
+			reconnectTimer.schedule(new Runnable() {
+				public void run() {
+					synchronized (GAEChannelClient.this) {
+						if (!closed) {
+							openConnection();
+						}
+					}
+				}
+			}, delayMs, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	// Only a successful join counts: a socket that connects but is refused the room (e.g. "full"
+	// while our old session lingers on the server) must keep backing off.
+	private synchronized void onJoinedRoom() {
+		backoff.reset();
+	}
+
+	/**
+	 * The events of one connection; those of a connection that has since been replaced are
+	 * ignored.
+	 */
+	private class Connection implements SocketIoClient.Listener {
+		SocketIoClient client;
+
+		// Must hold GAEChannelClient.this's lock.
+		boolean isCurrent() {
+			return socketIoClient == client;
+		}
+
+		public void onConnect() {
+			Log.d(TAG, "Connected to " + serverUrl);
+		}
+
+		public void onEvent(String name, JSONArray args) {
+			synchronized (GAEChannelClient.this) {
+				if (!isCurrent()) {
+					return;
+				}
+			}
+			if (name.equals("full") && proxyingMessageHandler.hasJoinedRoom()) {
+				// Most likely our previous connection hasn't timed out on the server yet.
+				Log.d(TAG, "Room " + ROOM + " still full, retrying");
+				scheduleReconnect(this);
+				return;
+			}
+			if (name.equals("created") || name.equals("joined")) {
+				onJoinedRoom();
+			}
+			proxyingMessageHandler.onEvent(name, args);
+		}
+
+		public void onDisconnect(String reason) {
+			Log.d(TAG, "Disconnected: " + reason);
+			boolean current;
+			synchronized (GAEChannelClient.this) {
+				current = isCurrent();
+			}
+			if (current) {
+				proxyingMessageHandler.onConnectionLost();
+				scheduleReconnect(this);
+			}
+		}
+
+		public void onError(String description) {
+			Log.d(TAG, "Connection failed: " + description);
+			scheduleReconnect(this);
+		}
+	}
+
 	/**
-	 * Helper class for proxying callbacks from the Java<->JS interaction (private, background)
-	 * thread to the Activity's UI thread.
+	 * Helper class for translating socket.io events into {@link MessageHandler} callbacks and
+	 * proxying them from the socket's (private, background) thread to the callback executor.
 	 */
 	private class ProxyingMessageHandler {
-		private final Activity activity;
+		private final Executor executor;
 
 		private final MessageHandler handler;
 
-		private final boolean[] disconnected = { false };
+		private volatile boolean disconnected = false;
 
-		public ProxyingMessageHandler(Activity activity, MessageHandler handler) {
-			this.activity = activity;
+		// Whether we have been in the room (so later room events mean we or the other party
+		// rejoined), and whether the other party's arrival has been reported.
+		private volatile boolean joinedRoom = false;
+
+		private volatile boolean peerJoined = false;
+
+		// Whether onClose() was reported and onRejoined() is due.
+		private volatile boolean connectionLost = false;
+
+		public ProxyingMessageHandler(Executor executor, MessageHandler handler) {
+			this.executor = executor;
 			this.handler = handler;
 		}
 
 		public void disconnect() {
-			disconnected[0] = true;
+			disconnected = true;
+		}
+
+		public boolean hasJoinedRoom() {
+			return joinedRoom;
+		}
+
+		public void onEvent(String name, JSONArray args) {
+			if (name.equals("created") || name.equals("joined")) {
+				if (joinedRoom) {
+					if (connectionLost) {
+						connectionLost = false;
+						onRejoined();
+					}
+				} else if (name.equals("created")) {
+					joinedRoom = true;
+					isInitiator = true;
+					whenIJoinTheRoomCreatedByMe();
+				} else {
+					joinedRoom = true;
+					peerJoined = true;
+					whenIJoinedARoomCreatedByAnotherParty();
+				}
+			} else if (name.equals("join")) {
+				if (peerJoined) {
+					// The other party's signaling reconnected.
+					onRejoined();
+				} else {
+					peerJoined = true;
+					whenAnotherPartyJoinedMyRoom();
+				}
+			} else if (name.equals("full")) {
+				onError(-1, "Room " + ROOM + " is full");
+			} else if (name.equals("message")) {
+				onMessage(args.optString(0));
+			} else if (name.equals("log")) {
+				Log.d(TAG, "server: " + args.optJSONArray(0));
+			}
 		}
 
-		private boolean disconnected() {
-			return disconnected[0];
+		public void onConnectionLost() {
+			if (!connectionLost) {
+				connectionLost = true;
+				onClose();
+			}
 		}
 
-		@JavascriptInterface
-		public void whenIJoinTheRoomCreatedByMe(final boolean isInitiator) {
-			GAEChannelClient.this.isInitiator = isInitiator;
-			activity.runOnUiThread(new Runnable() {
+		private void whenIJoinTheRoomCreatedByMe() {
+			executor.execute(new Runnable() {
 				public void run() {
-					if (!disconnected()) {
+					if (!disconnected) {
 						handler.whenIJoinTheRoomCreatedByMe();
 					}
 				}
 			});
 		}
 
-		@JavascriptInterface
-		public void whenAnotherPartyJoinedMyRoom(final boolean isInitiator) {
-			GAEChannelClient.this.isInitiator = isInitiator;
-			activity.runOnUiThread(new Runnable() {
+		private void whenAnotherPartyJoinedMyRoom() {
+			executor.execute(new Runnable() {
 				public void run() {
-					if (!disconnected()) {
+					if (!disconnected) {
 						handler.whenAnotherPartyJoinedMyRoom();
 					}
 				}
 			});
 		}
 
-		@JavascriptInterface
-		public void whenIJoinedARoomCreatedByAnotherParty(final boolean isInitiator) {
-			GAEChannelClient.this.isInitiator = isInitiator;
-			activity.runOnUiThread(new Runnable() {
+		private void whenIJoinedARoomCreatedByAnotherParty() {
+			executor.execute(new Runnable() {
 				public void run() {
-					if (!disconnected()) {
+					if (!disconnected) {
 						handler.whenIJoinedARoomCreatedByAnotherParty();
 					}
 				}
 			});
 		}
 
-		@JavascriptInterface
-		public void onMessage(final String data) {
-			activity.runOnUiThread(new Runnable() {
+		private void onRejoined() {
+			executor.execute(new Runnable() {
+				public void run() {
+					if (!disconnected) {
+						handler.onRejoined();
+					}
+				}
+			});
+		}
+
+		private void onMessage(final String data) {
+			executor.execute(new Runnable() {
 				public void run() {
-					if (!disconnected()) {
+					if (!disconnected) {
 						handler.onMessage(data);
 					}
 				}
 			});
 		}
 
-		@JavascriptInterface
-		public void onClose() {
-			activity.runOnUiThread(new Runnable() {
+		private void onClose() {
+			executor.execute(new Runnable() {
 				public void run() {
-					if (!disconnected()) {
+					if (!disconnected) {
 						handler.onClose();
 					}
 				}
 			});
 		}
 
-		@JavascriptInterface
-		public void onError(final int code, final String description) {
-			activity.runOnUiThread(new Runnable() {
+		private void onError(final int code, final String description) {
+			executor.execute(new Runnable() {
 				public void run() {
-					if (!disconnected()) {
+					if (!disconnected) {
 						handler.onError(code, description);
 					}
 				}
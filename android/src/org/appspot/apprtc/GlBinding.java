@@ -0,0 +1,58 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+import java.nio.Buffer;
+
+/**
+ * The subset of OpenGL ES 2.0 used to manage and upload YUV textures, behind an
+ * interface so that texture management can run against a recording fake on
+ * the JVM.  Methods mirror their GLES20 namesakes; see Gles20Binding for the
+ * real thing.
+ */
+interface GlBinding {
+  public void glGenTextures(int n, int[] textures, int offset);
+
+  public void glDeleteTextures(int n, int[] textures, int offset);
+
+  public void glActiveTexture(int texture);
+
+  public void glBindTexture(int target, int texture);
+
+  public void glTexParameterf(int target, int pname, float param);
+
+  public void glPixelStorei(int pname, int param);
+
+  public void glTexImage2D(int target, int level, int internalformat,
+      int width, int height, int border, int format, int type, Buffer pixels);
+
+  public void glTexSubImage2D(int target, int level, int xoffset, int yoffset,
+      int width, int height, int format, int type, Buffer pixels);
+
+  public int glGetError();
+}
@@ -0,0 +1,111 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+import android.opengl.GLES20;
+
+/**
+ * Decides when to call glGetError().  Every glGetError() is a CPU/GPU sync
+ * point, so calling it after each GL operation is only worth it while
+ * debugging:
+ *   - DEBUG checks after every operation, naming the call site on failure.
+ *   - RELEASE ignores per-operation checks and instead checks once every
+ *     |releaseCheckInterval| frames, in endFrame(), without attribution.
+ * One-off setup work (shader compilation, surface changes) is always checked.
+ *
+ * Must only be used on the GL thread, except for setMode().
+ */
+class GlErrorChecker {
+  /** How eagerly to check for GL errors. */
+  public static enum Mode { DEBUG, RELEASE };
+
+  private final GlBinding gl;
+  // May be null.
+  private final RenderMetrics metrics;
+  private final int releaseCheckInterval;
+  private volatile Mode mode;
+  private int framesSinceCheck = 0;
+
+  /**
+   * Check according to |mode|, once per |releaseCheckInterval| frames when in
+   * RELEASE mode.  Checks are recorded in |metrics| if non-null.
+   */
+  public GlErrorChecker(GlBinding gl, Mode mode, int releaseCheckInterval,
+      RenderMetrics metrics) {
+    if (releaseCheckInterval < 1) {
+      throw new IllegalArgumentException("Check interval must be positive");
+    }
+    this.gl = gl;
+    this.mode = mode;
+    this.releaseCheckInterval = releaseCheckInterval;
+    this.metrics = metrics;
+  }
+
+  public void setMode(Mode mode) {
+    this.mode = mode;
+  }
+
+  public Mode getMode() {
+    return mode;
+  }
+
+  /** Per-operation check after |site|; only does anything in DEBUG mode. */
+  public void check(String site) {
+    if (mode == Mode.DEBUG) {
+      checkNow(site);
+    }
+  }
+
+  /** Check after |site| regardless of mode; for one-off setup work. */
+  public void checkAlways(String site) {
+    checkNow(site);
+  }
+
+  /** Mark the end of a frame; checks periodically in RELEASE mode. */
+  public void endFrame() {
+    if (mode != Mode.RELEASE) {
+      return;
+    }
+    if (++framesSinceCheck >= releaseCheckInterval) {
+      framesSinceCheck = 0;
+      checkNow("end of frame");
+    }
+  }
+
+  // Assert that no OpenGL ES 2.0 error has been raised, blaming |site|.
+  private void checkNow(String site) {
+    long start = System.nanoTime();
+    int error = gl.glGetError();
+    if (metrics != null) {
+      metrics.recordGlErrorCheck(System.nanoTime() - start);
+    }
+    if (error != GLES20.GL_NO_ERROR) {
+      throw new RuntimeException("GLES20 error: " + error + " at " + site);
+    }
+  }
+}
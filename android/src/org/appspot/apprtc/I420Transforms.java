@@ -0,0 +1,305 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+import java.nio.ByteBuffer;
+
+import org.webrtc.VideoRenderer.I420Frame;
+
+/**
+ * CPU-side pixel operations on I420Frames: conversion to NV21 and ARGB,
+ * downscaling (box or bilinear), cropping and rotation.  Useful for snapshots,
+ * headless testing and as a fallback when GL rendering isn't available.
+ *
+ * Every operation writes into a destination supplied by the caller (e.g. a
+ * frame from FramePool); beyond a few ByteBuffer views per call nothing is
+ * allocated.  Inner loops are simple
+ * counted loops over one row with absolute ByteBuffer accesses and integer
+ * (fixed-point) math, which is the shape the JIT compiles best.  Chroma planes
+ * are (width + 1) / 2 by (height + 1) / 2.
+ *
+ * Plane buffers are addressed absolutely, as libjingle lays them out: a
+ * plane's first row starts at index 0, whatever the buffer's position, and
+ * positions and limits are neither read nor changed.  A plane that starts
+ * part way into a buffer has to be passed as a slice().
+ */
+class I420Transforms {
+  private I420Transforms() {}
+
+  /**
+   * Write |src| into |dst| as NV21 (Y plane followed by interleaved V/U), as
+   * used by android.graphics.YuvImage.  |dst| needs
+   * width * height + 2 * chromaWidth * chromaHeight bytes from its position;
+   * its position is left unchanged.
+   */
+  public static void toNv21(I420Frame src, ByteBuffer dst) {
+    int width = src.width;
+    int height = src.height;
+    int base = dst.position();
+    copyPlane(src.yuvPlanes[0], 0, src.yuvStrides[0], dst, base, width, width,
+        height);
+    int chromaWidth = chromaSize(width);
+    int chromaHeight = chromaSize(height);
+    ByteBuffer u = src.yuvPlanes[1];
+    ByteBuffer v = src.yuvPlanes[2];
+    int uStride = src.yuvStrides[1];
+    int vStride = src.yuvStrides[2];
+    int out = base + width * height;
+    for (int y = 0; y < chromaHeight; ++y) {
+      int uRow = y * uStride;
+      int vRow = y * vStride;
+      for (int x = 0; x < chromaWidth; ++x) {
+        dst.put(out++, v.get(vRow + x));
+        dst.put(out++, u.get(uRow + x));
+      }
+    }
+  }
+
+  /**
+   * Convert |src| to packed ARGB_8888 ints (as used by Bitmap.setPixels()),
+   * writing row r at |dst|[|offset| + r * |dstStride|].  Uses the same color
+   * conversion as VideoStreamsView's fragment shader.
+   */
+  public static void toArgb(I420Frame src, int[] dst, int offset,
+      int dstStride) {
+    ByteBuffer yPlane = src.yuvPlanes[0];
+    ByteBuffer uPlane = src.yuvPlanes[1];
+    ByteBuffer vPlane = src.yuvPlanes[2];
+    int yStride = src.yuvStrides[0];
+    int uStride = src.yuvStrides[1];
+    int vStride = src.yuvStrides[2];
+    for (int y = 0; y < src.height; ++y) {
+      int yRow = y * yStride;
+      int uRow = (y >> 1) * uStride;
+      int vRow = (y >> 1) * vStride;
+      int out = offset + y * dstStride;
+      for (int x = 0; x < src.width; ++x) {
+        int luma = yPlane.get(yRow + x) & 0xff;
+        int u = (uPlane.get(uRow + (x >> 1)) & 0xff) - 128;
+        int v = (vPlane.get(vRow + (x >> 1)) & 0xff) - 128;
+        // 16.16 fixed point versions of the shader's coefficients.
+        int r = luma + ((91947 * v) >> 16);
+        int g = luma - ((22544 * u + 46793 * v) >> 16);
+        int b = luma + ((115999 * u) >> 16);
+        dst[out + x] = 0xff000000 | (clamp(r) << 16) | (clamp(g) << 8) |
+            clamp(b);
+      }
+    }
+  }
+
+  /**
+   * Downscale |src| into |dst| (whose dimensions pick the output size), each
+   * output pixel being the average of the input pixels it covers.  Best
+   * quality for large reduction factors.
+   */
+  public static void scaleBox(I420Frame src, I420Frame dst) {
+    for (int i = 0; i < 3; ++i) {
+      scalePlaneBox(src.yuvPlanes[i], src.yuvStrides[i],
+          planeWidth(src, i), planeHeight(src, i),
+          dst.yuvPlanes[i], dst.yuvStrides[i],
+          planeWidth(dst, i), planeHeight(dst, i));
+    }
+  }
+
+  /**
+   * Scale |src| into |dst| (whose dimensions pick the output size) with
+   * bilinear interpolation.  Cheaper than scaleBox() but aliases when
+   * shrinking by more than 2x.
+   */
+  public static void scaleBilinear(I420Frame src, I420Frame dst) {
+    for (int i = 0; i < 3; ++i) {
+      scalePlaneBilinear(src.yuvPlanes[i], src.yuvStrides[i],
+          planeWidth(src, i), planeHeight(src, i),
+          dst.yuvPlanes[i], dst.yuvStrides[i],
+          planeWidth(dst, i), planeHeight(dst, i));
+    }
+  }
+
+  /**
+   * Copy the |dst|.width x |dst|.height rectangle of |src| whose top-left
+   * corner is (|left|, |top|) into |dst|.  |left| and |top| must be even so
+   * the chroma planes line up.
+   */
+  public static void crop(I420Frame src, int left, int top, I420Frame dst) {
+    if ((left & 1) != 0 || (top & 1) != 0) {
+      throw new IllegalArgumentException("Crop origin must be even");
+    }
+    if (left < 0 || top < 0 || left + dst.width > src.width ||
+        top + dst.height > src.height) {
+      throw new IllegalArgumentException("Crop rectangle out of bounds");
+    }
+    for (int i = 0; i < 3; ++i) {
+      int shift = i == 0 ? 0 : 1;
+      int stride = src.yuvStrides[i];
+      copyPlane(src.yuvPlanes[i], (top >> shift) * stride + (left >> shift),
+          stride, dst.yuvPlanes[i], 0, dst.yuvStrides[i], planeWidth(dst, i),
+          planeHeight(dst, i));
+    }
+  }
+
+  /**
+   * Rotate |src| clockwise by |degrees| (0, 90, 180 or 270) into |dst|, which
+   * must have |src|'s dimensions, swapped for 90 and 270.
+   */
+  public static void rotate(I420Frame src, int degrees, I420Frame dst) {
+    boolean swap = degrees == 90 || degrees == 270;
+    if ((degrees % 90) != 0 || degrees < 0 || degrees >= 360) {
+      throw new IllegalArgumentException("Unsupported rotation: " + degrees);
+    }
+    if (dst.width != (swap ? src.height : src.width) ||
+        dst.height != (swap ? src.width : src.height)) {
+      throw new IllegalArgumentException("Mismatched rotation dimensions");
+    }
+    for (int i = 0; i < 3; ++i) {
+      rotatePlane(src.yuvPlanes[i], src.yuvStrides[i], planeWidth(src, i),
+          planeHeight(src, i), dst.yuvPlanes[i], dst.yuvStrides[i], degrees);
+    }
+  }
+
+  private static int chromaSize(int lumaSize) {
+    return (lumaSize + 1) / 2;
+  }
+
+  private static int planeWidth(I420Frame frame, int plane) {
+    return plane == 0 ? frame.width : chromaSize(frame.width);
+  }
+
+  private static int planeHeight(I420Frame frame, int plane) {
+    return plane == 0 ? frame.height : chromaSize(frame.height);
+  }
+
+  private static int clamp(int value) {
+    return value < 0 ? 0 : (value > 255 ? 255 : value);
+  }
+
+  // Copy |width|x|height| bytes from |src| (rows every |srcStride| bytes from
+  // |srcOffset|) to |dst| (rows every |dstStride| bytes from |dstOffset|).
+  // One bulk put() per row.
+  private static void copyPlane(ByteBuffer src, int srcOffset, int srcStride,
+      ByteBuffer dst, int dstOffset, int dstStride, int width, int height) {
+    ByteBuffer row = src.duplicate();
+    ByteBuffer out = dst.duplicate();
+    for (int y = 0; y < height; ++y) {
+      int start = srcOffset + y * srcStride;
+      row.limit(start + width).position(start);
+      out.limit(dstOffset + y * dstStride + width)
+          .position(dstOffset + y * dstStride);
+      out.put(row);
+    }
+  }
+
+  private static void scalePlaneBox(ByteBuffer src, int srcStride,
+      int srcWidth, int srcHeight, ByteBuffer dst, int dstStride,
+      int dstWidth, int dstHeight) {
+    for (int y = 0; y < dstHeight; ++y) {
+      int y0 = y * srcHeight / dstHeight;
+      int y1 = Math.max(y0 + 1, (y + 1) * srcHeight / dstHeight);
+      for (int x = 0; x < dstWidth; ++x) {
+        int x0 = x * srcWidth / dstWidth;
+        int x1 = Math.max(x0 + 1, (x + 1) * srcWidth / dstWidth);
+        int sum = 0;
+        for (int sy = y0; sy < y1; ++sy) {
+          int row = sy * srcStride;
+          for (int sx = x0; sx < x1; ++sx) {
+            sum += src.get(row + sx) & 0xff;
+          }
+        }
+        int area = (y1 - y0) * (x1 - x0);
+        dst.put(y * dstStride + x, (byte) ((sum + area / 2) / area));
+      }
+    }
+  }
+
+  private static void scalePlaneBilinear(ByteBuffer src, int srcStride,
+      int srcWidth, int srcHeight, ByteBuffer dst, int dstStride,
+      int dstWidth, int dstHeight) {
+    // Source step per destination pixel, in 16.16 fixed point; sample at pixel
+    // centers.
+    int xStep = (srcWidth << 16) / dstWidth;
+    int yStep = (srcHeight << 16) / dstHeight;
+    int maxX = srcWidth - 1;
+    int maxY = srcHeight - 1;
+    for (int y = 0; y < dstHeight; ++y) {
+      int fy = Math.max(0, y * yStep + (yStep >> 1) - (1 << 15));
+      int y0 = Math.min(fy >> 16, maxY);
+      int y1 = Math.min(y0 + 1, maxY);
+      int wy = (fy >> 8) & 0xff;
+      int row0 = y0 * srcStride;
+      int row1 = y1 * srcStride;
+      for (int x = 0; x < dstWidth; ++x) {
+        int fx = Math.max(0, x * xStep + (xStep >> 1) - (1 << 15));
+        int x0 = Math.min(fx >> 16, maxX);
+        int x1 = Math.min(x0 + 1, maxX);
+        int wx = (fx >> 8) & 0xff;
+        int top = (src.get(row0 + x0) & 0xff) * (256 - wx) +
+            (src.get(row0 + x1) & 0xff) * wx;
+        int bottom = (src.get(row1 + x0) & 0xff) * (256 - wx) +
+            (src.get(row1 + x1) & 0xff) * wx;
+        int value = (top * (256 - wy) + bottom * wy + (1 << 15)) >> 16;
+        dst.put(y * dstStride + x, (byte) value);
+      }
+    }
+  }
+
+  // One loop nest per angle keeps the inner loops branch-free.
+  private static void rotatePlane(ByteBuffer src, int srcStride, int width,
+      int height, ByteBuffer dst, int dstStride, int degrees) {
+    switch (degrees) {
+      case 90:
+        for (int y = 0; y < height; ++y) {
+          int row = y * srcStride;
+          int col = height - 1 - y;
+          for (int x = 0; x < width; ++x) {
+            dst.put(x * dstStride + col, src.get(row + x));
+          }
+        }
+        break;
+      case 180:
+        for (int y = 0; y < height; ++y) {
+          int row = y * srcStride;
+          int out = (height - 1 - y) * dstStride + width - 1;
+          for (int x = 0; x < width; ++x) {
+            dst.put(out - x, src.get(row + x));
+          }
+        }
+        break;
+      case 270:
+        for (int y = 0; y < height; ++y) {
+          int row = y * srcStride;
+          int out = (width - 1) * dstStride + y;
+          for (int x = 0; x < width; ++x) {
+            dst.put(out - x * dstStride, src.get(row + x));
+          }
+        }
+        break;
+      default:
+        copyPlane(src, 0, srcStride, dst, 0, dstStride, width, height);
+        break;
+    }
+  }
+}
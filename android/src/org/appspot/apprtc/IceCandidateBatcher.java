@@ -0,0 +1,152 @@
+package org.appspot.apprtc;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.webrtc.IceCandidate;
+
+/**
+ * Collects trickled local ICE candidates for a short window and hands them to a {@link Sink} as
+ * one batch, so a device with many interfaces sends a few signaling messages instead of one per
+ * candidate. Candidates are de-duplicated by m-line, foundation, address and port, both on the way
+ * out ({@link #add(IceCandidate)}) and on the way in ({@link #acceptRemote(IceCandidate)}).
+ * <p>
+ * All methods may be called from any thread; the sink is invoked on the batcher's own thread (or
+ * on the caller's, for {@link #flush()}).
+ */
+public class IceCandidateBatcher {
+	/** Receives each batch of new local candidates, in gathering order. */
+	public interface Sink {
+		public void sendCandidates(List<IceCandidate> candidates);
+	}
+
+	public static final long DEFAULT_WINDOW_MS = 50;
+
+	private static final String TAG = "IceCandidateBatcher";
+
+	private final long windowMs;
+
+	private final Sink sink;
+
+	private final ScheduledExecutorService timer = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, TAG);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private final Runnable flushTask = new Runnable() {
+		public void run() {
+			flush();
+		}
+	};
+
+	// These members are only read/written under |this|'s lock.
+	private List<IceCandidate> pending = new ArrayList<IceCandidate>();
+
+	private final Set<String> sentKeys = new HashSet<String>();
+
+	private final Set<String> receivedKeys = new HashSet<String>();
+
+	private boolean held = false;
+
+	private boolean closed = false;
+
+	public IceCandidateBatcher(long windowMs, Sink sink) {
+		if (windowMs < 0) {
+			throw new IllegalArgumentException("Negative window: " + windowMs);
+		}
+		this.windowMs = windowMs;
+		this.sink = sink;
+	}
+
+	/**
+	 * Queue a local candidate; the batch it opens is sent |windowMs| later. Returns false if it
+	 * duplicates one already queued or sent.
+	 */
+	public synchronized boolean add(IceCandidate candidate) {
+		if (closed || !sentKeys.add(dedupKey(candidate))) {
+			return false;
+		}
+		pending.add(candidate);
+		if (pending.size() == 1 && !held) {
+			timer.schedule(flushTask, windowMs, TimeUnit.MILLISECONDS);
+		}
+		return true;
+	}
+
+	/**
+	 * Keep candidates back until {@link #release()}, e.g. while nobody is there to receive them.
+	 */
+	public synchronized void hold() {
+		held = true;
+	}
+
+	/** Stop holding candidates back and send those gathered meanwhile. */
+	public void release() {
+		synchronized (this) {
+			held = false;
+		}
+		flush();
+	}
+
+	/** Send the pending batch now (unless held), e.g. because gathering has completed. */
+	public void flush() {
+		List<IceCandidate> batch;
+		synchronized (this) {
+			if (pending.isEmpty() || held) {
+				return;
+			}
+			batch = pending;
+			pending = new ArrayList<IceCandidate>();
+		}
+		// Outside the lock so add() never waits on the signaling transport. A timer flush racing an
+		// explicit one may deliver its batch second, which is fine: candidates are order-independent.
+		sink.sendCandidates(batch);
+	}
+
+	/** Returns true the first time a remote candidate is seen, false for duplicates. */
+	public synchronized boolean acceptRemote(IceCandidate candidate) {
+		return receivedKeys.add(dedupKey(candidate));
+	}
+
+	/**
+	 * Forget the candidates seen so far, both ways, and drop anything pending: an ICE restart
+	 * gathers them anew, under new credentials, and may well find the same addresses.
+	 */
+	public synchronized void reset() {
+		pending.clear();
+		sentKeys.clear();
+		receivedKeys.clear();
+	}
+
+	/** Drop anything pending and stop the timer thread. */
+	public synchronized void close() {
+		closed = true;
+		pending.clear();
+		timer.shutdownNow();
+	}
+
+	/**
+	 * Identify |candidate| by m-line, foundation, connection address and port. Its SDP looks like
+	 * "candidate:<foundation> <component> <transport> <priority> <address> <port> typ ..."; anything
+	 * that doesn't parse is keyed by the whole line.
+	 */
+	static String dedupKey(IceCandidate candidate) {
+		String[] fields = candidate.sdp.trim().split("\\s+", 7);
+		if (fields.length < 6) {
+			return candidate.sdpMLineIndex + " " + candidate.sdp;
+		}
+		int colon = fields[0].indexOf(':');
+		String foundation = colon < 0 ? fields[0] : fields[0].substring(colon + 1);
+		return candidate.sdpMLineIndex + " " + foundation + " " + fields[4] + " " + fields[5];
+	}
+}
@@ -0,0 +1,210 @@
+package org.appspot.apprtc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.webrtc.PeerConnection;
+
+/**
+ * Loads the ICE (STUN/TURN) server configuration from an HTTP endpoint and caches it on disk, so
+ * that starting or reconnecting a call never waits on the network for it: {@link #load} answers
+ * from the cache (or a built-in fallback) straight away and, when that answer is stale or missing,
+ * refreshes it in the background for next time.
+ * <p>
+ * The endpoint serves JSON in the same shape as a PeerConnection configuration:
+ * 
+ * <pre>
+ * {"ttl": 86400,
+ *  "iceServers": [{"url": "stun:..."}, {"url": "turn:...", "username": "...", "credential": "..."}]}
+ * </pre>
+ * 
+ * where the optional "ttl" is how long, in seconds, the configuration may be used before it is
+ * refreshed. This class has no Android dependencies.
+ */
+public class IceConfigLoader {
+	/** Invoked on a background thread when a refresh fetched a new configuration. */
+	public interface Listener {
+		public void onIceServersRefreshed(List<PeerConnection.IceServer> iceServers);
+	}
+
+	public static final long DEFAULT_TTL_MS = TimeUnit.HOURS.toMillis(24);
+
+	private static final int TIMEOUT_MS = 10000;
+
+	// Responses are a few hundred bytes; anything much bigger is not an ICE configuration.
+	private static final int MAX_CONFIG_SIZE = 64 * 1024;
+
+	private final String url;
+
+	private final File cacheFile;
+
+	private final long defaultTtlMs;
+
+	private final AtomicBoolean refreshing = new AtomicBoolean();
+
+	/**
+	 * @param url the endpoint serving the configuration
+	 * @param cacheFile where to keep the last configuration fetched
+	 * @param defaultTtlMs how long a configuration without a "ttl" stays fresh
+	 */
+	public IceConfigLoader(String url, File cacheFile, long defaultTtlMs) {
+		this.url = url;
+		this.cacheFile = cacheFile;
+		this.defaultTtlMs = defaultTtlMs;
+	}
+
+	/**
+	 * Returns the cached ICE servers, or |fallback| if nothing usable is cached, without touching
+	 * the network. If the answer is stale or the fallback, a background refresh is started and
+	 * |listener| (if non-null) hears about its result.
+	 */
+	public List<PeerConnection.IceServer> load(List<PeerConnection.IceServer> fallback,
+			Listener listener) {
+		List<PeerConnection.IceServer> servers = null;
+		boolean stale = true;
+		try {
+			if (cacheFile.exists()) {
+				JSONObject config = new JSONObject(readFully(new FileInputStream(cacheFile)));
+				servers = parseIceServers(config);
+				long ageMs = System.currentTimeMillis() - cacheFile.lastModified();
+				stale = ageMs < 0 || ageMs >= ttlMs(config);
+			}
+		}
+		catch (IOException e) {
+			servers = null;
+		}
+		catch (JSONException e) {
+			// A corrupt cache is as good as none.
+			servers = null;
+		}
+		if (servers == null || stale) {
+			refreshInBackground(listener);
+		}
+		return servers != null ? servers : fallback;
+	}
+
+	/**
+	 * Fetch the configuration now, blocking, and cache it. Throws IOException if the endpoint is
+	 * unreachable or its response malformed; the cache is left untouched then.
+	 */
+	public List<PeerConnection.IceServer> fetch() throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+		connection.setConnectTimeout(TIMEOUT_MS);
+		connection.setReadTimeout(TIMEOUT_MS);
+		String body;
+		try {
+			if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+				throw new IOException("Fetching " + url + " failed: HTTP "
+						+ connection.getResponseCode());
+			}
+			body = readFully(connection.getInputStream());
+		}
+		finally {
+			connection.disconnect();
+		}
+		List<PeerConnection.IceServer> servers;
+		try {
+			servers = parseIceServers(new JSONObject(body));
+		}
+		catch (JSONException e) {
+			throw new IOException("Malformed ICE configuration from " + url + ": " + e.getMessage());
+		}
+		writeCache(body);
+		return servers;
+	}
+
+	private void refreshInBackground(final Listener listener) {
+		if (!refreshing.compareAndSet(false, true)) {
+			return;
+		}
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					List<PeerConnection.IceServer> servers = fetch();
+					if (listener != null) {
+						listener.onIceServersRefreshed(servers);
+					}
+				}
+				catch (IOException e) {
+					// Keep using what we have; the next load() tries again.
+				}
+				finally {
+					refreshing.set(false);
+				}
+			}
+		}, "IceConfigLoader");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	// Write to a temporary file and rename it into place, so readers never see half a file.
+	private void writeCache(String body) throws IOException {
+		File parent = cacheFile.getAbsoluteFile().getParentFile();
+		if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+			throw new IOException("Can't create " + parent);
+		}
+		File tmp = new File(cacheFile.getPath() + ".tmp");
+		OutputStream out = new FileOutputStream(tmp);
+		try {
+			out.write(body.getBytes("UTF-8"));
+		}
+		finally {
+			out.close();
+		}
+		if (!tmp.renameTo(cacheFile)) {
+			tmp.delete();
+			throw new IOException("Can't replace " + cacheFile);
+		}
+	}
+
+	private long ttlMs(JSONObject config) {
+		long ttlSeconds = config.optLong("ttl", -1);
+		return ttlSeconds < 0 ? defaultTtlMs : TimeUnit.SECONDS.toMillis(ttlSeconds);
+	}
+
+	static List<PeerConnection.IceServer> parseIceServers(JSONObject config) throws JSONException {
+		JSONArray array = config.getJSONArray("iceServers");
+		List<PeerConnection.IceServer> servers = new ArrayList<PeerConnection.IceServer>();
+		for (int i = 0; i < array.length(); ++i) {
+			JSONObject server = array.getJSONObject(i);
+			servers.add(new PeerConnection.IceServer(server.getString("url"), server.optString(
+					"username", ""), server.optString("credential", "")));
+		}
+		if (servers.isEmpty()) {
+			throw new JSONException("No ICE servers");
+		}
+		return servers;
+	}
+
+	private static String readFully(InputStream in) throws IOException {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int read;
+			while ((read = in.read(buffer)) >= 0) {
+				bytes.write(buffer, 0, read);
+				if (bytes.size() > MAX_CONFIG_SIZE) {
+					throw new IOException("ICE configuration too large");
+				}
+			}
+			return bytes.toString("UTF-8");
+		}
+		finally {
+			in.close();
+		}
+	}
+}
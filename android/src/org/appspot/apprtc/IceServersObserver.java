@@ -9,4 +9,7 @@ import org.webrtc.PeerConnection;
  */
 public interface IceServersObserver {
 	public void onIceServers(List<PeerConnection.IceServer> iceServers);
+
+	/** A background refresh found a newer set of ICE servers than the one first reported. */
+	public void onIceServersUpdated(List<PeerConnection.IceServer> iceServers);
 }
\ No newline at end of file
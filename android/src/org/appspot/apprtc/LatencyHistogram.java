@@ -0,0 +1,111 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, lock-free histogram of non-negative long values (typically
+ * latencies in microseconds), in the spirit of HdrHistogram: every power of two
+ * is split into SUB_BUCKETS linear sub-buckets, so any recorded value is known
+ * to within 1/SUB_BUCKETS of itself.  record() doesn't allocate or lock and may
+ * be called from any thread.
+ */
+class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  // Enough buckets for any non-negative long.
+  private static final int NUM_BUCKETS =
+      (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+
+  /** Count one occurrence of |value|; negative values count as 0. */
+  public void record(long value) {
+    counts.incrementAndGet(bucketIndex(value < 0 ? 0 : value));
+  }
+
+  /** Total number of recorded values. */
+  public long getCount() {
+    long total = 0;
+    for (int i = 0; i < NUM_BUCKETS; ++i) {
+      total += counts.get(i);
+    }
+    return total;
+  }
+
+  /**
+   * Return an upper bound on the |percentile|th (0-100) recorded value, or 0 if
+   * nothing has been recorded.
+   */
+  public long getPercentile(double percentile) {
+    long total = getCount();
+    if (total == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(total * Math.min(percentile, 100) / 100);
+    long seen = 0;
+    for (int i = 0; i < NUM_BUCKETS; ++i) {
+      seen += counts.get(i);
+      if (seen >= Math.max(rank, 1)) {
+        return bucketUpperBound(i);
+      }
+    }
+    return bucketUpperBound(NUM_BUCKETS - 1);
+  }
+
+  /** Forget every recorded value. */
+  public void reset() {
+    for (int i = 0; i < NUM_BUCKETS; ++i) {
+      counts.set(i, 0);
+    }
+  }
+
+  // Values below SUB_BUCKETS get a bucket each; above that, bucket by
+  // exponent and the SUB_BUCKET_BITS bits following the leading one.
+  private static int bucketIndex(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int subBucket =
+        (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  private static long bucketUpperBound(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    long subBucket = index % SUB_BUCKETS;
+    long shift = exponent - SUB_BUCKET_BITS;
+    long upper = ((SUB_BUCKETS + subBucket + 1) << shift) - 1;
+    return upper < 0 ? Long.MAX_VALUE : upper;
+  }
+}
@@ -12,7 +12,17 @@ public interface MessageHandler {
 
 	public void onMessage(String data);
 
+	/**
+	 * The connection to the signaling server dropped; it is being re-established, and
+	 * {@link #onRejoined()} follows once it is.
+	 */
 	public void onClose();
 
+	/**
+	 * We, or the other party, rejoined the room after signaling dropped: messages sent in the
+	 * meantime may have been lost.
+	 */
+	public void onRejoined();
+
 	public void onError(int code, String description);
 }
\ No newline at end of file
@@ -0,0 +1,395 @@
+package org.appspot.apprtc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import org.webrtc.IceCandidate;
+import org.webrtc.PeerConnection.IceConnectionState;
+import org.webrtc.SessionDescription;
+
+/**
+ * Drives the offer/answer exchange for one call and timestamps each phase of connection setup.
+ * Events (room joined, descriptions created and set, candidates, ICE and data channel state) are
+ * fed in by the caller; the machine decides what happens next and asks its {@link Actions} to do
+ * it. It knows nothing about Android or about a live PeerConnection, so a recorded signaling trace
+ * can be replayed against it on the JVM.
+ * <p>
+ * Once negotiated, the initiator may {@link #restartIce()}: a new offer with fresh ICE credentials
+ * is exchanged over the same peer connection, e.g. after a network change. It also times how long
+ * ICE takes to reconnect after dropping.
+ * <p>
+ * Not thread-safe: all events must be delivered on one thread (the signaling thread).
+ */
+public class NegotiationStateMachine {
+	/** What the machine asks of the peer connection and signaling channel. */
+	public interface Actions {
+		/** |iceRestart| asks for fresh ICE credentials, so that candidates are gathered anew. */
+		public void createOffer(boolean iceRestart);
+
+		public void createAnswer();
+
+		public void setLocalDescription(SessionDescription description);
+
+		public void setRemoteDescription(SessionDescription description);
+
+		/** Send our (already set) local description to the other party. */
+		public void sendLocalDescription(SessionDescription description);
+
+		public void addRemoteCandidate(IceCandidate candidate);
+
+		/**
+		 * Both descriptions are set; queued remote candidates have been added. Not called again
+		 * after an ICE restart.
+		 */
+		public void onNegotiated();
+	}
+
+	public enum State {
+		IDLE,
+		// Initiator: the offer is made as soon as the room is created, so ICE gathering starts
+		// before the other party arrives, and held in WAITING_FOR_PEER until it joins.
+		CREATING_OFFER, SETTING_LOCAL_OFFER, WAITING_FOR_PEER, WAITING_FOR_ANSWER,
+		SETTING_REMOTE_ANSWER,
+		// Joiner: in the room, waiting for the initiator's offer.
+		WAITING_FOR_OFFER, SETTING_REMOTE_OFFER, CREATING_ANSWER, SETTING_LOCAL_ANSWER,
+		// Both descriptions set; remote candidates go straight to the connection.
+		NEGOTIATED, CLOSED
+	}
+
+	/** The timestamped phases of connection setup, in their usual order. */
+	public enum Phase {
+		FACTORY_CREATED,
+		PEER_CONNECTION_CREATED,
+		ROOM_JOINED,
+		OFFER_CREATED,
+		ANSWER_CREATED,
+		LOCAL_SET,
+		REMOTE_SET,
+		FIRST_CANDIDATE,
+		ICE_CONNECTED,
+		DATA_CHANNEL_OPEN
+	}
+
+	private static final String TAG = "NegotiationStateMachine";
+
+	private final Actions actions;
+
+	private final long startNanos;
+
+	// When each Phase was first reached, or 0 if it hasn't been.
+	private final long[] phaseNanos = new long[Phase.values().length];
+
+	private State state = State.IDLE;
+
+	private boolean initiator;
+
+	// Initiator only: whether the other party has joined, i.e. the offer can be sent once set.
+	private boolean peerJoined;
+
+	private SessionDescription localDescription;
+
+	// Whether the offer/answer under way is an ICE restart, rather than the call's first.
+	private boolean restarting;
+
+	// When ICE dropped from connected, or 0 if it is connected (or never was).
+	private long iceInterruptedNanos;
+
+	private boolean iceConnected;
+
+	private long lastIceRecoveryMs = -1;
+
+	private final List<IceCandidate> pendingRemoteCandidates = new ArrayList<IceCandidate>();
+
+	/** Phases are timed from now, so create it as early as possible (e.g. with the Activity). */
+	public NegotiationStateMachine(Actions actions) {
+		this.actions = actions;
+		this.startNanos = System.nanoTime();
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	public boolean isInitiator() {
+		return initiator;
+	}
+
+	/** The PeerConnectionFactory is ready. */
+	public void onFactoryCreated() {
+		mark(Phase.FACTORY_CREATED);
+	}
+
+	/** The PeerConnection exists; negotiation events may follow. */
+	public void onPeerConnectionCreated() {
+		mark(Phase.PEER_CONNECTION_CREATED);
+	}
+
+	/**
+	 * We created the room and will make the offer. It is created and set right away, to get ICE
+	 * gathering going, but only sent once someone joins.
+	 */
+	public void onRoomCreated() {
+		if (state == State.CLOSED) {
+			return;
+		}
+		expectState("room created", State.IDLE);
+		initiator = true;
+		mark(Phase.ROOM_JOINED);
+		state = State.CREATING_OFFER;
+		actions.createOffer(false);
+	}
+
+	/** We joined a room created by the other party, who will make the offer. */
+	public void onRoomJoined() {
+		if (state == State.CLOSED) {
+			return;
+		}
+		if (state == State.IDLE) {
+			state = State.WAITING_FOR_OFFER;
+		} else if (initiator) {
+			throw unexpected("room joined");
+		}
+		// Otherwise the offer overtook the join notification, which is fine.
+		mark(Phase.ROOM_JOINED);
+	}
+
+	/** The other party joined our room. */
+	public void onPeerJoined() {
+		if (state == State.CLOSED) {
+			return;
+		}
+		if (!initiator || peerJoined) {
+			throw unexpected("peer joined");
+		}
+		peerJoined = true;
+		if (state == State.WAITING_FOR_PEER) {
+			sendOffer();
+		}
+		// Otherwise the offer is still being made and goes out as soon as it is set.
+	}
+
+	/**
+	 * Renegotiate with fresh ICE credentials, keeping the peer connection and its data channels.
+	 * Only the initiator makes offers, so the two parties never restart at once; returns false,
+	 * doing nothing, if we aren't the initiator or a negotiation is already under way.
+	 */
+	public boolean restartIce() {
+		if (!initiator || state != State.NEGOTIATED) {
+			return false;
+		}
+		restarting = true;
+		state = State.CREATING_OFFER;
+		actions.createOffer(true);
+		return true;
+	}
+
+	/** Our offer or answer has been created. */
+	public void onLocalDescriptionCreated(SessionDescription description) {
+		if (state == State.CLOSED) {
+			return;
+		}
+		if (state == State.CREATING_OFFER) {
+			mark(Phase.OFFER_CREATED);
+			state = State.SETTING_LOCAL_OFFER;
+		} else {
+			expectState("local description created", State.CREATING_ANSWER);
+			mark(Phase.ANSWER_CREATED);
+			state = State.SETTING_LOCAL_ANSWER;
+		}
+		localDescription = description;
+		actions.setLocalDescription(description);
+	}
+
+	/** The other party's offer or answer arrived. */
+	public void onRemoteDescription(SessionDescription description) {
+		if (state == State.CLOSED) {
+			return;
+		}
+		if (description.type == SessionDescription.Type.OFFER) {
+			if (state == State.NEGOTIATED && !initiator) {
+				// The initiator is restarting ICE.
+				restarting = true;
+			} else if (state != State.IDLE) {
+				expectState("remote offer", State.WAITING_FOR_OFFER);
+			}
+			state = State.SETTING_REMOTE_OFFER;
+		} else {
+			expectState("remote " + description.type, State.WAITING_FOR_ANSWER);
+			state = State.SETTING_REMOTE_ANSWER;
+		}
+		actions.setRemoteDescription(description);
+	}
+
+	/** The pending Set{Local,Remote}Description() call succeeded. */
+	public void onSetSuccess() {
+		switch (state) {
+		case SETTING_LOCAL_OFFER:
+			mark(Phase.LOCAL_SET);
+			if (peerJoined) {
+				sendOffer();
+			} else {
+				state = State.WAITING_FOR_PEER;
+			}
+			break;
+		case SETTING_REMOTE_ANSWER:
+			mark(Phase.REMOTE_SET);
+			onNegotiated();
+			break;
+		case SETTING_REMOTE_OFFER:
+			mark(Phase.REMOTE_SET);
+			state = State.CREATING_ANSWER;
+			actions.createAnswer();
+			break;
+		case SETTING_LOCAL_ANSWER:
+			mark(Phase.LOCAL_SET);
+			actions.sendLocalDescription(localDescription);
+			onNegotiated();
+			break;
+		case CLOSED:
+			break;
+		default:
+			throw unexpected("set success");
+		}
+	}
+
+	/** A remote candidate arrived; it is held back until negotiation completes. */
+	public void onRemoteCandidate(IceCandidate candidate) {
+		if (state == State.NEGOTIATED) {
+			actions.addRemoteCandidate(candidate);
+		} else if (state != State.CLOSED) {
+			pendingRemoteCandidates.add(candidate);
+		}
+	}
+
+	/** A local candidate was gathered. */
+	public void onLocalCandidate() {
+		mark(Phase.FIRST_CANDIDATE);
+	}
+
+	public void onIceConnectionChange(IceConnectionState newState) {
+		switch (newState) {
+		case CONNECTED:
+		case COMPLETED:
+			mark(Phase.ICE_CONNECTED);
+			if (iceInterruptedNanos != 0) {
+				lastIceRecoveryMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+						- iceInterruptedNanos);
+				iceInterruptedNanos = 0;
+			}
+			iceConnected = true;
+			break;
+		case DISCONNECTED:
+		case FAILED:
+			if (iceConnected && iceInterruptedNanos == 0) {
+				iceInterruptedNanos = System.nanoTime();
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	/** Whether ICE was connected and has dropped since (DISCONNECTED or FAILED). */
+	public boolean isIceInterrupted() {
+		return iceInterruptedNanos != 0;
+	}
+
+	/**
+	 * Milliseconds ICE last took to reconnect, from dropping to connected again, or -1 if it never
+	 * dropped.
+	 */
+	public long getLastIceRecoveryMillis() {
+		return lastIceRecoveryMs;
+	}
+
+	public void onDataChannelOpen() {
+		mark(Phase.DATA_CHANNEL_OPEN);
+	}
+
+	/** Stop negotiating; later events are ignored. */
+	public void close() {
+		state = State.CLOSED;
+		pendingRemoteCandidates.clear();
+	}
+
+	/** When each phase was reached so far, relative to construction. */
+	public SetupTiming getSetupTiming() {
+		long[] sinceStartMs = new long[phaseNanos.length];
+		for (int i = 0; i < phaseNanos.length; ++i) {
+			sinceStartMs[i] = phaseNanos[i] == 0 ? -1 : TimeUnit.NANOSECONDS
+					.toMillis(phaseNanos[i] - startNanos);
+		}
+		return new SetupTiming(initiator, sinceStartMs);
+	}
+
+	/** A per-call connection setup latency breakdown. */
+	public static class SetupTiming {
+		public final boolean initiator;
+
+		private final long[] sinceStartMs;
+
+		SetupTiming(boolean initiator, long[] sinceStartMs) {
+			this.initiator = initiator;
+			this.sinceStartMs = sinceStartMs;
+		}
+
+		/** Milliseconds from the start of the call to |phase|, or -1 if not reached (yet). */
+		public long getMillis(Phase phase) {
+			return sinceStartMs[phase.ordinal()];
+		}
+
+		/** Milliseconds from the start of the call until data can be sent, or -1. */
+		public long getColdStartMillis() {
+			return getMillis(Phase.DATA_CHANNEL_OPEN);
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder result = new StringBuilder(initiator ? "initiator" : "joiner");
+			for (Phase phase : Phase.values()) {
+				long ms = getMillis(phase);
+				if (ms >= 0) {
+					result.append(' ').append(phase.name().toLowerCase(Locale.US)).append('=')
+							.append(ms).append("ms");
+				}
+			}
+			return result.toString();
+		}
+	}
+
+	private void sendOffer() {
+		state = State.WAITING_FOR_ANSWER;
+		actions.sendLocalDescription(localDescription);
+	}
+
+	private void onNegotiated() {
+		state = State.NEGOTIATED;
+		for (IceCandidate candidate : pendingRemoteCandidates) {
+			actions.addRemoteCandidate(candidate);
+		}
+		pendingRemoteCandidates.clear();
+		if (restarting) {
+			restarting = false;
+		} else {
+			actions.onNegotiated();
+		}
+	}
+
+	private void mark(Phase phase) {
+		if (phaseNanos[phase.ordinal()] == 0) {
+			phaseNanos[phase.ordinal()] = System.nanoTime();
+		}
+	}
+
+	private void expectState(String event, State expected) {
+		if (state != expected) {
+			throw unexpected(event);
+		}
+	}
+
+	private IllegalStateException unexpected(String event) {
+		return new IllegalStateException(TAG + ": unexpected " + event + " in state " + state);
+	}
+}
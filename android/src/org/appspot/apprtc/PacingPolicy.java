@@ -0,0 +1,95 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+/**
+ * Decides which of the frames queued for one of VideoStreamsView's streams get
+ * rendered and which get dropped.  Use one of the static factories, or subclass
+ * for custom behavior.  Implementations are consulted under VideoStreamsView's
+ * frame lock, so they must be cheap and must not block.
+ */
+public abstract class PacingPolicy {
+  /**
+   * Maximum number of frames to keep queued per stream; when a frame arrives
+   * at a full queue the oldest queued frame is dropped.
+   */
+  public abstract int maxQueueDepth();
+
+  /**
+   * Whether a frame that has been queued for |ageNanos| should be dropped
+   * instead of rendered, given that |newerFrames| frames are queued behind it.
+   * The newest frame (|newerFrames| == 0) is always rendered regardless.
+   */
+  public abstract boolean shouldDrop(long ageNanos, int newerFrames);
+
+  /** Render only the most recent frame; the behavior of old. */
+  public static PacingPolicy latestWins() {
+    return boundedQueue(1);
+  }
+
+  /** Render every frame, dropping only when more than |depth| are queued. */
+  public static PacingPolicy boundedQueue(final int depth) {
+    if (depth < 1) {
+      throw new IllegalArgumentException("Queue depth must be positive");
+    }
+    return new PacingPolicy() {
+      @Override
+      public int maxQueueDepth() {
+        return depth;
+      }
+
+      @Override
+      public boolean shouldDrop(long ageNanos, int newerFrames) {
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Like boundedQueue(|depth|), but skip frames that have waited longer than
+   * |latencyBudgetMs| when a newer frame is available.
+   */
+  public static PacingPolicy deadline(
+      final int depth, final long latencyBudgetMs) {
+    if (depth < 1) {
+      throw new IllegalArgumentException("Queue depth must be positive");
+    }
+    final long latencyBudgetNanos = latencyBudgetMs * 1000000;
+    return new PacingPolicy() {
+      @Override
+      public int maxQueueDepth() {
+        return depth;
+      }
+
+      @Override
+      public boolean shouldDrop(long ageNanos, int newerFrames) {
+        return newerFrames > 0 && ageNanos > latencyBudgetNanos;
+      }
+    };
+  }
+}
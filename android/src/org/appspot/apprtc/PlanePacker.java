@@ -0,0 +1,92 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Packs padded image planes (stride > width) into tightly packed buffers, as
+ * glTexImage2D() needs on GLES 2.0 unless GL_EXT_unpack_subimage is available.
+ * Destination buffers are direct, owned by the packer and reused across calls,
+ * so steady-state packing doesn't allocate beyond a per-call duplicate() of the
+ * source.
+ *
+ * Not thread-safe; meant to be owned by the render thread.
+ */
+class PlanePacker {
+  // Indexed by plane number (0 for Y, 1 for U, 2 for V).
+  private final ByteBuffer[] packedPlanes = new ByteBuffer[3];
+
+  /**
+   * Return a buffer holding the |width|x|height| pixels of |plane|, whose rows
+   * start every |stride| bytes.  Returns |plane| itself if it is already
+   * tightly packed; otherwise the returned buffer is only valid until the next
+   * call for the same |planeIndex|.
+   */
+  public ByteBuffer pack(
+      int planeIndex, ByteBuffer plane, int width, int height, int stride) {
+    if (stride == width) {
+      return plane;
+    }
+    if (stride < width) {
+      throw new IllegalArgumentException(
+          "Stride " + stride + " shorter than width " + width);
+    }
+    ByteBuffer packed = packedPlanes[planeIndex];
+    int size = width * height;
+    if (packed == null || packed.capacity() < size) {
+      packed = ByteBuffer.allocateDirect(size);
+      packedPlanes[planeIndex] = packed;
+    }
+    packed.clear();
+    copyRows(plane, stride, packed, width, height);
+    packed.flip();
+    return packed;
+  }
+
+  /** Drop the packing buffers, e.g. when the surface goes away. */
+  public void release() {
+    for (int i = 0; i < packedPlanes.length; ++i) {
+      packedPlanes[i] = null;
+    }
+  }
+
+  // Copy |height| rows of |width| bytes, starting every |stride| bytes in |src|,
+  // to |dst| at its current position.  Each row is a single bulk put(), which
+  // turns into a memcpy for direct buffers.
+  static void copyRows(
+      ByteBuffer src, int stride, ByteBuffer dst, int width, int height) {
+    ByteBuffer row = src.duplicate();
+    int base = src.position();
+    for (int y = 0; y < height; ++y) {
+      int start = base + y * stride;
+      row.limit(start + width).position(start);
+      dst.put(row);
+    }
+  }
+}
@@ -0,0 +1,179 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms describing VideoStreamsView's render path.
+ * The record*() methods are called on the render thread and neither lock nor
+ * allocate; snapshot() may be polled from any thread (e.g. by a debug overlay
+ * or a periodic log exporter).  All durations are kept in microseconds.
+ */
+public class RenderMetrics {
+  private final AtomicLong framesUploaded = new AtomicLong();
+  private final AtomicLong framesDrawn = new AtomicLong();
+  private final AtomicLong glErrorChecks = new AtomicLong();
+  private final AtomicLong bytesUploaded = new AtomicLong();
+  private final AtomicLong bytesSavedByDownscaling = new AtomicLong();
+  private final LatencyHistogram uploadTimeUs = new LatencyHistogram();
+  private final LatencyHistogram drawTimeUs = new LatencyHistogram();
+  private final LatencyHistogram frameIntervalUs = new LatencyHistogram();
+  private final LatencyHistogram frameJitterUs = new LatencyHistogram();
+  private final LatencyHistogram glErrorCheckTimeUs = new LatencyHistogram();
+  // Only touched on the render thread.
+  private long lastDrawStartNanos = -1;
+  private long lastFrameIntervalNanos = -1;
+
+  /** Record the upload of |bytes| of one frame's planes, which took |nanos|. */
+  public void recordUpload(long nanos, long bytes) {
+    framesUploaded.incrementAndGet();
+    bytesUploaded.addAndGet(bytes);
+    uploadTimeUs.record(nanos / 1000);
+  }
+
+  /**
+   * Record a draw that started at |startNanos| (System.nanoTime()) and took
+   * |nanos|.  Also tracks the interval between successive draws and its
+   * variation from one draw to the next (jitter).
+   */
+  public void recordDraw(long startNanos, long nanos) {
+    framesDrawn.incrementAndGet();
+    drawTimeUs.record(nanos / 1000);
+    if (lastDrawStartNanos != -1) {
+      long interval = startNanos - lastDrawStartNanos;
+      frameIntervalUs.record(interval / 1000);
+      if (lastFrameIntervalNanos != -1) {
+        frameJitterUs.record(Math.abs(interval - lastFrameIntervalNanos) / 1000);
+      }
+      lastFrameIntervalNanos = interval;
+    }
+    lastDrawStartNanos = startNanos;
+  }
+
+  /**
+   * Record that a frame was downscaled before being queued, so |bytesSaved|
+   * fewer bytes will be uploaded.
+   */
+  public void recordDownscale(long bytesSaved) {
+    bytesSavedByDownscaling.addAndGet(bytesSaved);
+  }
+
+  /** Record one glGetError() check, which took |nanos|. */
+  public void recordGlErrorCheck(long nanos) {
+    glErrorChecks.incrementAndGet();
+    glErrorCheckTimeUs.record(nanos / 1000);
+  }
+
+  /** Return the metrics recorded since creation or the last reset(). */
+  public Snapshot snapshot() {
+    return new Snapshot(this);
+  }
+
+  /**
+   * Start over.  Racing with the render thread may lose or misattribute a
+   * handful of samples, which is fine for metrics.
+   */
+  public void reset() {
+    framesUploaded.set(0);
+    framesDrawn.set(0);
+    glErrorChecks.set(0);
+    bytesUploaded.set(0);
+    bytesSavedByDownscaling.set(0);
+    uploadTimeUs.reset();
+    drawTimeUs.reset();
+    frameIntervalUs.reset();
+    frameJitterUs.reset();
+    glErrorCheckTimeUs.reset();
+  }
+
+  /** Point-in-time copy of a RenderMetrics; percentiles in microseconds. */
+  public static class Snapshot {
+    // System.nanoTime() when the snapshot was taken.
+    public final long takenAtNanos;
+    public final long framesUploaded;
+    public final long framesDrawn;
+    public final long glErrorChecks;
+    public final long bytesUploaded;
+    public final long bytesSavedByDownscaling;
+    public final long uploadP50Us;
+    public final long uploadP99Us;
+    public final long drawP50Us;
+    public final long drawP99Us;
+    public final long frameIntervalP50Us;
+    public final long frameIntervalP99Us;
+    public final long jitterP50Us;
+    public final long jitterP99Us;
+    public final long glErrorCheckP99Us;
+
+    private Snapshot(RenderMetrics metrics) {
+      takenAtNanos = System.nanoTime();
+      framesUploaded = metrics.framesUploaded.get();
+      framesDrawn = metrics.framesDrawn.get();
+      glErrorChecks = metrics.glErrorChecks.get();
+      bytesUploaded = metrics.bytesUploaded.get();
+      bytesSavedByDownscaling = metrics.bytesSavedByDownscaling.get();
+      uploadP50Us = metrics.uploadTimeUs.getPercentile(50);
+      uploadP99Us = metrics.uploadTimeUs.getPercentile(99);
+      drawP50Us = metrics.drawTimeUs.getPercentile(50);
+      drawP99Us = metrics.drawTimeUs.getPercentile(99);
+      frameIntervalP50Us = metrics.frameIntervalUs.getPercentile(50);
+      frameIntervalP99Us = metrics.frameIntervalUs.getPercentile(99);
+      jitterP50Us = metrics.frameJitterUs.getPercentile(50);
+      jitterP99Us = metrics.frameJitterUs.getPercentile(99);
+      glErrorCheckP99Us = metrics.glErrorCheckTimeUs.getPercentile(99);
+    }
+
+    /** Frame rate implied by the median draw interval. */
+    public double medianFps() {
+      return frameIntervalP50Us == 0 ? 0 : 1e6 / frameIntervalP50Us;
+    }
+
+    /** Texture upload bandwidth between |earlier| and this snapshot. */
+    public double uploadBytesPerSecondSince(Snapshot earlier) {
+      long elapsed = takenAtNanos - earlier.takenAtNanos;
+      return elapsed <= 0 ? 0 :
+          (bytesUploaded - earlier.bytesUploaded) * 1e9 / elapsed;
+    }
+
+    @Override
+    public String toString() {
+      return "drawn=" + framesDrawn + " uploaded=" + framesUploaded +
+          " bytesUploaded=" + bytesUploaded +
+          " bytesSavedByDownscaling=" + bytesSavedByDownscaling +
+          " fps(median)=" + Math.round(medianFps()) +
+          " uploadUs(p50/p99)=" + uploadP50Us + "/" + uploadP99Us +
+          " drawUs(p50/p99)=" + drawP50Us + "/" + drawP99Us +
+          " intervalUs(p50/p99)=" + frameIntervalP50Us + "/" +
+          frameIntervalP99Us +
+          " jitterUs(p50/p99)=" + jitterP50Us + "/" + jitterP99Us +
+          " glErrorChecks=" + glErrorChecks +
+          " (p99 " + glErrorCheckP99Us + "us)";
+    }
+  }
+}
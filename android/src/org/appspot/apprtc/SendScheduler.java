@@ -0,0 +1,186 @@
+package org.appspot.apprtc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.webrtc.DataChannel;
+
+/**
+ * Shares one send budget between the data channels of a peer connection, by weight. The channels
+ * all go through the same SCTP association, so what matters is how much all of them have buffered:
+ * the scheduler hands messages to the channels only while that total is under the high watermark,
+ * and once it is reached waits for it to drain to the low one.
+ * <p>
+ * Within the budget, channels take turns by deficit round robin: each turn, a channel with queued
+ * messages may send up to |weight| x QUANTUM bytes (carrying over what it doesn't use while it
+ * has messages waiting), so a channel of weight 16 gets sixteen times the bandwidth of one of
+ * weight 1 when both are busy, and all of it when the other is idle.
+ * <p>
+ * Senders are made with {@link #newSender(DataChannel, int, int)}; scheduling runs on the
+ * scheduler's own thread.
+ */
+public class SendScheduler {
+	public static final long DEFAULT_HIGH_WATERMARK = DataChannelSender.DEFAULT_HIGH_WATERMARK;
+
+	public static final long DEFAULT_LOW_WATERMARK = DataChannelSender.DEFAULT_LOW_WATERMARK;
+
+	// Bytes a channel of weight 1 may send per turn.
+	private static final int QUANTUM = 1024;
+
+	// How often the channels' buffered amounts are checked while over budget, or after a channel
+	// refused a message.
+	private static final long DRAIN_POLL_MS = 10;
+
+	private static final String TAG = "SendScheduler";
+
+	private static class Entry {
+		final DataChannelSender sender;
+
+		final int weight;
+
+		// Bytes the channel may still send before its turn is over; only touched on |thread|.
+		long deficit = 0;
+
+		Entry(DataChannelSender sender, int weight) {
+			this.sender = sender;
+			this.weight = weight;
+		}
+	}
+
+	private final long highWatermark;
+
+	private final long lowWatermark;
+
+	private final Thread thread;
+
+	// These members are only read/written under |this|'s lock.
+	private final List<Entry> entries = new ArrayList<Entry>();
+
+	private boolean woken = false;
+
+	private boolean closed = false;
+
+	public SendScheduler() {
+		this(DEFAULT_HIGH_WATERMARK, DEFAULT_LOW_WATERMARK);
+	}
+
+	public SendScheduler(long highWatermark, long lowWatermark) {
+		if (lowWatermark < 0 || lowWatermark > highWatermark) {
+			throw new IllegalArgumentException("Bad watermarks: low " + lowWatermark + ", high "
+					+ highWatermark);
+		}
+		this.highWatermark = highWatermark;
+		this.lowWatermark = lowWatermark;
+		thread = new Thread(new Runnable() {
+			public void run() {
+				schedule();
+			}
+		}, TAG);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * A sender for |channel|, queuing up to |maxBuffered| messages, that gets a share of the budget
+	 * in proportion to |weight|.
+	 */
+	public synchronized DataChannelSender newSender(DataChannel channel, int weight,
+			int maxBuffered) {
+		if (weight < 1) {
+			throw new IllegalArgumentException("Weight must be positive: " + weight);
+		}
+		DataChannelSender sender = new DataChannelSender(channel, maxBuffered, this);
+		entries.add(new Entry(sender, weight));
+		return sender;
+	}
+
+	/** Stop scheduling; the senders should be closed too. */
+	public synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+
+	/** A sender has something new to send, or may be able to send again. */
+	synchronized void wake() {
+		woken = true;
+		notifyAll();
+	}
+
+	private void schedule() {
+		try {
+			while (true) {
+				Entry[] turn;
+				synchronized (this) {
+					if (closed) {
+						return;
+					}
+					woken = false;
+					turn = entries.toArray(new Entry[entries.size()]);
+				}
+				// Senders are called outside the lock, so a send() waking us never waits on a turn.
+				boolean waiting = false;
+				boolean refused = false;
+				boolean overBudget = false;
+				for (Entry entry : turn) {
+					int size = entry.sender.nextMessageSize();
+					if (size < 0) {
+						entry.deficit = 0;
+						continue;
+					}
+					waiting = true;
+					entry.deficit += (long) entry.weight * QUANTUM;
+					while (size >= 0 && size <= entry.deficit) {
+						if (totalBuffered(turn) >= highWatermark) {
+							overBudget = true;
+							break;
+						}
+						// Charged the bytes sendNext() actually handed to the channel.
+						int sent = entry.sender.sendNext();
+						if (sent < 0) {
+							refused = true;
+							break;
+						}
+						entry.deficit -= sent;
+						size = entry.sender.nextMessageSize();
+					}
+					if (size < 0) {
+						entry.deficit = 0;
+					}
+					if (overBudget) {
+						break;
+					}
+				}
+				if (overBudget) {
+					while (!isClosed() && totalBuffered(turn) > lowWatermark) {
+						Thread.sleep(DRAIN_POLL_MS);
+					}
+				} else if (refused) {
+					Thread.sleep(DRAIN_POLL_MS);
+				} else if (!waiting) {
+					synchronized (this) {
+						while (!woken && !closed) {
+							wait();
+						}
+					}
+				}
+				// Otherwise some channel is still short of deficit for its next message: another
+				// round tops it up.
+			}
+		}
+		catch (InterruptedException e) {
+			// Closed.
+		}
+	}
+
+	private synchronized boolean isClosed() {
+		return closed;
+	}
+
+	private static long totalBuffered(Entry[] entries) {
+		long total = 0;
+		for (Entry entry : entries) {
+			total += entry.sender.bufferedAmount();
+		}
+		return total;
+	}
+}
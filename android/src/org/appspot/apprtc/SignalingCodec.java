@@ -0,0 +1,506 @@
+package org.appspot.apprtc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.webrtc.IceCandidate;
+
+/**
+ * Encodes {@link SignalingMessage}s to their JSON wire form and back without building a JSON
+ * object tree: the writer appends straight into a reused StringBuilder and the reader walks the
+ * frame once, matching keys in place and skipping anything it doesn't know. The wire format is
+ * the one the app has always used, e.g. {"type":"candidate","label":0,"id":"data","candidate":"..."},
+ * plus {"type":"candidates","candidates":[{"label":...},...]} for candidate batches.
+ * <p>
+ * A decoded frame may hold one message, a JSON array of them, or the envelope
+ * {"from":"<sender id>","seq":<n>,"messages":[...]} sent by {@link SignalingSender}. Instances may
+ * be shared between threads.
+ */
+public class SignalingCodec {
+	private static final char LINE_SEPARATOR = 0x2028;
+
+	private static final char PARAGRAPH_SEPARATOR = 0x2029;
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final StringBuilder writer = new StringBuilder(8 * 1024);
+
+	// Decoding state; only valid during decode().
+	private final StringBuilder scratch = new StringBuilder(8 * 1024);
+
+	private String frame;
+
+	private int pos;
+
+	/** Returns the wire form of |message|. */
+	public synchronized String encode(SignalingMessage message) {
+		writer.setLength(0);
+		writer.append("{\"type\":");
+		writeString(message.type.wireName);
+		switch (message.type) {
+		case OFFER:
+		case ANSWER:
+			writer.append(",\"sdp\":");
+			writeString(message.sdp);
+			break;
+		case CANDIDATE:
+			writer.append(',');
+			writeCandidateFields(message.candidates.get(0));
+			break;
+		case CANDIDATES:
+			writer.append(",\"candidates\":[");
+			for (int i = 0; i < message.candidates.size(); ++i) {
+				writer.append(i == 0 ? "{" : ",{");
+				writeCandidateFields(message.candidates.get(i));
+				writer.append('}');
+			}
+			writer.append(']');
+			break;
+		case BYE:
+			break;
+		}
+		writer.append('}');
+		return writer.toString();
+	}
+
+	/** The origin of an enveloped frame; see {@link SignalingCodec#readSequence}. */
+	public static class FrameSequence {
+		public String from;
+
+		public long seq;
+	}
+
+	/**
+	 * Decode the message, array of messages or envelope in |frame| and append the messages to
+	 * |out|. Throws IllegalArgumentException if |frame| is malformed or holds an unknown message
+	 * type.
+	 */
+	public synchronized void decode(String frame, List<SignalingMessage> out) {
+		this.frame = frame;
+		pos = 0;
+		try {
+			skipWhitespace();
+			if (peek() == '[') {
+				readMessages(out);
+			} else {
+				readMessage(out);
+			}
+			skipWhitespace();
+			if (pos != frame.length()) {
+				throw error("trailing characters");
+			}
+		}
+		finally {
+			this.frame = null;
+		}
+	}
+
+	/**
+	 * Read the sender id and sequence number of the envelope in |frame| into |sequence|, skipping
+	 * over its messages. Returns false if |frame| isn't an envelope.
+	 */
+	public synchronized boolean readSequence(String frame, FrameSequence sequence) {
+		this.frame = frame;
+		pos = 0;
+		try {
+			sequence.from = null;
+			sequence.seq = 0;
+			skipWhitespace();
+			if (peek() != '{') {
+				return false;
+			}
+			++pos;
+			skipWhitespace();
+			if (peek() == '}') {
+				return false;
+			}
+			do {
+				readString();
+				skipWhitespace();
+				expect(':');
+				skipWhitespace();
+				if (scratchEquals("from")) {
+					sequence.from = readStringValue();
+				} else if (scratchEquals("seq")) {
+					sequence.seq = readLong();
+				} else {
+					skipValue();
+				}
+			} while (nextInList('}'));
+			return sequence.from != null && sequence.seq > 0;
+		}
+		finally {
+			this.frame = null;
+		}
+	}
+
+	private void writeCandidateFields(IceCandidate candidate) {
+		writer.append("\"label\":").append(candidate.sdpMLineIndex).append(",\"id\":");
+		writeString(candidate.sdpMid);
+		writer.append(",\"candidate\":");
+		writeString(candidate.sdp);
+	}
+
+	// Quote |value|, escaping what JSON requires plus U+2028/U+2029, which JavaScript string
+	// literals can't contain, so the output is safe to embed in any transport.
+	private void writeString(String value) {
+		writer.append('"');
+		int length = value.length();
+		int start = 0;
+		for (int i = 0; i < length; ++i) {
+			char c = value.charAt(i);
+			if (c >= 0x20 && c != '"' && c != '\\' && c != LINE_SEPARATOR && c != PARAGRAPH_SEPARATOR) {
+				continue;
+			}
+			writer.append(value, start, i);
+			start = i + 1;
+			switch (c) {
+			case '"':
+				writer.append("\\\"");
+				break;
+			case '\\':
+				writer.append("\\\\");
+				break;
+			case '\n':
+				writer.append("\\n");
+				break;
+			case '\r':
+				writer.append("\\r");
+				break;
+			case '\t':
+				writer.append("\\t");
+				break;
+			default:
+				writer.append("\\u").append(HEX[c >> 12]).append(HEX[(c >> 8) & 0xf])
+						.append(HEX[(c >> 4) & 0xf]).append(HEX[c & 0xf]);
+				break;
+			}
+		}
+		writer.append(value, start, length).append('"');
+	}
+
+	private void readMessages(List<SignalingMessage> out) {
+		expect('[');
+		skipWhitespace();
+		if (peek() == ']') {
+			++pos;
+			return;
+		}
+		do {
+			readMessage(out);
+		} while (nextInList(']'));
+	}
+
+	// Append the message (or an envelope's messages) at |pos| to |out|.
+	private void readMessage(List<SignalingMessage> out) {
+		SignalingMessage.Type type = null;
+		String sdp = null;
+		List<IceCandidate> candidates = null;
+		int label = -1;
+		String id = null;
+		String candidate = null;
+		boolean envelope = false;
+
+		expect('{');
+		skipWhitespace();
+		if (peek() == '}') {
+			throw error("empty message");
+		}
+		do {
+			readString();
+			skipWhitespace();
+			expect(':');
+			skipWhitespace();
+			if (scratchEquals("type")) {
+				type = readType();
+			} else if (scratchEquals("sdp")) {
+				sdp = readStringValue();
+			} else if (scratchEquals("label")) {
+				label = readInt();
+			} else if (scratchEquals("id")) {
+				id = readStringValue();
+			} else if (scratchEquals("candidate")) {
+				candidate = readStringValue();
+			} else if (scratchEquals("candidates")) {
+				candidates = readCandidates();
+			} else if (scratchEquals("messages")) {
+				envelope = true;
+				readMessages(out);
+			} else {
+				skipValue();
+			}
+		} while (nextInList('}'));
+
+		if (envelope) {
+			return;
+		}
+		if (type == null) {
+			throw error("missing type");
+		}
+		switch (type) {
+		case OFFER:
+		case ANSWER:
+			if (sdp == null) {
+				throw error("missing sdp");
+			}
+			out.add(SignalingMessage.description(type, sdp));
+			return;
+		case CANDIDATE:
+			if (id == null || label < 0 || candidate == null) {
+				throw error("incomplete candidate");
+			}
+			candidates = new ArrayList<IceCandidate>(1);
+			candidates.add(new IceCandidate(id, label, candidate));
+			out.add(SignalingMessage.candidates(candidates));
+			return;
+		case CANDIDATES:
+			if (candidates == null || candidates.isEmpty()) {
+				throw error("missing candidates");
+			}
+			out.add(SignalingMessage.candidates(candidates));
+			return;
+		case BYE:
+			out.add(SignalingMessage.bye());
+			return;
+		}
+		throw error("unhandled type " + type);
+	}
+
+	private List<IceCandidate> readCandidates() {
+		List<IceCandidate> candidates = new ArrayList<IceCandidate>();
+		expect('[');
+		skipWhitespace();
+		if (peek() == ']') {
+			++pos;
+			return candidates;
+		}
+		do {
+			int label = -1;
+			String id = null;
+			String candidate = null;
+			expect('{');
+			skipWhitespace();
+			if (peek() != '}') {
+				do {
+					readString();
+					skipWhitespace();
+					expect(':');
+					skipWhitespace();
+					if (scratchEquals("label")) {
+						label = readInt();
+					} else if (scratchEquals("id")) {
+						id = readStringValue();
+					} else if (scratchEquals("candidate")) {
+						candidate = readStringValue();
+					} else {
+						skipValue();
+					}
+				} while (nextInList('}'));
+			} else {
+				++pos;
+			}
+			if (id == null || label < 0 || candidate == null) {
+				throw error("incomplete candidate");
+			}
+			candidates.add(new IceCandidate(id, label, candidate));
+		} while (nextInList(']'));
+		return candidates;
+	}
+
+	private SignalingMessage.Type readType() {
+		readString();
+		for (SignalingMessage.Type type : SignalingMessage.Type.values()) {
+			if (scratchEquals(type.wireName)) {
+				return type;
+			}
+		}
+		throw error("unexpected type \"" + scratch + "\"");
+	}
+
+	private String readStringValue() {
+		readString();
+		return scratch.toString();
+	}
+
+	// Read a string literal into |scratch|, unescaping it.
+	private void readString() {
+		expect('"');
+		scratch.setLength(0);
+		int start = pos;
+		while (true) {
+			if (pos >= frame.length()) {
+				throw error("unterminated string");
+			}
+			char c = frame.charAt(pos);
+			if (c == '"') {
+				scratch.append(frame, start, pos);
+				++pos;
+				return;
+			}
+			if (c != '\\') {
+				++pos;
+				continue;
+			}
+			scratch.append(frame, start, pos);
+			if (pos + 1 >= frame.length()) {
+				throw error("unterminated string");
+			}
+			char escaped = frame.charAt(pos + 1);
+			pos += 2;
+			switch (escaped) {
+			case '"':
+			case '\\':
+			case '/':
+				scratch.append(escaped);
+				break;
+			case 'b':
+				scratch.append('\b');
+				break;
+			case 'f':
+				scratch.append('\f');
+				break;
+			case 'n':
+				scratch.append('\n');
+				break;
+			case 'r':
+				scratch.append('\r');
+				break;
+			case 't':
+				scratch.append('\t');
+				break;
+			case 'u':
+				if (pos + 4 > frame.length()) {
+					throw error("truncated \\u escape");
+				}
+				int code = 0;
+				for (int i = 0; i < 4; ++i) {
+					int digit = Character.digit(frame.charAt(pos + i), 16);
+					if (digit < 0) {
+						throw error("bad \\u escape");
+					}
+					code = (code << 4) | digit;
+				}
+				pos += 4;
+				scratch.append((char) code);
+				break;
+			default:
+				throw error("bad escape \\" + escaped);
+			}
+			start = pos;
+		}
+	}
+
+	private int readInt() {
+		long value = readLong();
+		if (value > Integer.MAX_VALUE) {
+			throw error("number out of range");
+		}
+		return (int) value;
+	}
+
+	private long readLong() {
+		int start = pos;
+		long value = 0;
+		while (pos < frame.length() && frame.charAt(pos) >= '0' && frame.charAt(pos) <= '9') {
+			value = value * 10 + (frame.charAt(pos) - '0');
+			if (value < 0) {
+				throw error("number out of range");
+			}
+			++pos;
+		}
+		if (pos == start) {
+			throw error("expected a non-negative integer");
+		}
+		return value;
+	}
+
+	private void skipValue() {
+		char c = peek();
+		if (c == '"') {
+			readString();
+		} else if (c == '{' || c == '[') {
+			char close = c == '{' ? '}' : ']';
+			++pos;
+			skipWhitespace();
+			if (peek() == close) {
+				++pos;
+				return;
+			}
+			do {
+				if (close == '}') {
+					readString();
+					skipWhitespace();
+					expect(':');
+					skipWhitespace();
+				}
+				skipValue();
+			} while (nextInList(close));
+		} else {
+			// A number, true, false or null.
+			int start = pos;
+			while (pos < frame.length() && "{}[],: \t\r\n\"".indexOf(frame.charAt(pos)) < 0) {
+				++pos;
+			}
+			if (pos == start) {
+				throw error("expected a value");
+			}
+		}
+	}
+
+	// After a list element: true if a ',' follows (another element), false if |close| does.
+	private boolean nextInList(char close) {
+		skipWhitespace();
+		char c = peek();
+		++pos;
+		if (c == ',') {
+			skipWhitespace();
+			return true;
+		}
+		if (c != close) {
+			--pos;
+			throw error("expected ',' or '" + close + "'");
+		}
+		return false;
+	}
+
+	private boolean scratchEquals(String value) {
+		if (scratch.length() != value.length()) {
+			return false;
+		}
+		for (int i = 0; i < value.length(); ++i) {
+			if (scratch.charAt(i) != value.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void expect(char c) {
+		if (peek() != c) {
+			throw error("expected '" + c + "'");
+		}
+		++pos;
+	}
+
+	private char peek() {
+		if (pos >= frame.length()) {
+			throw error("unexpected end");
+		}
+		return frame.charAt(pos);
+	}
+
+	private void skipWhitespace() {
+		while (pos < frame.length()) {
+			char c = frame.charAt(pos);
+			if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+				return;
+			}
+			++pos;
+		}
+	}
+
+	private IllegalArgumentException error(String problem) {
+		return new IllegalArgumentException("Malformed signaling message (" + problem
+				+ " at offset " + pos + "): " + frame);
+	}
+}
@@ -0,0 +1,77 @@
+package org.appspot.apprtc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.webrtc.IceCandidate;
+import org.webrtc.SessionDescription;
+
+/**
+ * A message exchanged with the other party through the signaling server. Encoded and decoded by
+ * {@link SignalingCodec}.
+ */
+public class SignalingMessage {
+	/** The message kinds, by their "type" on the wire. */
+	public enum Type {
+		OFFER("offer"), ANSWER("answer"), CANDIDATE("candidate"), CANDIDATES("candidates"), BYE(
+				"bye");
+
+		public final String wireName;
+
+		private Type(String wireName) {
+			this.wireName = wireName;
+		}
+	}
+
+	public final Type type;
+
+	/** The session description for OFFER and ANSWER, null otherwise. */
+	public final String sdp;
+
+	/** One candidate for CANDIDATE, one or more for CANDIDATES, empty otherwise. */
+	public final List<IceCandidate> candidates;
+
+	private SignalingMessage(Type type, String sdp, List<IceCandidate> candidates) {
+		this.type = type;
+		this.sdp = sdp;
+		this.candidates = candidates;
+	}
+
+	/** An OFFER or ANSWER carrying |description|. */
+	public static SignalingMessage description(SessionDescription description) {
+		return description(description.type == SessionDescription.Type.OFFER ? Type.OFFER
+				: Type.ANSWER, description.description);
+	}
+
+	static SignalingMessage description(Type type, String sdp) {
+		if ((type != Type.OFFER && type != Type.ANSWER) || sdp == null) {
+			throw new IllegalArgumentException("Not a session description: " + type);
+		}
+		return new SignalingMessage(type, sdp, Collections.<IceCandidate> emptyList());
+	}
+
+	/** A CANDIDATE for a single candidate, a CANDIDATES batch otherwise. */
+	public static SignalingMessage candidates(List<IceCandidate> candidates) {
+		if (candidates.isEmpty()) {
+			throw new IllegalArgumentException("No candidates");
+		}
+		return new SignalingMessage(candidates.size() == 1 ? Type.CANDIDATE : Type.CANDIDATES,
+				null, Collections.unmodifiableList(new ArrayList<IceCandidate>(candidates)));
+	}
+
+	public static SignalingMessage bye() {
+		return new SignalingMessage(Type.BYE, null, Collections.<IceCandidate> emptyList());
+	}
+
+	/** The SessionDescription carried by an OFFER or ANSWER. */
+	public SessionDescription toSessionDescription() {
+		return new SessionDescription(SessionDescription.Type.fromCanonicalForm(type.wireName), sdp);
+	}
+
+	@Override
+	public String toString() {
+		return type.wireName + (sdp != null ? " (" + sdp.length() + " chars of SDP)" : "")
+				+ (candidates.isEmpty() ? "" : " " + candidates);
+	}
+}
@@ -0,0 +1,264 @@
+package org.appspot.apprtc;
+
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends signaling messages from a single dedicated thread. Callers enqueue onto a lock-free queue
+ * and return immediately; the sender waits a short coalescing window after the first pending
+ * message and then writes everything that has accumulated as one frame. This turns a burst of
+ * trickled ICE candidates into a handful of transport writes.
+ * <p>
+ * Each frame is an envelope {"from":"<sender id>","seq":<n>,"messages":[...]} (see
+ * {@link SignalingCodec}). The last frames are kept, and {@link #replay()} sends them again after
+ * the transport was interrupted; the receiver drops the ones it already has by their sequence
+ * number.
+ * <p>
+ * Messages may be enqueued before {@link #start(Transport)}; they are sent once it is called.
+ */
+public class SignalingSender {
+	/** Where frames go; only ever invoked on the sender thread. */
+	public interface Transport {
+		public void send(String frame);
+	}
+
+	public static final long DEFAULT_COALESCING_WINDOW_MS = 10;
+
+	public static final int DEFAULT_MAX_BATCH_SIZE = 32;
+
+	// Frames kept for replay; a call's signaling is a few dozen frames at most.
+	static final int HISTORY_SIZE = 256;
+
+	private static final String TAG = "SignalingSender";
+
+	private static final class Entry {
+		final String message;
+
+		final long enqueuedNanos;
+
+		Entry(String message, long enqueuedNanos) {
+			this.message = message;
+			this.enqueuedNanos = enqueuedNanos;
+		}
+	}
+
+	private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<Entry>();
+
+	private final long coalescingWindowNanos;
+
+	private final int maxBatchSize;
+
+	// Only touched by the sender thread.
+	private final ArrayList<Entry> batch = new ArrayList<Entry>();
+
+	private final StringBuilder frame = new StringBuilder();
+
+	private final ArrayDeque<String> history = new ArrayDeque<String>();
+
+	private long nextSeq = 1;
+
+	private final String senderId = Long.toHexString(new SecureRandom().nextLong());
+
+	private final AtomicBoolean replayRequested = new AtomicBoolean();
+
+	private volatile Transport transport;
+
+	private volatile Thread thread;
+
+	private volatile boolean stopping = false;
+
+	private volatile Runnable onStopped;
+
+	private final AtomicLong messagesSent = new AtomicLong();
+
+	private final AtomicLong framesSent = new AtomicLong();
+
+	private final AtomicLong framesReplayed = new AtomicLong();
+
+	private final LatencyHistogram batchSizes = new LatencyHistogram();
+
+	// Enqueue-to-write latency, in microseconds.
+	private final LatencyHistogram queueLatencyUs = new LatencyHistogram();
+
+	public SignalingSender() {
+		this(DEFAULT_COALESCING_WINDOW_MS, DEFAULT_MAX_BATCH_SIZE);
+	}
+
+	public SignalingSender(long coalescingWindowMs, int maxBatchSize) {
+		if (coalescingWindowMs < 0 || maxBatchSize < 1) {
+			throw new IllegalArgumentException("Bad coalescing window " + coalescingWindowMs
+					+ "ms or batch size " + maxBatchSize);
+		}
+		this.coalescingWindowNanos = TimeUnit.MILLISECONDS.toNanos(coalescingWindowMs);
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	/** Start the sender thread, writing frames to |transport|. */
+	public synchronized void start(Transport transport) {
+		if (thread != null) {
+			throw new IllegalStateException("Already started");
+		}
+		this.transport = transport;
+		Thread sender = new Thread(new Runnable() {
+			public void run() {
+				runSender();
+			}
+		}, TAG);
+		sender.setDaemon(true);
+		thread = sender;
+		sender.start();
+	}
+
+	/** Enqueue |message| (a JSON object's text); never blocks. */
+	public void send(String message) {
+		if (stopping) {
+			return;
+		}
+		queue.offer(new Entry(message, System.nanoTime()));
+		Thread sender = thread;
+		if (sender != null) {
+			LockSupport.unpark(sender);
+		}
+	}
+
+	/**
+	 * Send the retained frames again, oldest first, ahead of anything new; call when frames may
+	 * have been lost, e.g. after the signaling connection was re-established.
+	 */
+	public void replay() {
+		replayRequested.set(true);
+		Thread sender = thread;
+		if (sender != null) {
+			LockSupport.unpark(sender);
+		}
+	}
+
+	/**
+	 * Flush whatever is queued without waiting out the coalescing window, stop the sender thread
+	 * and then run |onStopped| (if non-null) on it. Messages sent afterwards are dropped.
+	 */
+	public synchronized void stop(Runnable onStopped) {
+		if (stopping) {
+			return;
+		}
+		this.onStopped = onStopped;
+		stopping = true;
+		if (thread != null) {
+			LockSupport.unpark(thread);
+		} else if (onStopped != null) {
+			onStopped.run();
+		}
+	}
+
+	public Stats getStats() {
+		return new Stats(messagesSent.get(), framesSent.get(), framesReplayed.get(),
+				batchSizes.getPercentile(50),
+				batchSizes.getPercentile(99), queueLatencyUs.getPercentile(50),
+				queueLatencyUs.getPercentile(99));
+	}
+
+	/** Counters since the sender was created. */
+	public static class Stats {
+		public final long messagesSent;
+
+		public final long framesSent;
+
+		public final long framesReplayed;
+
+		public final long batchSizeP50;
+
+		public final long batchSizeP99;
+
+		// Enqueue-to-write latency percentiles, in microseconds.
+		public final long queueLatencyP50Us;
+
+		public final long queueLatencyP99Us;
+
+		Stats(long messagesSent, long framesSent, long framesReplayed, long batchSizeP50,
+				long batchSizeP99, long queueLatencyP50Us, long queueLatencyP99Us) {
+			this.messagesSent = messagesSent;
+			this.framesSent = framesSent;
+			this.framesReplayed = framesReplayed;
+			this.batchSizeP50 = batchSizeP50;
+			this.batchSizeP99 = batchSizeP99;
+			this.queueLatencyP50Us = queueLatencyP50Us;
+			this.queueLatencyP99Us = queueLatencyP99Us;
+		}
+
+		@Override
+		public String toString() {
+			return "messages=" + messagesSent + " frames=" + framesSent + " replayed="
+					+ framesReplayed + " batchSize(p50/p99)="
+					+ batchSizeP50 + "/" + batchSizeP99 + " queueLatencyUs(p50/p99)="
+					+ queueLatencyP50Us + "/" + queueLatencyP99Us;
+		}
+	}
+
+	private void runSender() {
+		while (true) {
+			if (replayRequested.getAndSet(false)) {
+				for (String retained : history) {
+					transport.send(retained);
+				}
+				framesReplayed.addAndGet(history.size());
+			}
+			Entry first = queue.peek();
+			if (first == null) {
+				if (stopping) {
+					break;
+				}
+				LockSupport.park(this);
+				continue;
+			}
+			// Let the burst accumulate; send() wakes us early, so re-check until the window ends.
+			long remaining = first.enqueuedNanos + coalescingWindowNanos - System.nanoTime();
+			if (remaining > 0 && !stopping) {
+				LockSupport.parkNanos(this, remaining);
+				continue;
+			}
+			sendBatch();
+		}
+		Runnable callback = onStopped;
+		if (callback != null) {
+			callback.run();
+		}
+	}
+
+	private void sendBatch() {
+		Entry entry;
+		while (batch.size() < maxBatchSize && (entry = queue.poll()) != null) {
+			batch.add(entry);
+		}
+		frame.setLength(0);
+		frame.append("{\"from\":\"").append(senderId).append("\",\"seq\":").append(nextSeq++)
+				.append(",\"messages\":[");
+		for (int i = 0; i < batch.size(); ++i) {
+			if (i > 0) {
+				frame.append(',');
+			}
+			frame.append(batch.get(i).message);
+		}
+		frame.append("]}");
+		String payload = frame.toString();
+		history.addLast(payload);
+		if (history.size() > HISTORY_SIZE) {
+			history.removeFirst();
+		}
+		transport.send(payload);
+
+		long now = System.nanoTime();
+		for (int i = 0; i < batch.size(); ++i) {
+			queueLatencyUs.record(TimeUnit.NANOSECONDS.toMicros(now - batch.get(i).enqueuedNanos));
+		}
+		batchSizes.record(batch.size());
+		messagesSent.addAndGet(batch.size());
+		framesSent.incrementAndGet();
+		batch.clear();
+	}
+}
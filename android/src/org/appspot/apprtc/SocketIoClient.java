@@ -0,0 +1,279 @@
+package org.appspot.apprtc;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A client for the socket.io 0.9 protocol spoken by server/server.js, using the websocket
+ * transport only. It handles the HTTP handshake, heartbeats and event packets
+ * ("5:::{"name":...,"args":[...]}") and reports connection state and events to a
+ * {@link Listener} on its own background thread. Like {@link WebSocket} it has no Android
+ * dependencies.
+ */
+public class SocketIoClient {
+	/**
+	 * Callbacks, all invoked on the client's background thread.
+	 */
+	public interface Listener {
+		/** The socket.io session is established; emitted events now reach the server. */
+		public void onConnect();
+
+		public void onEvent(String name, JSONArray args);
+
+		/** The session ended, either by {@link SocketIoClient#disconnect()} or by the server. */
+		public void onDisconnect(String reason);
+
+		/** Connecting failed; no further callbacks follow. */
+		public void onError(String description);
+	}
+
+	private static final int TIMEOUT_MS = 10000;
+
+	// socket.io 0.9 packet types (see socket.io-spec).
+	private static final char PACKET_DISCONNECT = '0';
+
+	private static final char PACKET_CONNECT = '1';
+
+	private static final char PACKET_HEARTBEAT = '2';
+
+	private static final char PACKET_EVENT = '5';
+
+	private static final char PACKET_ERROR = '7';
+
+	private static final Logger logger = Logger.getLogger(SocketIoClient.class.getName());
+
+	private final String serverUrl;
+
+	private final Listener listener;
+
+	// Guards |connected|, |disconnecting| and |pendingPackets|.
+	private final Object lock = new Object();
+
+	private boolean connected = false;
+
+	private boolean disconnecting = false;
+
+	// Packets emitted before the session was established, sent in order on connect.
+	private final List<String> pendingPackets = new ArrayList<String>();
+
+	private volatile WebSocket webSocket;
+
+	// Why the server ended the session, if it said so.
+	private volatile String serverError;
+
+	/**
+	 * @param serverUrl the http:// URL the socket.io server listens on, e.g. "http://host:2013"
+	 */
+	public SocketIoClient(String serverUrl, Listener listener) {
+		this.serverUrl = serverUrl.endsWith("/") ? serverUrl.substring(0, serverUrl.length() - 1)
+				: serverUrl;
+		this.listener = listener;
+	}
+
+	/** Asynchronously connect; the outcome is reported to the {@link Listener}. */
+	public void connect() {
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				runSession();
+			}
+		}, "SocketIoClient");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Emit event |name| with |args| (Strings, numbers, JSONObjects or JSONArrays). Events emitted
+	 * before the session is established are queued and sent once it is.
+	 */
+	public void emit(String name, Object... args) {
+		JSONArray array = new JSONArray();
+		for (Object arg : args) {
+			array.put(arg);
+		}
+		JSONObject event = new JSONObject();
+		try {
+			event.put("name", name);
+			event.put("args", array);
+		}
+		catch (JSONException e) {
+			throw new RuntimeException(e);
+		}
+		String packet = PACKET_EVENT + ":::" + event.toString();
+		synchronized (lock) {
+			if (disconnecting) {
+				return;
+			}
+			if (!connected) {
+				pendingPackets.add(packet);
+				return;
+			}
+			// Sending under the lock keeps packets ordered behind any queued ones being flushed.
+			sendPacket(packet);
+		}
+	}
+
+	/** Leave the session and close the connection. */
+	public void disconnect() {
+		boolean wasConnected;
+		synchronized (lock) {
+			if (disconnecting) {
+				return;
+			}
+			disconnecting = true;
+			wasConnected = connected;
+			pendingPackets.clear();
+		}
+		WebSocket socket = webSocket;
+		if (socket == null) {
+			return;
+		}
+		if (wasConnected) {
+			sendPacket(PACKET_DISCONNECT + "::");
+		}
+		socket.close();
+	}
+
+	private void runSession() {
+		WebSocket socket;
+		try {
+			String[] session = handshake();
+			String sessionId = session[0];
+			socket = new WebSocket(URI.create(serverUrl.replaceFirst("^http", "ws")
+					+ "/socket.io/1/websocket/" + sessionId), new WebSocket.Listener() {
+				public void onTextMessage(String text) {
+					onPacket(text);
+				}
+
+				public void onClose(int code, String reason) {
+					synchronized (lock) {
+						connected = false;
+					}
+					String error = serverError;
+					listener.onDisconnect(error != null ? error : code + " " + reason);
+				}
+			});
+			socket.connect(TIMEOUT_MS);
+			// The server sends a heartbeat well within its heartbeat timeout; hearing nothing for
+			// that long means the connection is dead, even if TCP hasn't noticed.
+			int heartbeatTimeoutSeconds = parseSeconds(session[1]);
+			if (heartbeatTimeoutSeconds > 0) {
+				socket.setReadTimeout(heartbeatTimeoutSeconds * 1000);
+			}
+		}
+		catch (IOException e) {
+			listener.onError("Could not connect to " + serverUrl + ": " + e.getMessage());
+			return;
+		}
+		webSocket = socket;
+		synchronized (lock) {
+			if (disconnecting) {
+				socket.close();
+			}
+		}
+		socket.readLoop();
+	}
+
+	// Returns the handshake's fields: session id, heartbeat timeout, close timeout and transports.
+	private String[] handshake() throws IOException {
+		URL url = new URL(serverUrl + "/socket.io/1/?t=" + System.currentTimeMillis());
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		connection.setConnectTimeout(TIMEOUT_MS);
+		connection.setReadTimeout(TIMEOUT_MS);
+		try {
+			if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+				throw new IOException("Handshake failed: HTTP " + connection.getResponseCode());
+			}
+			BufferedReader reader = new BufferedReader(new InputStreamReader(
+					connection.getInputStream(), "UTF-8"));
+			String response = reader.readLine();
+			reader.close();
+			// "<sid>:<heartbeat timeout>:<close timeout>:<transports>"
+			String[] fields = response == null ? new String[0] : response.split(":");
+			if (fields.length < 4 || !fields[3].contains("websocket")) {
+				throw new IOException("Unexpected handshake response: " + response);
+			}
+			return fields;
+		}
+		finally {
+			connection.disconnect();
+		}
+	}
+
+	// An empty or malformed timeout means none.
+	private static int parseSeconds(String field) {
+		try {
+			return Integer.parseInt(field.trim());
+		}
+		catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	// Packets are "<type>:<id>:<endpoint>:<data>", where the trailing ":<data>" is optional.
+	private void onPacket(String packet) {
+		if (packet.isEmpty()) {
+			return;
+		}
+		char type = packet.charAt(0);
+		int idEnd = packet.indexOf(':', 2);
+		int endpointEnd = idEnd < 0 ? -1 : packet.indexOf(':', idEnd + 1);
+		String data = endpointEnd < 0 ? "" : packet.substring(endpointEnd + 1);
+		switch (type) {
+		case PACKET_CONNECT:
+			synchronized (lock) {
+				connected = true;
+				for (String queued : pendingPackets) {
+					sendPacket(queued);
+				}
+				pendingPackets.clear();
+			}
+			listener.onConnect();
+			break;
+		case PACKET_HEARTBEAT:
+			sendPacket(PACKET_HEARTBEAT + "::");
+			break;
+		case PACKET_EVENT:
+			try {
+				JSONObject event = new JSONObject(data);
+				JSONArray args = event.optJSONArray("args");
+				listener.onEvent(event.getString("name"), args == null ? new JSONArray() : args);
+			}
+			catch (JSONException e) {
+				// Dropped, not fatal: onError() would mean the session is gone, but it is still up.
+				logger.warning("Dropping malformed event packet: " + packet);
+			}
+			break;
+		case PACKET_ERROR:
+			serverError = "Server error: " + data;
+			webSocket.close();
+			break;
+		case PACKET_DISCONNECT:
+			webSocket.close();
+			break;
+		default:
+			// Messages, acks and noops aren't used by the signaling server.
+			break;
+		}
+	}
+
+	private void sendPacket(String packet) {
+		try {
+			webSocket.send(packet);
+		}
+		catch (IOException e) {
+			// The read loop sees the broken connection and reports the disconnect.
+			webSocket.close();
+		}
+	}
+}
@@ -0,0 +1,168 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+/**
+ * Decides where each of VideoStreamsView's streams is drawn.  Layouts are pure
+ * functions of the stream count and the featured ("primary") stream, so they
+ * can be exercised without a GL context, and they write into a caller-owned
+ * array so that recomputing a layout doesn't allocate.
+ *
+ * Positions are in clip space ((-1, -1) is the bottom-left corner of the
+ * surface, (1, 1) the top-right).  Each stream gets a quad of
+ * FLOATS_PER_STREAM floats: the (x, y) of its top-left, bottom-left, top-right
+ * and bottom-right corners, i.e. a GL_TRIANGLE_STRIP.  Streams are drawn in
+ * index order, except that the primary stream is drawn first so that anything
+ * overlapping it ends up on top.
+ */
+public abstract class VideoLayout {
+  public static final int FLOATS_PER_STREAM = 8;
+
+  /**
+   * Place |count| streams, of which |primary| (or none, if -1) is featured,
+   * writing stream i's quad at |vertices|[i * FLOATS_PER_STREAM].
+   */
+  public abstract void layout(int count, int primary, float[] vertices);
+
+  /** Equal tiles in a near-square grid; ignores the primary stream. */
+  public static VideoLayout grid() {
+    return new VideoLayout() {
+      @Override
+      public void layout(int count, int primary, float[] vertices) {
+        tile(0, count, -1, 1, 1, -1, vertices);
+      }
+    };
+  }
+
+  /**
+   * The primary stream fills the top three quarters of the surface; the others
+   * share a filmstrip along the bottom.
+   */
+  public static VideoLayout activeSpeaker() {
+    return new VideoLayout() {
+      @Override
+      public void layout(int count, int primary, float[] vertices) {
+        if (count == 0) {
+          return;
+        }
+        if (primary < 0 || primary >= count) {
+          primary = 0;
+        }
+        if (count == 1) {
+          putQuad(vertices, primary, -1, 1, 1, -1);
+          return;
+        }
+        putQuad(vertices, primary, -1, 1, 1, -0.5f);
+        float width = 2f / (count - 1);
+        int slot = 0;
+        for (int i = 0; i < count; ++i) {
+          if (i == primary) {
+            continue;
+          }
+          float left = -1 + slot * width;
+          putQuad(vertices, i, left, -0.5f, left + width, -1);
+          ++slot;
+        }
+      }
+    };
+  }
+
+  /**
+   * The primary stream fills the surface; the others are thumbnails stacked
+   * down the right-hand side, starting at the top-right corner.  With one
+   * remote and one local stream this is the classic video call look.
+   */
+  public static VideoLayout pictureInPicture() {
+    return new VideoLayout() {
+      @Override
+      public void layout(int count, int primary, float[] vertices) {
+        if (count == 0) {
+          return;
+        }
+        if (primary < 0 || primary >= count) {
+          primary = 0;
+        }
+        putQuad(vertices, primary, -1, 1, 1, -1);
+        int perColumn = (int) ((2 - 2 * THUMBNAIL_MARGIN) /
+            (THUMBNAIL_SIZE + THUMBNAIL_MARGIN));
+        int slot = 0;
+        for (int i = 0; i < count; ++i) {
+          if (i == primary) {
+            continue;
+          }
+          int column = slot / perColumn;
+          int row = slot % perColumn;
+          float right = 1 - THUMBNAIL_MARGIN -
+              column * (THUMBNAIL_SIZE + THUMBNAIL_MARGIN);
+          float top = 1 - THUMBNAIL_MARGIN -
+              row * (THUMBNAIL_SIZE + THUMBNAIL_MARGIN);
+          putQuad(vertices, i, right - THUMBNAIL_SIZE, top, right,
+              top - THUMBNAIL_SIZE);
+          ++slot;
+        }
+      }
+    };
+  }
+
+  // Thumbnail geometry for pictureInPicture(), in clip space units; matches the
+  // original fixed local preview (0.6..0.9 in both axes).
+  private static final float THUMBNAIL_SIZE = 0.3f;
+  private static final float THUMBNAIL_MARGIN = 0.1f;
+
+  // Tile streams [first, first + count) in a near-square grid filling the
+  // rectangle (left, top)-(right, bottom), row by row.
+  static void tile(int first, int count, float left, float top, float right,
+      float bottom, float[] vertices) {
+    if (count == 0) {
+      return;
+    }
+    int columns = (int) Math.ceil(Math.sqrt(count));
+    int rows = (count + columns - 1) / columns;
+    float width = (right - left) / columns;
+    float height = (top - bottom) / rows;
+    for (int i = 0; i < count; ++i) {
+      float x = left + (i % columns) * width;
+      float y = top - (i / columns) * height;
+      putQuad(vertices, first + i, x, y, x + width, y - height);
+    }
+  }
+
+  // Write stream |index|'s quad for the rectangle (left, top)-(right, bottom).
+  static void putQuad(float[] vertices, int index, float left, float top,
+      float right, float bottom) {
+    int i = index * FLOATS_PER_STREAM;
+    vertices[i] = left;
+    vertices[i + 1] = top;
+    vertices[i + 2] = left;
+    vertices[i + 3] = bottom;
+    vertices[i + 4] = right;
+    vertices[i + 5] = top;
+    vertices[i + 6] = right;
+    vertices[i + 7] = bottom;
+  }
+}
@@ -30,7 +30,8 @@ package org.appspot.apprtc;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
-import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
@@ -38,115 +39,400 @@ import javax.microedition.khronos.opengles.GL10;
 import org.webrtc.VideoRenderer.I420Frame;
 
 import android.content.Context;
+import android.content.pm.ApplicationInfo;
 import android.graphics.Point;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
-import android.util.Log;
 
 /**
- * A GLSurfaceView{,.Renderer} that efficiently renders YUV frames from local &
- * remote VideoTracks using the GPU for CSC.  Clients will want to call the
- * constructor, setSize() and updateFrame() as appropriate, but none of the
- * other public methods of this class are of interest to clients (only to system
- * classes).
+ * A GLSurfaceView{,.Renderer} that efficiently renders YUV frames from any
+ * number of VideoTracks using the GPU for CSC.  Streams are identified by
+ * arbitrary ids (the Endpoint overloads cover the classic local/remote pair)
+ * and placed on screen by a VideoLayout.  Clients will want to call the
+ * constructor, queueFrame() and possibly setLayout()/setPrimaryStream() as
+ * appropriate, but none of the other public methods of this class are of
+ * interest to clients (only to system classes).
  */
 public class VideoStreamsView
     extends GLSurfaceView
     implements GLSurfaceView.Renderer {
 
-  /** Identify which of the two video streams is being addressed. */
+  /** Identify one of the two classic video streams; see streamId(). */
   public static enum Endpoint { LOCAL, REMOTE };
 
   private final static String TAG = "VideoStreamsView";
   private Point screenDimensions;
-  // [0] are local Y,U,V, [1] are remote Y,U,V.
-  private int[][] yuvTextures = { { -1, -1, -1}, {-1, -1, -1 }};
+  private final GlBinding gl = new Gles20Binding();
+  // Repacks padded planes for upload; shared by every stream's textures.
+  private final PlanePacker planePacker = new PlanePacker();
   private int posLocation = -1;
-  private long lastFPSLogTime = System.nanoTime();
-  private long numFramesSinceLastLog = 0;
+  private int tcLocation = -1;
+  private final RenderMetrics renderMetrics = new RenderMetrics();
+  // Strict checks for debuggable builds, one check per frame otherwise.
+  private final GlErrorChecker glErrorChecker;
   private FramePool framePool = new FramePool();
-  // Accessed on multiple threads!  Must be synchronized.
-  private EnumMap<Endpoint, I420Frame> framesToRender =
-      new EnumMap<Endpoint, I420Frame>(Endpoint.class);
+  // Hands copies made by queueFrame(String, I420Frame) back to |framePool|.
+  private final FrameLease.Releaser returnToPool = new FrameLease.Releaser() {
+      public void onReleased(I420Frame frame) {
+        framePool.returnFrame(frame);
+      }
+    };
+  // Whether frames are shrunk to the size they are drawn at.
+  private volatile boolean downscaleToDrawnSize = true;
+  // Number of frames whose planes were copied before being queued.
+  private final AtomicLong framesCopied = new AtomicLong();
+
+  // Streams by id, in the order they were added.  Accessed on multiple
+  // threads!  Must be synchronized.
+  private final LinkedHashMap<String, Stream> streams =
+      new LinkedHashMap<String, Stream>();
+  // Snapshot of |streams|' values, replaced under its lock whenever a stream is
+  // added or removed; index i is drawn using the i-th quad of the layout.
+  private volatile Stream[] streamList = new Stream[0];
+  // Only read or written under |streams|' lock.
+  private PacingPolicy pacingPolicy = PacingPolicy.latestWins();
+  // True while an updateFrames() is queued on the GL thread.  Only read or
+  // written under |streams|' lock.
+  private boolean updateScheduled = false;
+  private final Runnable updateFramesRunnable = new Runnable() {
+      public void run() {
+        updateFrames();
+      }
+    };
+
+  private volatile VideoLayout layout = VideoLayout.pictureInPicture();
+  private volatile String primaryStreamId = null;
+  // Set whenever the layout inputs change; cleared by relayout().
+  private volatile boolean layoutDirty = true;
+  // Size of the drawing surface, from onSurfaceChanged(); 0 until known.
+  private volatile int surfaceWidth = 0;
+  private volatile int surfaceHeight = 0;
+
+  // The rest is only touched on the GL thread.
+  private boolean unpackRowLengthSupported = false;
+  // The |streamList| the current vertices were computed for.
+  private Stream[] laidOutStreams = new Stream[0];
+  private int laidOutPrimary = -1;
+  private float[] layoutVertices = new float[0];
+  // Every laid-out stream's quad (and texture coordinates), back to back, so
+  // that attribute pointers are set once per layout rather than per draw.
+  private FloatBuffer streamVertices = null;
+  private FloatBuffer streamTextureCoords = null;
+  // Scratch space for updateFrames().
+  private FrameLease[] leasesToUpload = new FrameLease[0];
 
   public VideoStreamsView(Context c, Point screenDimensions) {
     super(c);
     this.screenDimensions = screenDimensions;
+    boolean debuggable = (c.getApplicationInfo().flags &
+        ApplicationInfo.FLAG_DEBUGGABLE) != 0;
+    glErrorChecker = new GlErrorChecker(gl,
+        debuggable ? GlErrorChecker.Mode.DEBUG : GlErrorChecker.Mode.RELEASE,
+        1, renderMetrics);
     setPreserveEGLContextOnPause(true);
     setEGLContextClientVersion(2);
     setRenderer(this);
     setRenderMode(RENDERMODE_WHEN_DIRTY);
   }
 
-  /** Queue |frame| to be uploaded. */
-  public void queueFrame(final Endpoint stream, I420Frame frame) {
+  /** The stream id used for |endpoint| by the Endpoint overloads. */
+  public static String streamId(Endpoint endpoint) {
+    return endpoint.name();
+  }
+
+  /** Equivalent to queueFrame(streamId(|endpoint|), |frame|). */
+  public void queueFrame(Endpoint endpoint, I420Frame frame) {
+    queueFrame(streamId(endpoint), frame);
+  }
+
+  /** Equivalent to queueFrame(streamId(|endpoint|), |lease|). */
+  public void queueFrame(Endpoint endpoint, FrameLease lease) {
+    queueFrame(streamId(endpoint), lease);
+  }
+
+  /**
+   * Queue |frame| to be uploaded for stream |streamId|, adding the stream if
+   * it is new.  |frame|'s buffers are only assumed valid for the duration of
+   * this call, so they are copied.
+   */
+  public void queueFrame(String streamId, I420Frame frame) {
     // Paying for the copy of the YUV data here allows CSC and painting time
     // to get spent on the render thread instead of the UI thread.
     abortUnless(FramePool.validateDimensions(frame), "Frame too large!");
+    Stream stream = getOrAddStream(streamId);
+    I420Frame downscaled = maybeDownscale(stream, frame);
+    if (downscaled != null) {
+      queueLease(stream, new FrameLease(downscaled, returnToPool));
+      return;
+    }
     final I420Frame frameCopy = framePool.takeFrame(frame).copyFrom(frame);
+    framesCopied.incrementAndGet();
+    queueLease(stream, new FrameLease(frameCopy, returnToPool));
+  }
+
+  /**
+   * Queue |lease|'s frame to be uploaded for stream |streamId| without copying
+   * it, adding the stream if it is new.  The view takes its own reference on
+   * |lease| and releases it once the planes have been uploaded (or the frame is
+   * dropped in favor of a newer one); the caller remains responsible for its
+   * own reference.  (Frames much larger than their on-screen size may still be
+   * copied, see setDownscaleToDrawnSize().)
+   */
+  public void queueFrame(String streamId, FrameLease lease) {
+    Stream stream = getOrAddStream(streamId);
+    I420Frame downscaled = maybeDownscale(stream, lease.frame);
+    if (downscaled != null) {
+      queueLease(stream, new FrameLease(downscaled, returnToPool));
+      return;
+    }
+    queueLease(stream, lease.retain());
+  }
+
+  /** Stop rendering stream |streamId|, dropping its queued frames. */
+  public void removeStream(String streamId) {
+    final Stream stream;
+    synchronized (streams) {
+      stream = streams.remove(streamId);
+      if (stream == null) {
+        return;
+      }
+      stream.removed = true;
+      stream.queue.clear();
+      streamList = streams.values().toArray(new Stream[streams.size()]);
+    }
+    layoutDirty = true;
+    queueEvent(new Runnable() {
+        public void run() {
+          stream.textures.release();
+        }
+      });
+    requestRender();
+  }
+
+  /** Arrange streams according to |layout| from the next frame on. */
+  public void setLayout(VideoLayout layout) {
+    this.layout = layout;
+    layoutDirty = true;
+    requestRender();
+  }
+
+  /**
+   * Feature stream |streamId| (e.g. the active speaker) in the layout.  When
+   * unset, or set to a stream that isn't rendered, the first stream other than
+   * the LOCAL endpoint is featured.
+   */
+  public void setPrimaryStream(String streamId) {
+    primaryStreamId = streamId;
+    layoutDirty = true;
+    requestRender();
+  }
+
+  /**
+   * Whether frames much larger than the rectangle they are drawn into (e.g.
+   * the local preview thumbnail) get scaled down, on the calling thread into
+   * pooled frames, before being queued.  That saves most of their upload
+   * bandwidth.  On by default.
+   */
+  public void setDownscaleToDrawnSize(boolean downscale) {
+    downscaleToDrawnSize = downscale;
+  }
+
+  /**
+   * Use |policy| to decide which queued frames get rendered or dropped.  Frames
+   * queued so far are dropped, and per-stream stats start over.
+   */
+  public void setPacingPolicy(PacingPolicy policy) {
+    synchronized (streams) {
+      pacingPolicy = policy;
+      for (Stream stream : streams.values()) {
+        stream.queue.clear();
+        stream.queue = new FrameQueue(policy);
+      }
+    }
+  }
+
+  /** Counters and queue-to-render latencies for |endpoint|. */
+  public FrameQueue.Stats getPacingStats(Endpoint endpoint) {
+    return getPacingStats(streamId(endpoint));
+  }
+
+  /**
+   * Counters and queue-to-render latencies for stream |streamId|, or null if
+   * there is no such stream.
+   */
+  public FrameQueue.Stats getPacingStats(String streamId) {
+    synchronized (streams) {
+      Stream stream = streams.get(streamId);
+      return stream == null ? null : stream.queue.getStats();
+    }
+  }
+
+  /**
+   * Override the default (based on whether the app is debuggable) of checking
+   * for GL errors after every operation (DEBUG) or once per frame (RELEASE).
+   */
+  public void setGlErrorCheckMode(GlErrorChecker.Mode mode) {
+    glErrorChecker.setMode(mode);
+  }
+
+  /** Render-path counters and timings; see RenderMetrics. */
+  public RenderMetrics getRenderMetrics() {
+    return renderMetrics;
+  }
+
+  /** Number of frames queueFrame() had to copy so far. */
+  public long getFramesCopied() {
+    return framesCopied.get();
+  }
+
+  private Stream getOrAddStream(String streamId) {
+    synchronized (streams) {
+      Stream stream = streams.get(streamId);
+      if (stream == null) {
+        stream = new Stream(streamId, new FrameQueue(pacingPolicy),
+            new YuvTextures(gl, planePacker, glErrorChecker));
+        streams.put(streamId, stream);
+        streamList = streams.values().toArray(new Stream[streams.size()]);
+        layoutDirty = true;
+      }
+      return stream;
+    }
+  }
+
+  // If |stream| is drawn much smaller than |frame|, return a pooled copy of
+  // |frame| scaled down to its on-screen size; null otherwise.
+  private I420Frame maybeDownscale(Stream stream, I420Frame frame) {
+    if (!downscaleToDrawnSize) {
+      return null;
+    }
+    int width = scaledSize(stream.drawnWidth, frame.width);
+    int height = scaledSize(stream.drawnHeight, frame.height);
+    // Only worth it (versus a plain copy, or no copy at all) when it saves at
+    // least three quarters of the bytes, as for thumbnails.
+    if (i420Bytes(width, height) * 4 > i420Bytes(frame.width, frame.height)) {
+      return null;
+    }
+    int[] strides = stream.scaledStrides;
+    if (strides[0] != width) {
+      strides = new int[] { width, (width + 1) / 2, (width + 1) / 2 };
+      stream.scaledStrides = strides;
+    }
+    I420Frame scaled = framePool.takeFrame(width, height, strides);
+    // The gate above means shrinking by about 2x or more, where bilinear
+    // aliases; the box filter averages every source pixel instead.  It reads
+    // the frame once, as the full-size copy it replaces would, but writes a
+    // quarter of the bytes or less.
+    I420Transforms.scaleBox(frame, scaled);
+    renderMetrics.recordDownscale(
+        i420Bytes(frame.width, frame.height) - i420Bytes(width, height));
+    return scaled;
+  }
+
+  // |drawnSize| rounded up to even and capped at |frameSize|; |frameSize| if
+  // the drawn size isn't known yet.
+  private static int scaledSize(int drawnSize, int frameSize) {
+    if (drawnSize == 0) {
+      return frameSize;
+    }
+    return Math.min(drawnSize + (drawnSize & 1), frameSize);
+  }
+
+  // Size of the visible pixels of a tightly packed |width|x|height| I420 frame.
+  private static long i420Bytes(int width, int height) {
+    return (long) width * height +
+        2L * ((width + 1) / 2) * ((height + 1) / 2);
+  }
+
+  // Queue |lease| for rendering on |stream|, taking ownership of one reference
+  // to it.
+  private void queueLease(Stream stream, FrameLease lease) {
     boolean needToScheduleRender;
-    synchronized (framesToRender) {
-      // A new render needs to be scheduled (via updateFrames()) iff there isn't
-      // already a render scheduled, which is true iff framesToRender is empty.
-      needToScheduleRender = framesToRender.isEmpty();
-      I420Frame frameToDrop = framesToRender.put(stream, frameCopy);
-      if (frameToDrop != null) {
-        framePool.returnFrame(frameToDrop);
+    synchronized (streams) {
+      if (stream.removed) {
+        lease.release();
+        return;
       }
+      stream.queue.offer(lease, System.nanoTime());
+      // A new render needs to be scheduled (via updateFrames()) iff there isn't
+      // already one scheduled.
+      needToScheduleRender = !updateScheduled;
+      updateScheduled = true;
     }
     if (needToScheduleRender) {
-      queueEvent(new Runnable() {
-          public void run() {
-            updateFrames();
-          }
-        });
+      queueEvent(updateFramesRunnable);
     }
   }
 
-  // Upload the planes from |framesToRender| to the textures owned by this View.
+  // Upload the next frame of each stream to the textures owned by this View.
   private void updateFrames() {
-    I420Frame localFrame = null;
-    I420Frame remoteFrame = null;
-    synchronized (framesToRender) {
-      localFrame = framesToRender.remove(Endpoint.LOCAL);
-      remoteFrame = framesToRender.remove(Endpoint.REMOTE);
+    Stream[] current;
+    long now = System.nanoTime();
+    synchronized (streams) {
+      updateScheduled = false;
+      current = streamList;
+      if (leasesToUpload.length < current.length) {
+        leasesToUpload = new FrameLease[current.length];
+      }
+      for (int i = 0; i < current.length; ++i) {
+        leasesToUpload[i] = current[i].queue.poll(now);
+      }
     }
-    if (localFrame != null) {
-      texImage2D(localFrame, yuvTextures[0]);
-      framePool.returnFrame(localFrame);
+    boolean uploaded = false;
+    for (int i = 0; i < current.length; ++i) {
+      FrameLease lease = leasesToUpload[i];
+      if (lease == null) {
+        continue;
+      }
+      leasesToUpload[i] = null;
+      if (current[i].removed) {
+        lease.release();
+        continue;
+      }
+      upload(current[i], lease);
+      uploaded = true;
     }
-    if (remoteFrame != null) {
-      texImage2D(remoteFrame, yuvTextures[1]);
-      framePool.returnFrame(remoteFrame);
+    if (uploaded) {
+      requestRender();
     }
-    abortUnless(localFrame != null || remoteFrame != null,
-                "Nothing to render!");
-    requestRender();
   }
 
-  /** Inform this View of the dimensions of frames coming from |stream|. */
-  public void setSize(Endpoint stream, int width, int height) {
-    // Generate 3 texture ids for Y/U/V and place them into |textures|,
-    // allocating enough storage for |width|x|height| pixels.
-    int[] textures = yuvTextures[stream == Endpoint.LOCAL ? 0 : 1];
-    GLES20.glGenTextures(3, textures, 0);
-    for (int i = 0; i < 3; ++i) {
-      int w = i == 0 ? width : width / 2;
-      int h = i == 0 ? height : height / 2;
-      GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + i);
-      GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[i]);
-      GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE, w, h, 0,
-          GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, null);
-      GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-          GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
-      GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-          GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
-      GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-          GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-      GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-          GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+  // Upload |lease|'s frame to |stream|'s textures, then release |lease|.
+  private void upload(Stream stream, FrameLease lease) {
+    long start = System.nanoTime();
+    stream.textures.setUnpackRowLengthSupported(unpackRowLengthSupported);
+    stream.textures.upload(lease.frame);
+    renderMetrics.recordUpload(System.nanoTime() - start,
+        i420Bytes(lease.frame.width, lease.frame.height));
+    lease.release();
+  }
+
+  // If frames are still queued after a draw (deeper pacing policies), schedule
+  // the next upload; it runs before the following draw.
+  private void scheduleUpdateIfFramesPending() {
+    synchronized (streams) {
+      if (updateScheduled) {
+        return;
+      }
+      for (Stream stream : streams.values()) {
+        if (!stream.queue.isEmpty()) {
+          updateScheduled = true;
+          break;
+        }
+      }
+      if (!updateScheduled) {
+        return;
+      }
     }
-    checkNoGLES2Error();
+    queueEvent(updateFramesRunnable);
+  }
+
+  /**
+   * Inform this View of the dimensions of frames coming from |endpoint|.  Must
+   * be called on the GL thread.  Optional: storage is also (re)allocated as
+   * needed when a frame of a new size is uploaded.
+   */
+  public void setSize(Endpoint endpoint, int width, int height) {
+    getOrAddStream(streamId(endpoint)).textures.setSize(width, height);
   }
 
   @Override
@@ -158,23 +444,31 @@ public class VideoStreamsView
   @Override
   public void onSurfaceChanged(GL10 unused, int width, int height) {
     GLES20.glViewport(0, 0, width, height);
-    checkNoGLES2Error();
+    surfaceWidth = width;
+    surfaceHeight = height;
+    layoutDirty = true;
+    glErrorChecker.checkAlways("onSurfaceChanged");
   }
 
   @Override
   public void onDrawFrame(GL10 unused) {
+    long start = System.nanoTime();
     GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
-    drawRectangle(yuvTextures[1], remoteVertices);
-    drawRectangle(yuvTextures[0], localVertices);
-    ++numFramesSinceLastLog;
-    long now = System.nanoTime();
-    if (lastFPSLogTime == -1 || now - lastFPSLogTime > 1e9) {
-      double fps = numFramesSinceLastLog / ((now - lastFPSLogTime) / 1e9);
-      Log.d(TAG, "Rendered FPS: " + fps);
-      lastFPSLogTime = now;
-      numFramesSinceLastLog = 1;
+    Stream[] current = streamList;
+    if (layoutDirty || current != laidOutStreams) {
+      relayout(current);
     }
-    checkNoGLES2Error();
+    if (laidOutPrimary >= 0) {
+      drawStream(laidOutPrimary);
+    }
+    for (int i = 0; i < laidOutStreams.length; ++i) {
+      if (i != laidOutPrimary) {
+        drawStream(i);
+      }
+    }
+    glErrorChecker.endFrame();
+    renderMetrics.recordDraw(start, System.nanoTime() - start);
+    scheduleUpdateIfFramesPending();
   }
 
   @Override
@@ -195,16 +489,81 @@ public class VideoStreamsView
     GLES20.glUniform1i(GLES20.glGetUniformLocation(program, "u_tex"), 1);
     GLES20.glUniform1i(GLES20.glGetUniformLocation(program, "v_tex"), 2);
 
-    // Actually set in drawRectangle(), but queried only once here.
+    // Actually set in relayout(), but queried only once here.
     posLocation = GLES20.glGetAttribLocation(program, "in_pos");
+    tcLocation = GLES20.glGetAttribLocation(program, "in_tc");
 
-    int tcLocation = GLES20.glGetAttribLocation(program, "in_tc");
-    GLES20.glEnableVertexAttribArray(tcLocation);
+    GLES20.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
+
+    // Chroma rows of odd-width frames aren't 4-byte aligned.
+    GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+    String extensions = GLES20.glGetString(GLES20.GL_EXTENSIONS);
+    unpackRowLengthSupported = extensions != null &&
+        extensions.contains("GL_EXT_unpack_subimage");
+    for (Stream stream : streamList) {
+      // Any textures we had belonged to a previous (lost) context.
+      stream.textures.invalidate();
+    }
+    layoutDirty = true;
+    glErrorChecker.checkAlways("onSurfaceCreated");
+  }
+
+  // Recompute every stream's quad for |current| and point the vertex
+  // attributes at the result.
+  private void relayout(Stream[] current) {
+    layoutDirty = false;
+    int count = current.length;
+    int floats = count * VideoLayout.FLOATS_PER_STREAM;
+    if (layoutVertices.length < floats) {
+      layoutVertices = new float[floats];
+      float[] textureCoords = new float[floats];
+      for (int i = 0; i < count; ++i) {
+        System.arraycopy(TEXTURE_COORDS, 0, textureCoords,
+            i * VideoLayout.FLOATS_PER_STREAM, VideoLayout.FLOATS_PER_STREAM);
+      }
+      streamVertices = directNativeFloatBuffer(layoutVertices);
+      streamTextureCoords = directNativeFloatBuffer(textureCoords);
+    }
+    int primary = primaryIndex(current);
+    layout.layout(count, primary, layoutVertices);
+    streamVertices.clear();
+    streamVertices.put(layoutVertices, 0, floats);
+    streamVertices.flip();
+    for (int i = 0; i < count; ++i) {
+      int offset = i * VideoLayout.FLOATS_PER_STREAM;
+      // Clip space is 2 units across; corners 0 and 3 are opposite.
+      current[i].drawnWidth = Math.round(surfaceWidth *
+          Math.abs(layoutVertices[offset + 6] - layoutVertices[offset]) / 2);
+      current[i].drawnHeight = Math.round(surfaceHeight *
+          Math.abs(layoutVertices[offset + 1] - layoutVertices[offset + 7]) /
+          2);
+    }
+    laidOutStreams = current;
+    laidOutPrimary = primary;
+    if (count == 0) {
+      return;
+    }
     GLES20.glVertexAttribPointer(
-        tcLocation, 2, GLES20.GL_FLOAT, false, 0, textureCoords);
+        posLocation, 2, GLES20.GL_FLOAT, false, 0, streamVertices);
+    GLES20.glEnableVertexAttribArray(posLocation);
+    GLES20.glVertexAttribPointer(
+        tcLocation, 2, GLES20.GL_FLOAT, false, 0, streamTextureCoords);
+    GLES20.glEnableVertexAttribArray(tcLocation);
+  }
 
-    GLES20.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
-    checkNoGLES2Error();
+  // Index in |current| of the stream to feature, or -1 if there are none.
+  private int primaryIndex(Stream[] current) {
+    String primaryId = primaryStreamId;
+    int fallback = current.length > 0 ? 0 : -1;
+    for (int i = current.length - 1; i >= 0; --i) {
+      if (current[i].id.equals(primaryId)) {
+        return i;
+      }
+      if (!current[i].id.equals(streamId(Endpoint.LOCAL))) {
+        fallback = i;
+      }
+    }
+    return fallback;
   }
 
   // Wrap a float[] in a direct FloatBuffer using native byte order.
@@ -216,39 +575,20 @@ public class VideoStreamsView
     return buffer;
   }
 
-  // Upload the YUV planes from |frame| to |textures|.
-  private void texImage2D(I420Frame frame, int[] textures) {
-    for (int i = 0; i < 3; ++i) {
-      ByteBuffer plane = frame.yuvPlanes[i];
-      GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + i);
-      GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[i]);
-      int w = i == 0 ? frame.width : frame.width / 2;
-      int h = i == 0 ? frame.height : frame.height / 2;
-      abortUnless(w == frame.yuvStrides[i], frame.yuvStrides[i] + "!=" + w);
-      GLES20.glTexImage2D(
-          GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE, w, h, 0,
-          GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, plane);
-    }
-    checkNoGLES2Error();
-  }
-
-  // Draw |textures| using |vertices| (X,Y coordinates).
-  private void drawRectangle(int[] textures, FloatBuffer vertices) {
-    for (int i = 0; i < 3; ++i) {
-      GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + i);
-      GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[i]);
+  // Draw the |index|th laid-out stream using its quad in |streamVertices|.
+  private void drawStream(int index) {
+    YuvTextures textures = laidOutStreams[index].textures;
+    if (!textures.isAllocated()) {
+      // Nothing uploaded yet.
+      return;
     }
-
-    GLES20.glVertexAttribPointer(
-        posLocation, 2, GLES20.GL_FLOAT, false, 0, vertices);
-    GLES20.glEnableVertexAttribArray(posLocation);
-
-    GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
-    checkNoGLES2Error();
+    textures.bind();
+    GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, index * 4, 4);
+    glErrorChecker.check("drawStream");
   }
 
   // Compile & attach a |type| shader specified by |source| to |program|.
-  private static void addShaderTo(
+  private void addShaderTo(
       int type, String source, int program) {
     int[] result = new int[] { GLES20.GL_FALSE };
     int shader = GLES20.glCreateShader(type);
@@ -259,7 +599,7 @@ public class VideoStreamsView
         GLES20.glGetShaderInfoLog(shader) + ", source: " + source);
     GLES20.glAttachShader(program, shader);
     GLES20.glDeleteShader(shader);
-    checkNoGLES2Error();
+    glErrorChecker.checkAlways("addShaderTo");
   }
 
   // Poor-man's assert(): die with |msg| unless |condition| is true.
@@ -269,23 +609,31 @@ public class VideoStreamsView
     }
   }
 
-  // Assert that no OpenGL ES 2.0 error has been raised.
-  private static void checkNoGLES2Error() {
-    int error = GLES20.glGetError();
-    abortUnless(error == GLES20.GL_NO_ERROR, "GLES20 error: " + error);
+  // State of one rendered stream.  |queue| is guarded by |streams|' lock,
+  // |textures| is only touched on the GL thread, and the drawn size is written
+  // on the GL thread and read by producers.
+  private static class Stream {
+    final String id;
+    FrameQueue queue;
+    final YuvTextures textures;
+    // Set under |streams|' lock by removeStream().
+    volatile boolean removed = false;
+    // Size in pixels the stream is drawn at; 0 until laid out.
+    volatile int drawnWidth = 0;
+    volatile int drawnHeight = 0;
+    // Strides of downscaled copies; replaced, never mutated, on resize.
+    volatile int[] scaledStrides = { 0, 0, 0 };
+
+    Stream(String id, FrameQueue queue, YuvTextures textures) {
+      this.id = id;
+      this.queue = queue;
+      this.textures = textures;
+    }
   }
 
-  // Remote image should span the full screen.
-  private static final FloatBuffer remoteVertices = directNativeFloatBuffer(
-      new float[] { -1, 1, -1, -1, 1, 1, 1, -1 });
-
-  // Local image should be thumbnailish.
-  private static final FloatBuffer localVertices = directNativeFloatBuffer(
-      new float[] { 0.6f, 0.9f, 0.6f, 0.6f, 0.9f, 0.9f, 0.9f, 0.6f });
-
-  // Texture Coordinates mapping the entire texture.
-  private static final FloatBuffer textureCoords = directNativeFloatBuffer(
-      new float[] { 0, 0, 0, 1, 1, 0, 1, 1 });
+  // Texture Coordinates mapping the entire texture onto one stream's quad.
+  private static final float[] TEXTURE_COORDS =
+      new float[] { 0, 0, 0, 1, 1, 0, 1, 1 };
 
   // Pass-through vertex shader.
   private static final String VERTEX_SHADER_STRING =
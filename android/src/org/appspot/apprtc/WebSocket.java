@@ -0,0 +1,370 @@
+package org.appspot.apprtc;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Locale;
+
+/**
+ * A minimal RFC 6455 WebSocket client over a plain TCP socket, supporting just what signaling needs:
+ * text messages (possibly fragmented), ping/pong and the closing handshake. It has no Android
+ * dependencies, so it can be exercised on the JVM against an in-process server.
+ * <p>
+ * To use: create an instance, call {@link #connect(int)} and then {@link #readLoop()} on a
+ * dedicated thread; incoming messages and the end of the connection are reported to the
+ * {@link Listener} from that thread. {@link #send(String)} and {@link #close()} may be called from
+ * any thread.
+ */
+public class WebSocket {
+	/**
+	 * Callbacks, all invoked on the thread running {@link WebSocket#readLoop()}.
+	 */
+	public interface Listener {
+		public void onTextMessage(String text);
+
+		/** The connection is gone; |code| is 1006 if it ended without a close frame. */
+		public void onClose(int code, String reason);
+	}
+
+	private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+	private static final int OPCODE_CONTINUATION = 0x0;
+
+	private static final int OPCODE_TEXT = 0x1;
+
+	private static final int OPCODE_BINARY = 0x2;
+
+	private static final int OPCODE_CLOSE = 0x8;
+
+	private static final int OPCODE_PING = 0x9;
+
+	private static final int OPCODE_PONG = 0xA;
+
+	private static final int CLOSE_NORMAL = 1000;
+
+	private static final int CLOSE_ABNORMAL = 1006;
+
+	// Largest message we accept; signaling messages are a few KB.
+	private static final int MAX_MESSAGE_SIZE = 1 << 20;
+
+	private static final char[] BASE64 =
+			"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+	private final URI uri;
+
+	private final Listener listener;
+
+	private final SecureRandom random = new SecureRandom();
+
+	private Socket socket;
+
+	private InputStream in;
+
+	private OutputStream out;
+
+	// Guards |out| and |closeSent|.
+	private final Object writeLock = new Object();
+
+	private boolean closeSent = false;
+
+	/**
+	 * @param uri a ws:// URI (wss:// is not supported)
+	 */
+	public WebSocket(URI uri, Listener listener) {
+		if (!"ws".equals(uri.getScheme())) {
+			throw new IllegalArgumentException("Unsupported scheme: " + uri);
+		}
+		this.uri = uri;
+		this.listener = listener;
+	}
+
+	/**
+	 * Open the TCP connection and perform the opening handshake, blocking for at most |timeoutMs|
+	 * for each step.
+	 */
+	public void connect(int timeoutMs) throws IOException {
+		int port = uri.getPort() == -1 ? 80 : uri.getPort();
+		socket = new Socket();
+		socket.setTcpNoDelay(true);
+		socket.connect(new InetSocketAddress(uri.getHost(), port), timeoutMs);
+		socket.setSoTimeout(timeoutMs);
+		in = new BufferedInputStream(socket.getInputStream());
+		out = socket.getOutputStream();
+
+		byte[] nonce = new byte[16];
+		random.nextBytes(nonce);
+		String key = base64(nonce);
+		String path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri
+				.getRawPath();
+		if (uri.getRawQuery() != null) {
+			path += "?" + uri.getRawQuery();
+		}
+		String request = "GET " + path + " HTTP/1.1\r\n" + "Host: " + uri.getHost() + ":" + port
+				+ "\r\n" + "Upgrade: websocket\r\n" + "Connection: Upgrade\r\n"
+				+ "Sec-WebSocket-Key: " + key + "\r\n" + "Sec-WebSocket-Version: 13\r\n\r\n";
+		synchronized (writeLock) {
+			out.write(request.getBytes("US-ASCII"));
+			out.flush();
+		}
+
+		String statusLine = readLine();
+		if (statusLine == null || !statusLine.startsWith("HTTP/1.1 101")) {
+			throw new IOException("Unexpected handshake response: " + statusLine);
+		}
+		String expectedAccept = base64(sha1(key + ACCEPT_GUID));
+		boolean accepted = false;
+		for (String line = readLine(); line != null && !line.isEmpty(); line = readLine()) {
+			int colon = line.indexOf(':');
+			if (colon > 0
+					&& line.substring(0, colon).trim().toLowerCase(Locale.US)
+							.equals("sec-websocket-accept")) {
+				accepted = line.substring(colon + 1).trim().equals(expectedAccept);
+			}
+		}
+		if (!accepted) {
+			throw new IOException("Missing or bad Sec-WebSocket-Accept");
+		}
+		// From now on reads block until the server sends something or goes away.
+		socket.setSoTimeout(0);
+	}
+
+	/**
+	 * Give up on the connection if nothing at all is received for |timeoutMs| (0 waits forever,
+	 * the default once connected). Use it when the server sends keep-alives.
+	 */
+	public void setReadTimeout(int timeoutMs) throws IOException {
+		socket.setSoTimeout(timeoutMs);
+	}
+
+	/**
+	 * Read and dispatch messages until the connection closes; returns after
+	 * {@link Listener#onClose(int, String)} has been called.
+	 */
+	public void readLoop() {
+		int code = CLOSE_ABNORMAL;
+		String reason = "Connection lost";
+		try {
+			ByteArrayOutputStream message = new ByteArrayOutputStream();
+			while (true) {
+				int b0 = readByte();
+				int b1 = readByte();
+				boolean fin = (b0 & 0x80) != 0;
+				int opcode = b0 & 0x0f;
+				byte[] payload = readPayload(b1);
+				if (opcode == OPCODE_TEXT || opcode == OPCODE_BINARY
+						|| opcode == OPCODE_CONTINUATION) {
+					if (message.size() + payload.length > MAX_MESSAGE_SIZE) {
+						throw new IOException("Message too large");
+					}
+					message.write(payload);
+					if (fin) {
+						// Binary messages aren't used by signaling; treat them as text.
+						listener.onTextMessage(message.toString("UTF-8"));
+						message.reset();
+					}
+				} else if (opcode == OPCODE_PING) {
+					sendFrame(OPCODE_PONG, payload);
+				} else if (opcode == OPCODE_CLOSE) {
+					code = payload.length >= 2 ? ((payload[0] & 0xff) << 8) | (payload[1] & 0xff)
+							: CLOSE_NORMAL;
+					reason = payload.length > 2 ? new String(payload, 2, payload.length - 2,
+							"UTF-8") : "";
+					sendClose(code);
+					break;
+				}
+				// Pongs (and unknown control frames) are ignored.
+			}
+		}
+		catch (IOException e) {
+			reason = e.getMessage();
+		}
+		closeSocket();
+		listener.onClose(code, reason);
+	}
+
+	/** Send |text| as a single text frame. */
+	public void send(String text) throws IOException {
+		sendFrame(OPCODE_TEXT, text.getBytes("UTF-8"));
+	}
+
+	/**
+	 * Start the closing handshake; {@link #readLoop()} returns once the server acknowledges or the
+	 * connection drops.
+	 */
+	public void close() {
+		try {
+			sendClose(CLOSE_NORMAL);
+		}
+		catch (IOException e) {
+			closeSocket();
+		}
+	}
+
+	private void sendClose(int code) throws IOException {
+		synchronized (writeLock) {
+			if (closeSent) {
+				return;
+			}
+			closeSent = true;
+		}
+		sendFrame(OPCODE_CLOSE, new byte[] { (byte) (code >> 8), (byte) code });
+	}
+
+	// Write one masked frame (clients must mask everything they send).
+	private void sendFrame(int opcode, byte[] payload) throws IOException {
+		int length = payload.length;
+		int headerLength = 2 + (length < 126 ? 0 : (length <= 0xffff ? 2 : 8)) + 4;
+		byte[] frame = new byte[headerLength + length];
+		frame[0] = (byte) (0x80 | opcode);
+		int pos = 2;
+		if (length < 126) {
+			frame[1] = (byte) (0x80 | length);
+		} else if (length <= 0xffff) {
+			frame[1] = (byte) (0x80 | 126);
+			frame[pos++] = (byte) (length >> 8);
+			frame[pos++] = (byte) length;
+		} else {
+			frame[1] = (byte) (0x80 | 127);
+			for (int shift = 56; shift >= 0; shift -= 8) {
+				frame[pos++] = (byte) ((long) length >> shift);
+			}
+		}
+		byte[] mask = new byte[4];
+		random.nextBytes(mask);
+		System.arraycopy(mask, 0, frame, pos, 4);
+		pos += 4;
+		for (int i = 0; i < length; ++i) {
+			frame[pos + i] = (byte) (payload[i] ^ mask[i & 3]);
+		}
+		synchronized (writeLock) {
+			if (out == null) {
+				throw new IOException("Not connected");
+			}
+			out.write(frame);
+			out.flush();
+		}
+	}
+
+	private byte[] readPayload(int b1) throws IOException {
+		long length = b1 & 0x7f;
+		if (length == 126) {
+			length = (readByte() << 8) | readByte();
+		} else if (length == 127) {
+			length = 0;
+			for (int i = 0; i < 8; ++i) {
+				length = (length << 8) | readByte();
+			}
+		}
+		// A 64-bit length must have its most significant bit clear; set, it reads as negative.
+		if (length < 0) {
+			throw new IOException("Bad frame length");
+		}
+		if (length > MAX_MESSAGE_SIZE) {
+			throw new IOException("Frame too large: " + length);
+		}
+		byte[] mask = null;
+		if ((b1 & 0x80) != 0) {
+			mask = new byte[4];
+			readFully(mask);
+		}
+		byte[] payload = new byte[(int) length];
+		readFully(payload);
+		if (mask != null) {
+			for (int i = 0; i < payload.length; ++i) {
+				payload[i] ^= mask[i & 3];
+			}
+		}
+		return payload;
+	}
+
+	private int readByte() throws IOException {
+		int b = in.read();
+		if (b < 0) {
+			throw new EOFException("Connection closed by server");
+		}
+		return b;
+	}
+
+	private void readFully(byte[] buffer) throws IOException {
+		int pos = 0;
+		while (pos < buffer.length) {
+			int read = in.read(buffer, pos, buffer.length - pos);
+			if (read < 0) {
+				throw new EOFException("Connection closed by server");
+			}
+			pos += read;
+		}
+	}
+
+	// Read a CRLF-terminated header line, without the CRLF; null on EOF.
+	private String readLine() throws IOException {
+		StringBuilder line = new StringBuilder();
+		while (true) {
+			int b = in.read();
+			if (b < 0) {
+				return line.length() == 0 ? null : line.toString();
+			}
+			if (b == '\n') {
+				int last = line.length() - 1;
+				if (last >= 0 && line.charAt(last) == '\r') {
+					line.setLength(last);
+				}
+				return line.toString();
+			}
+			line.append((char) b);
+		}
+	}
+
+	private void closeSocket() {
+		try {
+			if (socket != null) {
+				socket.close();
+			}
+		}
+		catch (IOException e) {
+			// Nothing left to do.
+		}
+	}
+
+	private static byte[] sha1(String text) {
+		try {
+			return MessageDigest.getInstance("SHA-1").digest(text.getBytes("US-ASCII"));
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	// android.util.Base64 would do, but keeping this class free of Android dependencies lets it run
+	// on the JVM.
+	private static String base64(byte[] data) {
+		StringBuilder result = new StringBuilder((data.length + 2) / 3 * 4);
+		for (int i = 0; i < data.length; i += 3) {
+			int b = (data[i] & 0xff) << 16;
+			if (i + 1 < data.length) {
+				b |= (data[i + 1] & 0xff) << 8;
+			}
+			if (i + 2 < data.length) {
+				b |= data[i + 2] & 0xff;
+			}
+			result.append(BASE64[(b >> 18) & 0x3f]);
+			result.append(BASE64[(b >> 12) & 0x3f]);
+			result.append(i + 1 < data.length ? BASE64[(b >> 6) & 0x3f] : '=');
+			result.append(i + 2 < data.length ? BASE64[b & 0x3f] : '=');
+		}
+		return result.toString();
+	}
+}
@@ -0,0 +1,169 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+import java.nio.ByteBuffer;
+
+import org.webrtc.VideoRenderer.I420Frame;
+
+import android.opengl.GLES20;
+
+/**
+ * The three Y/U/V luminance textures backing one video stream.  Texture
+ * storage is allocated once per resolution; frames of that resolution are then
+ * uploaded with glTexSubImage2D(), which updates the existing storage instead
+ * of reallocating it.  When the resolution changes the old textures are
+ * deleted before new ones are generated.
+ *
+ * Not thread-safe; all methods must be called on the GL thread.
+ */
+class YuvTextures {
+  // From GL_EXT_unpack_subimage; not exposed by GLES20.
+  private static final int GL_UNPACK_ROW_LENGTH_EXT = 0x0CF2;
+
+  private final GlBinding gl;
+  private final PlanePacker planePacker;
+  private final GlErrorChecker glErrorChecker;
+  private final int[] textures = { -1, -1, -1 };
+  // Dimensions the current texture storage was allocated for.
+  private int width = -1;
+  private int height = -1;
+  // True if GL_EXT_unpack_subimage lets upload() send padded planes directly.
+  private boolean unpackRowLengthSupported = false;
+
+  public YuvTextures(GlBinding gl, PlanePacker planePacker,
+      GlErrorChecker glErrorChecker) {
+    this.gl = gl;
+    this.planePacker = planePacker;
+    this.glErrorChecker = glErrorChecker;
+  }
+
+  public void setUnpackRowLengthSupported(boolean supported) {
+    unpackRowLengthSupported = supported;
+  }
+
+  /** Whether storage has been allocated, i.e. there is something to draw. */
+  public boolean isAllocated() {
+    return textures[0] != -1;
+  }
+
+  /**
+   * Make sure storage for |width|x|height| frames is allocated, replacing (and
+   * deleting) textures of any other size.  A no-op if the size is unchanged.
+   */
+  public void setSize(int width, int height) {
+    if (isAllocated() && width == this.width && height == this.height) {
+      return;
+    }
+    release();
+    gl.glGenTextures(3, textures, 0);
+    for (int i = 0; i < 3; ++i) {
+      int w = planeSize(width, i);
+      int h = planeSize(height, i);
+      gl.glActiveTexture(GLES20.GL_TEXTURE0 + i);
+      gl.glBindTexture(GLES20.GL_TEXTURE_2D, textures[i]);
+      gl.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE, w, h, 0,
+          GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, null);
+      gl.glTexParameterf(GLES20.GL_TEXTURE_2D,
+          GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+      gl.glTexParameterf(GLES20.GL_TEXTURE_2D,
+          GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+      gl.glTexParameterf(GLES20.GL_TEXTURE_2D,
+          GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+      gl.glTexParameterf(GLES20.GL_TEXTURE_2D,
+          GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+    }
+    this.width = width;
+    this.height = height;
+    glErrorChecker.checkAlways("YuvTextures.setSize");
+  }
+
+  /**
+   * Upload the YUV planes of |frame|, (re)allocating storage first if its
+   * resolution differs from the current one.  Padded planes are uploaded in
+   * place if GL_EXT_unpack_subimage is supported, and repacked otherwise.
+   */
+  public void upload(I420Frame frame) {
+    setSize(frame.width, frame.height);
+    for (int i = 0; i < 3; ++i) {
+      ByteBuffer plane = frame.yuvPlanes[i];
+      gl.glActiveTexture(GLES20.GL_TEXTURE0 + i);
+      gl.glBindTexture(GLES20.GL_TEXTURE_2D, textures[i]);
+      int w = planeSize(frame.width, i);
+      int h = planeSize(frame.height, i);
+      int stride = frame.yuvStrides[i];
+      boolean unpackInPlace = stride != w && unpackRowLengthSupported;
+      if (unpackInPlace) {
+        gl.glPixelStorei(GL_UNPACK_ROW_LENGTH_EXT, stride);
+      } else {
+        plane = planePacker.pack(i, plane, w, h, stride);
+      }
+      gl.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, w, h,
+          GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, plane);
+      if (unpackInPlace) {
+        gl.glPixelStorei(GL_UNPACK_ROW_LENGTH_EXT, 0);
+      }
+    }
+    glErrorChecker.check("YuvTextures.upload");
+  }
+
+  /** Bind the Y/U/V textures to texture units 0/1/2 for drawing. */
+  public void bind() {
+    for (int i = 0; i < 3; ++i) {
+      gl.glActiveTexture(GLES20.GL_TEXTURE0 + i);
+      gl.glBindTexture(GLES20.GL_TEXTURE_2D, textures[i]);
+    }
+  }
+
+  /** Delete the textures, if any. */
+  public void release() {
+    if (!isAllocated()) {
+      return;
+    }
+    gl.glDeleteTextures(3, textures, 0);
+    invalidate();
+  }
+
+  /**
+   * Forget the textures without deleting them, e.g. because the GL context
+   * they lived in is gone.  The next upload() allocates new ones.
+   */
+  public void invalidate() {
+    for (int i = 0; i < 3; ++i) {
+      textures[i] = -1;
+    }
+    width = -1;
+    height = -1;
+  }
+
+  // Width or height of |plane| for a frame |lumaSize| wide or high; chroma
+  // planes round up, as I420Transforms does, so odd sizes lose no texel.
+  private static int planeSize(int lumaSize, int plane) {
+    return plane == 0 ? lumaSize : (lumaSize + 1) / 2;
+  }
+}